@@ -0,0 +1,62 @@
+package benchmark;
+
+import externalsort.BufferPoolService;
+import externalsort.HeapSortClient;
+import externalsort.ReplacementPolicy;
+import externalsort.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Sweeps the buffer pool's block size against cache misses, bytes read and
+ * wall time for a heapsort of one generated file. The pool's memory is
+ * held constant, so larger blocks mean fewer buffers: the sweep shows
+ * where fewer, larger reads stop paying for the coarser caching. Each
+ * block size is run with buffered I/O and then with direct I/O, which
+ * reports "n/a" where the file system does not support it. The files are
+ * created in the working directory, since /tmp is often a tmpfs that
+ * refuses direct I/O.
+ * Usage: BlockSizeBenchmark [megabytes] [memoryKilobytes]
+ */
+public class BlockSizeBenchmark {
+    private static final int[] BLOCK_SIZES = {4096, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final int RECORDSPERMB = 256 * 1024;
+
+    // Private constructor to prevent instantiation.
+    private BlockSizeBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        long memory = (args.length > 1 ? Long.parseLong(args[1]) : 256) * 1024;
+        File input = File.createTempFile("blockbench", ".dat", new File("."));
+        File work = File.createTempFile("blockbench", ".dat", new File("."));
+        input.deleteOnExit();
+        work.deleteOnExit();
+        Utils.generateByteFile(megabytes * RECORDSPERMB, input.getPath());
+        System.out.println("blockSize  buffers  direct       misses     MB read    ms");
+        for(int blockSize : BLOCK_SIZES){
+            int numBuffers = (int)Math.max(2, memory / blockSize);
+            for(boolean direct : new boolean[]{false, true}){
+                Files.copy(input.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                try(RandomAccessFile raf = new RandomAccessFile(work, "rw")){
+                    BufferPoolService bps = new BufferPoolService(raf, numBuffers,
+                            ReplacementPolicy.create("lru", numBuffers), 0, 0, blockSize);
+                    String mode = direct ? (bps.enableDirectIO(work.toPath()) ? "on" : "n/a") : "off";
+                    long startTime = System.nanoTime();
+                    new HeapSortClient(bps).sortFile();
+                    bps.close();
+                    long endTime = System.nanoTime();
+                    System.out.printf("%9d %8d  %-6s %11d %11.1f %5d%n", blockSize, numBuffers, mode,
+                            bps.getCacheMisses(), bps.getMetrics().getBytesRead() / 1048576.0,
+                            (endTime - startTime) / 1_000_000);
+                }
+                if(!Utils.checkFile(work.getPath()))
+                    throw new IllegalStateException("File not sorted with " + blockSize + "-byte blocks");
+            }
+        }
+    }
+}
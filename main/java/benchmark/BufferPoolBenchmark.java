@@ -0,0 +1,49 @@
+package benchmark;
+
+import externalsort.BufferPoolService;
+import externalsort.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Measures the latency of a buffer pool hit as the number of buffers
+ * grows. Every block of the generated file fits in the pool, so after
+ * warm-up each read is a hit and the timing isolates lookup and LRU
+ * promotion. Only the first record of each block is read so the
+ * working set of record data stays small and the ns/read column reflects
+ * the pool itself; it should stay flat across pool sizes.
+ */
+public class BufferPoolBenchmark {
+    private static final int[] POOL_SIZES = {1, 10, 100, 1000, 10000, 20000};
+    private static final int READS = 2_000_000;
+    private static final int RECORDSPERBLOCK = 1024;
+
+    // Private constructor to prevent instantiation.
+    private BufferPoolBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        File file = File.createTempFile("bpbench", ".dat");
+        file.deleteOnExit();
+        Random random = new Random(42);
+        System.out.println("numBuffers    ns/read");
+        for(int numBuffers : POOL_SIZES){
+            Utils.generateByteFile(numBuffers * RECORDSPERBLOCK, file.getPath());
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+                BufferPoolService bps = new BufferPoolService(raf, numBuffers);
+                for(long blockNum = 0; blockNum < numBuffers; blockNum++)
+                    bps.read(blockNum * RECORDSPERBLOCK);
+                // Warm up the hit path before timing it
+                for(int i = 0; i < READS; i++)
+                    bps.read((long)random.nextInt(numBuffers) * RECORDSPERBLOCK);
+                long startTime = System.nanoTime();
+                for(int i = 0; i < READS; i++)
+                    bps.read((long)random.nextInt(numBuffers) * RECORDSPERBLOCK);
+                long endTime = System.nanoTime();
+                System.out.printf("%10d %10.1f%n", numBuffers, (endTime - startTime) / (double)READS);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package benchmark;
+
+import externalsort.BufferPoolService;
+import externalsort.HeapSortClient;
+import externalsort.ParallelSortClient;
+import externalsort.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reports the speedup of ParallelSortClient over HeapSortClient for 1, 2,
+ * 4, 8 and 16 threads on a file generated with Utils.generateByteFile.
+ * Every run sorts a fresh copy of the same input.
+ * Usage: ParallelSortBenchmark [numRecords] [numBuffers] [memoryBlocks]
+ */
+public class ParallelSortBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+    // Private constructor to prevent instantiation.
+    private ParallelSortBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 1024 * 1024;
+        int numBuffers = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int memoryBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        File input = File.createTempFile("parbench", ".dat");
+        File work = File.createTempFile("parbench", ".dat");
+        input.deleteOnExit();
+        work.deleteOnExit();
+        Utils.generateByteFile(numRecords, input.getPath());
+
+        Files.copy(input.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        long heapTime;
+        try(RandomAccessFile raf = new RandomAccessFile(work, "rw")){
+            HeapSortClient hsc = new HeapSortClient(new BufferPoolService(raf, numBuffers));
+            long startTime = System.currentTimeMillis();
+            hsc.sortFile();
+            heapTime = System.currentTimeMillis() - startTime;
+        }
+        System.out.println("records " + numRecords + ", heap with " + numBuffers + " buffers: " + heapTime + " ms");
+        System.out.println("threads    ms    speedup");
+        for(int threads : THREADS){
+            Files.copy(input.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            long sortTime;
+            try(RandomAccessFile raf = new RandomAccessFile(work, "rw")){
+                ParallelSortClient psc = new ParallelSortClient(raf, work.getParentFile(), memoryBlocks, threads);
+                long startTime = System.currentTimeMillis();
+                psc.sortFile();
+                sortTime = System.currentTimeMillis() - startTime;
+            }
+            if(!Utils.checkFile(work.getPath()))
+                throw new IllegalStateException("File not sorted with " + threads + " threads");
+            System.out.printf("%7d %6d %9.1fx%n", threads, sortTime, heapTime / (double)Math.max(1, sortTime));
+        }
+    }
+}
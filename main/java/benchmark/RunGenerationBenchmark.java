@@ -0,0 +1,61 @@
+package benchmark;
+
+import externalsort.BufferPoolService;
+import externalsort.MergeSortClient;
+import externalsort.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Compares the initial runs of MergeSortClient when they are sorted in
+ * memory and when they are generated by replacement selection, on random
+ * input and on inputs with 1% and 10% of records out of place. Every run
+ * sorts a fresh copy of the same input.
+ * Usage: RunGenerationBenchmark [numRecords] [memoryBlocks]
+ */
+public class RunGenerationBenchmark {
+    private static final double[] DISORDER = {0.01, 0.10};
+
+    // Private constructor to prevent instantiation.
+    private RunGenerationBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 1024 * 1024;
+        int memoryBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        File input = File.createTempFile("runbench", ".dat");
+        File work = File.createTempFile("runbench", ".dat");
+        input.deleteOnExit();
+        work.deleteOnExit();
+        System.out.println("records " + numRecords + ", memory " + memoryBlocks + " blocks");
+        System.out.println("input      generation   runs  avg run (records)  passes   ms");
+        Utils.generateByteFile(numRecords, input.getPath());
+        compare("random", input, work, memoryBlocks);
+        for(double disorder : DISORDER){
+            Utils.generatePartiallySortedFile(numRecords, input.getPath(), disorder);
+            compare((int)(disorder * 100) + "% moved", input, work, memoryBlocks);
+        }
+    }
+
+    private static void compare(String name, File input, File work, int memoryBlocks) throws IOException {
+        for(boolean replacement : new boolean[]{false, true}){
+            Files.copy(input.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            MergeSortClient msc;
+            long sortTime;
+            try(RandomAccessFile raf = new RandomAccessFile(work, "rw")){
+                msc = new MergeSortClient(new BufferPoolService(raf, 1), work.getParentFile(), memoryBlocks,
+                        replacement);
+                long startTime = System.currentTimeMillis();
+                msc.sortFile();
+                sortTime = System.currentTimeMillis() - startTime;
+            }
+            if(!Utils.checkFile(work.getPath()))
+                throw new IllegalStateException("File not sorted: " + name);
+            System.out.printf("%-10s %-12s %5d %18.0f %7d %5d%n", name, replacement ? "replacement" : "sorted",
+                    msc.getNumRuns(), msc.getAverageRunLength(), msc.getMergePasses(), sortTime);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package externalsort;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The AdaptiveSortClient class scans the disk file for existing order
+ * before sorting it and does only as much work as that order requires.
+ * A sorted file is left alone, a file whose keys never increase is
+ * reversed in place block by block, and a file that is partly ordered is
+ * merge sorted from its natural runs. Only a file that looks random, with
+ * a descent at least every fourth record, is heapsorted.
+ */
+public class AdaptiveSortClient implements SortEngine, CacheStats{
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    // Descents per record at which a file counts as random
+    private static final double RANDOMDESCENTS = 0.25;
+
+    /**
+     * The ways the file can be sorted, from least to most work
+     */
+    public enum Path {NONE, REVERSE, NATURAL_MERGE, HEAP}
+
+    private final BufferPoolService dataFileService;
+    private final File spillDir;
+    private final int memoryBlocks;
+    private CacheStats stats;
+    private Presortedness presortedness;
+    private Path path;
+
+    /**
+     * AdaptiveSortClient defined by the BufferPoolService of the disk file,
+     * the directory for spill files, and how many blocks it may hold in
+     * memory at once
+     * @param dataFileService the service for the disk file being sorted
+     * @param spillDir the directory temporary run files are created in
+     * @param memoryBlocks the number of blocks scanned, reversed or merged
+     *                     at once
+     */
+    public AdaptiveSortClient(BufferPoolService dataFileService, File spillDir, int memoryBlocks){
+        this.dataFileService = dataFileService;
+        this.spillDir = spillDir;
+        this.memoryBlocks = Math.max(1, memoryBlocks);
+        this.stats = dataFileService;
+    }
+    @Override
+    public long getCacheHits(){
+        return stats.getCacheHits();
+    }
+    @Override
+    public long getCacheMisses(){
+        return stats.getCacheMisses();
+    }
+    @Override
+    public long getDiskWrites(){
+        return stats.getDiskWrites();
+    }
+
+    /**
+     * Getter for the measurements of the file taken before sorting
+     * @return the presortedness of the file, or null before sorting
+     */
+    public Presortedness getPresortedness(){
+        return presortedness;
+    }
+
+    /**
+     * Getter for the way the file was sorted
+     * @return the path taken, or null before sorting
+     */
+    public Path getPath(){
+        return path;
+    }
+
+    /**
+     * Scans the file, then sorts it along the cheapest path that fits
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        presortedness = Presortedness.scan(dataFileService, memoryBlocks);
+        path = choose(presortedness, dataFileService.length());
+        switch(path){
+            case NONE -> {
+            }
+            case REVERSE -> reverse();
+            case NATURAL_MERGE -> {
+                MergeSortClient msc = new MergeSortClient(dataFileService, spillDir, memoryBlocks,
+                        MergeSortClient.RunGeneration.NATURAL);
+                msc.sortFile();
+                stats = msc;
+            }
+            case HEAP -> new HeapSortClient(dataFileService).sortFile();
+        }
+    }
+
+    /**
+     * Picks the path for a file from its measurements
+     * @param p the presortedness of the file
+     * @param fileBytes the length of the file in bytes
+     * @return the path that sorts the file with the least work
+     */
+    static Path choose(Presortedness p, long fileBytes){
+        if(p.getAscendingRuns() <= 1)
+            return Path.NONE;
+        if(p.getDescendingRuns() == 1 && fileBytes % BLOCKSIZE == 0)
+            return Path.REVERSE;
+        if(p.getDescents() >= RANDOMDESCENTS * p.getNumRecords())
+            return Path.HEAP;
+        return Path.NATURAL_MERGE;
+    }
+    private void reverse() throws IOException{
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        int chunk = Math.max(1, memoryBlocks / 2);
+        byte[] front = new byte[chunk * BLOCKSIZE];
+        byte[] back = new byte[chunk * BLOCKSIZE];
+        long lo = 0;
+        long hi = numBlocks;
+        while(lo < hi){
+            int n = (int)Math.min(chunk, (hi - lo) / 2);
+            if(n == 0){
+                // One block left in the middle
+                dataFileService.readBlocks(lo, front, 1);
+                reverseRecords(front, 1);
+                dataFileService.writeBlocks(lo, front, 1);
+                break;
+            }
+            dataFileService.readBlocks(lo, front, n);
+            dataFileService.readBlocks(hi - n, back, n);
+            reverseRecords(front, n);
+            reverseRecords(back, n);
+            dataFileService.writeBlocks(lo, back, n);
+            dataFileService.writeBlocks(hi - n, front, n);
+            lo += n;
+            hi -= n;
+        }
+    }
+    private static void reverseRecords(byte[] buffer, int numBlocks){
+        int i = 0;
+        int j = numBlocks * RECORDSPERBLOCK - 1;
+        byte[] temp = new byte[4];
+        while(i < j){
+            System.arraycopy(buffer, i * 4, temp, 0, 4);
+            System.arraycopy(buffer, j * 4, buffer, i * 4, 4);
+            System.arraycopy(temp, 0, buffer, j * 4, 4);
+            i++;
+            j--;
+        }
+    }
+}
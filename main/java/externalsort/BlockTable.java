@@ -0,0 +1,130 @@
+package externalsort;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The BlockTable class is the hash index of the buffer pool. It maps
+ * block numbers to the BufferNodes currently holding them using open
+ * addressing with linear probing, so lookups never walk the pool and
+ * never box the block number.
+ */
+class BlockTable {
+    private long[] keys;
+    private BufferNode[] nodes;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * BlockTable is defined by the number of blocks it is expected to
+     * hold at once. The table is kept at most half full.
+     * @param expected the expected number of resident blocks
+     */
+    BlockTable(int expected){
+        int capacity = Integer.highestOneBit(Math.max(expected, 2) * 2 - 1) << 1;
+        keys = new long[capacity];
+        nodes = new BufferNode[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Looks up the BufferNode holding the given block
+     * @param blockNum the block index in relation to the random access file
+     * @return the BufferNode for the block, or null if it is not resident
+     */
+    BufferNode get(long blockNum){
+        int i = slot(blockNum);
+        while(nodes[i] != null){
+            if(keys[i] == blockNum)
+                return nodes[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds or replaces the BufferNode holding the given block
+     * @param blockNum the block index in relation to the random access file
+     * @param node the BufferNode holding the block
+     */
+    void put(long blockNum, BufferNode node){
+        if((size + 1) * 2 > keys.length)
+            grow();
+        int i = slot(blockNum);
+        while(nodes[i] != null){
+            if(keys[i] == blockNum){
+                nodes[i] = node;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = blockNum;
+        nodes[i] = node;
+        size++;
+    }
+
+    /**
+     * Removes the given block from the table. Entries further along the
+     * probe sequence are shifted back so no tombstones are left behind.
+     * @param blockNum the block index in relation to the random access file
+     */
+    void remove(long blockNum){
+        int i = slot(blockNum);
+        while(nodes[i] != null && keys[i] != blockNum)
+            i = (i + 1) & mask;
+        if(nodes[i] == null)
+            return;
+        int j = i;
+        while(true){
+            j = (j + 1) & mask;
+            if(nodes[j] == null)
+                break;
+            int home = slot(keys[j]);
+            boolean inRange = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if(inRange)
+                continue;
+            keys[i] = keys[j];
+            nodes[i] = nodes[j];
+            i = j;
+        }
+        nodes[i] = null;
+        size--;
+    }
+
+    /**
+     * Getter for the number of resident blocks
+     * @return the number of blocks in the table
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * Collects the resident BufferNodes
+     * @return a new list of the nodes, in no particular order
+     */
+    List<BufferNode> residents(){
+        List<BufferNode> residents = new ArrayList<>(size);
+        for(BufferNode node : nodes){
+            if(node != null)
+                residents.add(node);
+        }
+        return residents;
+    }
+    private int slot(long blockNum){
+        long h = blockNum * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+    private void grow(){
+        long[] oldKeys = keys;
+        BufferNode[] oldNodes = nodes;
+        keys = new long[oldKeys.length * 2];
+        nodes = new BufferNode[oldNodes.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for(int i = 0; i < oldKeys.length; i++){
+            if(oldNodes[i] != null)
+                put(oldKeys[i], oldNodes[i]);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package externalsort;
+
+import java.io.IOException;
+
+/**
+ * The BlockWriter interface is anything the merge can write whole blocks
+ * to: the block writes of a BufferPoolService, or a SequentialWriter
+ * streaming a new file.
+ */
+interface BlockWriter {
+    /**
+     * Writes consecutive blocks
+     * @param blockNum the first block to be written
+     * @param src the array holding the blocks
+     * @param numBlocks the number of blocks to be written
+     * @throws IOException for file operations
+     */
+    void writeBlocks(long blockNum, byte[] src, int numBlocks) throws IOException;
+}
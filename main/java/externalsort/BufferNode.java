@@ -1,26 +1,38 @@
 package externalsort;
 
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 
 /**
  * The BufferNode class represents an element of the buffer pool. It
  * contains the necessary information for each block in a random
- * access file.
+ * access file. Nodes are also the links of the buffer pool's
+ * intrusive lists, so they can be unlinked in constant time.
+ * The block data lives in a single byte array that is reused when
+ * the frame is rebound to another block, and records are read and
+ * written in place by their index within the block.
  */
 public class BufferNode {
-    private final long blockNum;
-    private List<Record> block;
+    private static final VarHandle SHORT =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private long blockNum;
+    private final byte[] data;
     private boolean mustWrite = false;
+    BufferNode prev;
+    BufferNode next;
+    // Index of the frame in its ReplacementPolicy's arrays, see FrameSlots
+    int slot = -1;
 
     /**
-     * BufferNode is defined by its block number and the list containing
-     * the block data
+     * BufferNode is defined by its block number and the byte array
+     * holding the block data
      * @param blockNum the block index in relation to the random access file
-     * @param block the list of Record objects representing the block information
+     * @param data the raw bytes of the block, 4 bytes per record
      */
-    BufferNode(long blockNum, List<Record> block){
+    BufferNode(long blockNum, byte[] data){
         this.blockNum = blockNum;
-        this.block = block;
+        this.data = data;
     }
 
     /**
@@ -32,19 +44,52 @@ public class BufferNode {
     }
 
     /**
-     * Getter for the block
-     * @return the list of Record objects representing the block
+     * Getter for the block data. Used for bulk transfers to and from
+     * the disk file
+     * @return the raw bytes of the block
      */
-    public List<Record> getBlock(){
-        return block;
+    public byte[] getData(){
+        return data;
     }
 
     /**
-     * Setter for the block. Necessary for updating block information
-     * @param b the new block to be set
+     * Getter for the key of a record in the block
+     * @param idx the index of the record within the block
+     * @return the key as a short
      */
-    public void setBlock(List<Record> b){
-        block = b;
+    public short getKey(int idx){
+        return (short)SHORT.get(data, idx * 4);
+    }
+
+    /**
+     * Getter for the value of a record in the block
+     * @param idx the index of the record within the block
+     * @return the value as a short
+     */
+    public short getValue(int idx){
+        return (short)SHORT.get(data, idx * 4 + 2);
+    }
+
+    /**
+     * Overwrites a record in the block. Does not mark the block as
+     * needing to be written
+     * @param idx the index of the record within the block
+     * @param key the new key
+     * @param value the new value
+     */
+    public void set(int idx, short key, short value){
+        SHORT.set(data, idx * 4, key);
+        SHORT.set(data, idx * 4 + 2, value);
+    }
+
+    /**
+     * Rebinds this frame to a different block so its byte array can be
+     * reused. The caller is responsible for filling the data
+     * @param b the new block number
+     */
+    void rebind(long b){
+        blockNum = b;
+        mustWrite = false;
     }
 
     /**
@@ -1,53 +1,245 @@
 package externalsort;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.List;
 
 /**
  * The BufferPoolService class serves as the mediator between the
  * Heapsort algorithm and interaction with the Random Access File.
- * Implements the Proxy design pattern.
+ * Implements the Proxy design pattern. Buffers are 4096 bytes unless a
+ * larger block size is chosen, and can be read and written with
+ * unbuffered direct I/O where the file system supports it.
  */
-public class BufferPoolService implements DiskFileService{
+public class BufferPoolService implements IndexedDiskFileService, CacheStats, RunStore, Closeable{
     private final RandomAccessFile raf;
     private final int numBuffers;
-    private final LinkedList<BufferNode> bufferPool = new LinkedList<>();
-    private int cacheHits = 0;
-    private int cacheMisses = 0;
-    private int diskWrites = 0;
-    private static final int RECORDSPERBLOCK = 1024;
+    private final BlockTable blockTable;
+    private final ReplacementPolicy policy;
+    private final int pinnedBlocks;
+    private final WriteBehindQueue writeBehind;
+    private Prefetcher prefetcher;
+    private DirectIO direct;
+    private CheckpointJournal journal;
+    private BufferNode freeFrames;
+    private int poolSize = 0;
+    private final Metrics metrics = new Metrics();
+    private int writeBehindHits = 0;
+    private final int frameSize;
+    private final int recordsPerFrame;
+    // The unit of readBlocks and writeBlocks, whatever the buffer size
+    private static final int BLOCKSIZE = 4096;
+    private static final int MAXBLOCKSIZE = 1 << 20;
 
     /**
      * BufferPoolService defined by the RandomAccessFile raf it must access
      * and the number of buffers numBuffers allowed in its buffer pool. Also
-     * contains a buffer pool as a list of BufferNodes, ints cacheHits,
-     * cacheMisses, and diskWrites to keep track of stats, and the constant
-     * variable RECORDSPERBLOCK.
+     * contains a BlockTable indexing the buffered BufferNodes by block
+     * number, the ReplacementPolicy choosing which of them to evict, a free
+     * list of evicted frames whose byte arrays are reused on the next miss,
+     * the Metrics keeping track of stats, and the constant variable
+     * BLOCKSIZE. Evicts least recently used blocks and pins none.
      * @param raf
      * @param numBuffers
      */
     public BufferPoolService(RandomAccessFile raf, int numBuffers){
+        this(raf, numBuffers, new LruPolicy(), 0);
+    }
+
+    /**
+     * BufferPoolService with a chosen replacement policy. The first
+     * pinnedBlocks blocks of the file, which hold the top levels of the
+     * heap, stay buffered from their first access until the pool is
+     * flushed and are never offered to the policy. At least one buffer is
+     * always left to the policy
+     * @param raf the RandomAccessFile to be sorted
+     * @param numBuffers the number of buffers in the pool
+     * @param policy decides which unpinned block to evict
+     * @param pinnedBlocks the number of blocks at the start of the file to pin
+     */
+    public BufferPoolService(RandomAccessFile raf, int numBuffers, ReplacementPolicy policy, int pinnedBlocks){
+        this(raf, numBuffers, policy, pinnedBlocks, 0);
+    }
+
+    /**
+     * BufferPoolService that hands dirty evicted blocks to a background
+     * writer instead of writing them on the sorting thread. Up to
+     * writeBehindFrames evicted blocks may wait to be written, on top of
+     * the numBuffers blocks in the pool. A block read again while it waits
+     * is taken back from the writer without touching the disk
+     * @param raf the RandomAccessFile to be sorted
+     * @param numBuffers the number of buffers in the pool
+     * @param policy decides which unpinned block to evict
+     * @param pinnedBlocks the number of blocks at the start of the file to pin
+     * @param writeBehindFrames the capacity of the write-behind queue, or 0
+     *                          to write evicted blocks synchronously
+     */
+    public BufferPoolService(RandomAccessFile raf, int numBuffers, ReplacementPolicy policy, int pinnedBlocks,
+                             int writeBehindFrames){
+        this(raf, numBuffers, policy, pinnedBlocks, writeBehindFrames, BLOCKSIZE);
+    }
+
+    /**
+     * BufferPoolService whose buffers hold blockSize bytes each instead of
+     * 4096, so every miss reads and every eviction writes one larger block.
+     * Pinned blocks, write-behind frames and prefetch depth all count
+     * blocks of this size. readBlocks and writeBlocks still count 4096-byte
+     * blocks, so sort engines stream the file the same way at any block
+     * size
+     * @param raf the RandomAccessFile to be sorted
+     * @param numBuffers the number of buffers in the pool
+     * @param policy decides which unpinned block to evict
+     * @param pinnedBlocks the number of blocks at the start of the file to pin
+     * @param writeBehindFrames the capacity of the write-behind queue, or 0
+     *                          to write evicted blocks synchronously
+     * @param blockSize the size of a buffer in bytes, a power of two from
+     *                  4096 to 1 MB
+     */
+    public BufferPoolService(RandomAccessFile raf, int numBuffers, ReplacementPolicy policy, int pinnedBlocks,
+                             int writeBehindFrames, int blockSize){
+        if(blockSize < BLOCKSIZE || blockSize > MAXBLOCKSIZE || Integer.bitCount(blockSize) != 1)
+            throw new IllegalArgumentException("Block size must be a power of two from 4096 to 1048576, got "
+                    + blockSize);
+        this.frameSize = blockSize;
+        this.recordsPerFrame = blockSize / 4;
         this.raf = raf;
         this.numBuffers = numBuffers;
+        this.blockTable = new BlockTable(numBuffers + 2);
+        this.policy = policy;
+        this.pinnedBlocks = Math.max(0, Math.min(pinnedBlocks, numBuffers - 1));
+        this.writeBehind = writeBehindFrames > 0 ? new WriteBehindQueue(raf.getChannel(), writeBehindFrames, blockSize) : null;
+    }
+    @Override
+    public long getCacheHits(){
+        return metrics.getCacheHits();
+    }
+    @Override
+    public long getCacheMisses(){
+        return metrics.getCacheMisses();
+    }
+    @Override
+    public long getDiskWrites(){
+        return metrics.getDiskWrites();
+    }
+
+    /**
+     * Counts the blocks read from the disk file, by the sorting thread or
+     * by the prefetcher. Misses served from the write-behind queue or by a
+     * prefetched block do not read the disk again
+     * @return the number of disk reads
+     */
+    @Override
+    public long getDiskReads(){
+        reportPrefetches();
+        return metrics.getDiskReads();
+    }
+
+    /**
+     * Getter for the detailed counters, latency histograms, block heat map
+     * and phase timings of this pool
+     * @return the metrics of this pool
+     */
+    public Metrics getMetrics(){
+        reportPrefetches();
+        return metrics;
     }
-    public int getCacheHits(){
-        return cacheHits;
+
+    /**
+     * Getter for the number of cache misses served by taking a block back
+     * from the write-behind queue, or by copying it while its write was in
+     * progress, rather than by reading the disk file
+     * @return the number of misses that did not read the disk
+     */
+    public int getWriteBehindHits(){
+        return writeBehindHits;
     }
-    public int getCacheMisses(){
-        return cacheMisses;
+
+    /**
+     * Getter for the number of blocks requested from the prefetcher
+     * @return the number of prefetches issued, or 0 without prefetching
+     */
+    public int getPrefetchIssued(){
+        return prefetcher == null ? 0 : prefetcher.getIssued();
     }
-    public int getDiskWrites(){
-        return diskWrites;
+
+    /**
+     * Getter for the number of cache misses served by a prefetched block
+     * instead of a read on the sorting thread
+     * @return the number of prefetch hits, or 0 without prefetching
+     */
+    public int getPrefetchHits(){
+        return prefetcher == null ? 0 : prefetcher.getHits();
+    }
+
+    /**
+     * Getter for the number of prefetched blocks dropped without being used
+     * @return the number of wasted prefetches, or 0 without prefetching
+     */
+    public int getPrefetchWasted(){
+        return prefetcher == null ? 0 : prefetcher.getWasted();
+    }
+
+    /**
+     * Turns on background read-ahead of the blocks named by prefetch hints.
+     * Up to depth blocks are read into spare frames on top of the
+     * numBuffers blocks in the pool
+     * @param depth the most blocks prefetched at once, or 0 to ignore hints
+     */
+    public void enablePrefetch(int depth){
+        prefetcher = depth > 0 ? new Prefetcher(raf.getChannel(), depth, frameSize) : null;
+    }
+
+    /**
+     * Turns on unbuffered reads and writes of blocks on the sorting thread,
+     * bypassing the operating system's page cache. Falls back to buffered
+     * I/O, and returns false, where the platform or file system does not
+     * support it. Write-behind, prefetching and readBlocks and writeBlocks
+     * stay buffered
+     * @param file the path of the RandomAccessFile being sorted
+     * @return true if direct I/O is in use
+     * @throws IOException if closing an earlier direct channel fails
+     */
+    public boolean enableDirectIO(Path file) throws IOException{
+        if(direct != null)
+            direct.close();
+        direct = DirectIO.open(file, frameSize);
+        return direct != null;
+    }
+
+    // Set by the CheckpointJournal that undoes this pool's writes
+    void setJournal(CheckpointJournal journal){
+        this.journal = journal;
+    }
+    FileChannel getChannel(){
+        return raf.getChannel();
+    }
+
+    /**
+     * Getter for the size of each buffer
+     * @return the block size in bytes
+     */
+    public int getBlockSize(){
+        return frameSize;
+    }
+
+    /**
+     * Getter for the number of writes the write-behind queue has issued.
+     * Each write covers a run of one or more adjacent blocks, so this is at
+     * most the number of blocks it has written
+     * @return the number of coalesced writes, or 0 without write-behind
+     */
+    public int getCoalescedWrites(){
+        return writeBehind == null ? 0 : writeBehind.getCoalescedWrites();
     }
 
     /**
      * Grabs a Record from the buffer pool if present (faster access)
-     * or reads from disk file. Updates buffer pool using the Least Recently
-     * Used method.
+     * or reads from disk file. Updates buffer pool using its
+     * ReplacementPolicy. Lookup is constant time.
      * @param heapIdx the index that the Heapsort algorithm is
      *                requesting
      * @return the requested Record at the given offset
@@ -55,26 +247,53 @@ public class BufferPoolService implements DiskFileService{
      */
     @Override
     public Record read(long heapIdx) throws IOException{
-        Record r;
-        long blockNum = heapIdx / RECORDSPERBLOCK;
-        int blockIdx = (int)(heapIdx % RECORDSPERBLOCK);
-        int bpIdx = find(blockNum);
-        if(bpIdx != -1){
-            BufferNode buffNode = bufferPool.get(bpIdx);
-            List<Record> block = buffNode.getBlock();
-            r = block.get(blockIdx);
-            bufferPool.remove(bpIdx);
-            bufferPool.add(0, buffNode);
-        } else{
-            long offset = heapIdx * 4;
-            raf.seek(offset);
-            short key = raf.readShort();
-            short value = raf.readShort();
-            r = new Record(offset, key, value);
-            cacheMissRead(blockNum);
-            resizePool();
-        }
-        return r;
+        int blockIdx = (int)(heapIdx % recordsPerFrame);
+        BufferNode buffNode = access(heapIdx / recordsPerFrame);
+        return new Record(heapIdx * 4, buffNode.getKey(blockIdx), buffNode.getValue(blockIdx));
+    }
+
+    /**
+     * Grabs the key of a record from the buffer pool if present or reads
+     * its block from the disk file. Updates the buffer pool the same way
+     * as read without creating a Record
+     * @param heapIdx the index that the Heapsort algorithm is
+     *                requesting
+     * @return the key of the record at the given index
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public short keyAt(long heapIdx) throws IOException{
+        BufferNode buffNode = access(heapIdx / recordsPerFrame);
+        return buffNode.getKey((int)(heapIdx % recordsPerFrame));
+    }
+
+    /**
+     * Grabs the value of a record from the buffer pool if present or reads
+     * its block from the disk file
+     * @param heapIdx the index that the Heapsort algorithm is
+     *                requesting
+     * @return the value of the record at the given index
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public short valueAt(long heapIdx) throws IOException{
+        BufferNode buffNode = access(heapIdx / recordsPerFrame);
+        return buffNode.getValue((int)(heapIdx % recordsPerFrame));
+    }
+
+    /**
+     * Grabs a whole record from the buffer pool if present or reads its
+     * block from the disk file, with a single lookup
+     * @param heapIdx the index that the Heapsort algorithm is
+     *                requesting
+     * @return the key in the high 16 bits and the value in the low 16 bits
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public int recordAt(long heapIdx) throws IOException{
+        BufferNode buffNode = access(heapIdx / recordsPerFrame);
+        int blockIdx = (int)(heapIdx % recordsPerFrame);
+        return (buffNode.getKey(blockIdx) << 16) | (buffNode.getValue(blockIdx) & 0xFFFF);
     }
 
     /**
@@ -84,17 +303,63 @@ public class BufferPoolService implements DiskFileService{
      */
     @Override
     public void write(BufferNode buffNode) throws IOException{
-        diskWrites++;
-        long offset = buffNode.getBlockNum() * RECORDSPERBLOCK * 4;
-        List<Record> block = buffNode.getBlock();
-        ByteBuffer bb = ByteBuffer.allocate(RECORDSPERBLOCK * 4);
-        for(int i = 0; i < RECORDSPERBLOCK; i++){
-            bb.putShort(i * 4, block.get(i).getKey());
-            bb.putShort(i * 4 + 2, block.get(i).getValue());
+        long startTime = System.nanoTime();
+        long offset = buffNode.getBlockNum() * frameSize;
+        int length = blockLength(offset);
+        if(direct == null || !direct.write(offset, buffNode.getData(), length)){
+            raf.seek(offset);
+            raf.write(buffNode.getData(), 0, length);
         }
-        byte[] byteArr = bb.array();
-        raf.seek(offset);
-        raf.write(byteArr);
+        metrics.write(1, length, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Overwrites a record in place inside its buffer, reading its block
+     * from the disk file if necessary
+     * @param heapIdx the index of the record
+     * @param key the new key
+     * @param value the new value
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void set(long heapIdx, short key, short value) throws IOException{
+        BufferNode buffNode = access(heapIdx / recordsPerFrame);
+        buffNode.set((int)(heapIdx % recordsPerFrame), key, value);
+        buffNode.setMustWrite(true);
+    }
+
+    /**
+     * Copies a record from one buffer into another, reading either block
+     * from the disk file if necessary
+     * @param fromIdx the index of the record to be copied
+     * @param toIdx the index of the record to be overwritten
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void move(long fromIdx, long toIdx) throws IOException{
+        BufferNode from = frame(fromIdx / recordsPerFrame);
+        BufferNode to = frame(toIdx / recordsPerFrame);
+        int fromOffset = (int)(fromIdx % recordsPerFrame);
+        to.set((int)(toIdx % recordsPerFrame), from.getKey(fromOffset), from.getValue(fromOffset));
+        to.setMustWrite(true);
+        resizePool();
+    }
+
+    /**
+     * Starts reading the block of the given record in the background if
+     * prefetching is enabled and the block is neither buffered nor waiting
+     * to be written
+     * @param heapIdx the index of a record expected to be read soon
+     */
+    @Override
+    public void prefetch(long heapIdx){
+        if(prefetcher == null)
+            return;
+        long blockNum = heapIdx / recordsPerFrame;
+        if(blockTable.get(blockNum) != null || (writeBehind != null && writeBehind.contains(blockNum)))
+            return;
+        prefetcher.request(blockNum);
+        reportPrefetches();
     }
 
     /**
@@ -107,45 +372,226 @@ public class BufferPoolService implements DiskFileService{
      */
     @Override
     public void swap(Record r1, Record r2) throws IOException{
-        long blockNum1 = (r1.getOffset() / 4) / RECORDSPERBLOCK;
-        long blockNum2 = (r2.getOffset() / 4) / RECORDSPERBLOCK;
-        int blockOffset1 = (int)((r1.getOffset() / 4) % RECORDSPERBLOCK);
-        int blockOffset2 = (int)((r2.getOffset() / 4) % RECORDSPERBLOCK);
-        int bpIdx1 = find(blockNum1);
+        long blockNum1 = (r1.getOffset() / 4) / recordsPerFrame;
+        long blockNum2 = (r2.getOffset() / 4) / recordsPerFrame;
+        int blockOffset1 = (int)((r1.getOffset() / 4) % recordsPerFrame);
+        int blockOffset2 = (int)((r2.getOffset() / 4) % recordsPerFrame);
+        BufferNode buffNode1 = find(blockNum1);
         long temp = r2.getOffset();
-        if(bpIdx1 == -1){
-            cacheMisses++;
-            cacheMissRead(blockNum1);
-            bpIdx1 = 0;
-        }
-        BufferNode buffNode1 = bufferPool.get(bpIdx1);
+        if(buffNode1 == null)
+            buffNode1 = cacheMissRead(blockNum1);
         if (!buffNode1.getMustWrite())
             buffNode1.setMustWrite(true);
-        List<Record> block1 = buffNode1.getBlock();
-        block1.remove(blockOffset1);
         r2.setOffset(r1.getOffset());
-        block1.add(blockOffset1, r2);
-        buffNode1.setBlock(block1);
-        bufferPool.remove(bpIdx1);
-        bufferPool.add(bpIdx1, buffNode1);
-        int bpIdx2 = find(blockNum2);
-        if(bpIdx2 == -1) {
-            cacheMissRead(blockNum2);
-            bpIdx2 = 0;
-        }
-        BufferNode buffNode2 = bufferPool.get(bpIdx2);
+        buffNode1.set(blockOffset1, r2.getKey(), r2.getValue());
+        BufferNode buffNode2 = find(blockNum2);
+        if(buffNode2 == null)
+            buffNode2 = cacheMissRead(blockNum2);
         if (!buffNode2.getMustWrite())
             buffNode2.setMustWrite(true);
-        List<Record> block2 = buffNode2.getBlock();
-        block2.remove(blockOffset2);
         r1.setOffset(temp);
-        block2.add(blockOffset2, r1);
-        buffNode2.setBlock(block2);
-        bufferPool.remove(bpIdx2);
-        bufferPool.add(bpIdx2, buffNode2);
+        buffNode2.set(blockOffset2, r1.getKey(), r1.getValue());
         resizePool();
     }
 
+    /**
+     * Swaps the records at the two given indices in place inside their
+     * buffers, reading either block from the disk file if necessary
+     * @param heapIdx1 the index of the first record to be swapped
+     * @param heapIdx2 the index of the second record to be swapped
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void swap(long heapIdx1, long heapIdx2) throws IOException{
+        BufferNode buffNode1 = frame(heapIdx1 / recordsPerFrame);
+        BufferNode buffNode2 = frame(heapIdx2 / recordsPerFrame);
+        exchange(buffNode1, (int)(heapIdx1 % recordsPerFrame), buffNode2, (int)(heapIdx2 % recordsPerFrame));
+        resizePool();
+    }
+
+    /**
+     * Compares two records of any fixed-size layout straight out of their
+     * buffers, reading either block from the disk file if necessary
+     * @param idx1 the index of the first record
+     * @param idx2 the index of the second record
+     * @param schema the layout and keys of the records
+     * @return negative, zero or positive as the first record sorts before,
+     *         with or after the second
+     * @throws IOException for RandomAccessFile operations
+     */
+    public int compareRecords(long idx1, long idx2, RecordSchema schema) throws IOException{
+        long offset1 = idx1 * schema.getRecordSize();
+        long offset2 = idx2 * schema.getRecordSize();
+        BufferNode buffNode1 = frame(offset1 / frameSize);
+        BufferNode buffNode2 = frame(offset2 / frameSize);
+        int c = schema.compare(buffNode1.getData(), (int)(offset1 % frameSize),
+                buffNode2.getData(), (int)(offset2 % frameSize));
+        resizePool();
+        return c;
+    }
+
+    /**
+     * Copies a record of any fixed size out of its buffer, reading its
+     * block from the disk file if necessary
+     * @param idx the index of the record
+     * @param recordSize the size of a record in bytes, a power of two
+     * @param dst the array receiving the record
+     * @param dstOffset the byte offset in dst to copy it to
+     * @throws IOException for RandomAccessFile operations
+     */
+    public void readRecord(long idx, int recordSize, byte[] dst, int dstOffset) throws IOException{
+        long offset = idx * recordSize;
+        BufferNode buffNode = access(offset / frameSize);
+        System.arraycopy(buffNode.getData(), (int)(offset % frameSize), dst, dstOffset, recordSize);
+    }
+
+    /**
+     * Swaps two records of any fixed size in place inside their buffers,
+     * reading either block from the disk file if necessary
+     * @param idx1 the index of the first record
+     * @param idx2 the index of the second record
+     * @param recordSize the size of a record in bytes, a power of two
+     * @throws IOException for RandomAccessFile operations
+     */
+    public void swapRecords(long idx1, long idx2, int recordSize) throws IOException{
+        long offset1 = idx1 * recordSize;
+        long offset2 = idx2 * recordSize;
+        BufferNode buffNode1 = frame(offset1 / frameSize);
+        BufferNode buffNode2 = frame(offset2 / frameSize);
+        byte[] data1 = buffNode1.getData();
+        byte[] data2 = buffNode2.getData();
+        int i1 = (int)(offset1 % frameSize);
+        int i2 = (int)(offset2 % frameSize);
+        for(int i = 0; i < recordSize; i++){
+            byte temp = data1[i1 + i];
+            data1[i1 + i] = data2[i2 + i];
+            data2[i2 + i] = temp;
+        }
+        buffNode1.setMustWrite(true);
+        buffNode2.setMustWrite(true);
+        resizePool();
+    }
+
+    /**
+     * Swaps the records at the two given indices if the key at heapIdx2
+     * is greater than the key at heapIdx1. Both keys are compared straight
+     * out of their buffers
+     * @param heapIdx1 the index of the parent record
+     * @param heapIdx2 the index of the child record
+     * @return true if the records were swapped, false otherwise
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public boolean compareAndSwapIfGreater(long heapIdx1, long heapIdx2) throws IOException{
+        BufferNode buffNode1 = frame(heapIdx1 / recordsPerFrame);
+        BufferNode buffNode2 = frame(heapIdx2 / recordsPerFrame);
+        int blockOffset1 = (int)(heapIdx1 % recordsPerFrame);
+        int blockOffset2 = (int)(heapIdx2 % recordsPerFrame);
+        boolean swapped = buffNode2.getKey(blockOffset2) > buffNode1.getKey(blockOffset1);
+        if(swapped)
+            exchange(buffNode1, blockOffset1, buffNode2, blockOffset2);
+        resizePool();
+        return swapped;
+    }
+
+    /**
+     * Reads consecutive blocks straight from the disk file without going
+     * through the buffer pool. Used by sort engines that stream the file
+     * sequentially; the pool must be flushed before mixing the two. Waits
+     * for any pending write-behind first. Every block read counts as a
+     * cache miss
+     * @param blockNum the first block to be read
+     * @param dst the array receiving the blocks
+     * @param numBlocks the number of blocks to be read
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void readBlocks(long blockNum, byte[] dst, int numBlocks) throws IOException{
+        drainWrites();
+        for(int i = 0; i < numBlocks; i++)
+            metrics.miss(blockNum + i);
+        long startTime = System.nanoTime();
+        raf.seek(blockNum * BLOCKSIZE);
+        raf.readFully(dst, 0, numBlocks * BLOCKSIZE);
+        metrics.read(numBlocks, (long)numBlocks * BLOCKSIZE, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Writes consecutive blocks straight to the disk file without going
+     * through the buffer pool. Waits for pending write-behind and drops any
+     * prefetched blocks first. Every block written counts as a disk write
+     * @param blockNum the first block to be written
+     * @param src the array holding the blocks
+     * @param numBlocks the number of blocks to be written
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void writeBlocks(long blockNum, byte[] src, int numBlocks) throws IOException{
+        drainWrites();
+        cancelPrefetch();
+        long startTime = System.nanoTime();
+        raf.seek(blockNum * BLOCKSIZE);
+        raf.write(src, 0, numBlocks * BLOCKSIZE);
+        metrics.write(numBlocks, (long)numBlocks * BLOCKSIZE, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Reads consecutive records straight from the disk file without going
+     * through the buffer pool. Used to read back regions that do not line
+     * up with block boundaries; the pool must be flushed before mixing the
+     * two. Waits for pending write-behind first. Every block the records
+     * span counts as a cache miss
+     * @param heapIdx the index of the first record to be read
+     * @param dst the array receiving the records
+     * @param dstOffset the byte offset of the first record in dst
+     * @param numRecords the number of records to be read
+     * @throws IOException for RandomAccessFile operations
+     */
+    public void readRecords(long heapIdx, byte[] dst, int dstOffset, int numRecords) throws IOException{
+        if(numRecords == 0)
+            return;
+        drainWrites();
+        long firstBlock = heapIdx * 4 / BLOCKSIZE;
+        long lastBlock = ((heapIdx + numRecords) * 4 - 1) / BLOCKSIZE;
+        for(long blockNum = firstBlock; blockNum <= lastBlock; blockNum++)
+            metrics.miss(blockNum);
+        long startTime = System.nanoTime();
+        raf.seek(heapIdx * 4);
+        raf.readFully(dst, dstOffset, numRecords * 4);
+        metrics.read((int)(lastBlock - firstBlock + 1), numRecords * 4L, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Writes consecutive records straight to the disk file without going
+     * through the buffer pool. Used to flush partially filled buffers that
+     * do not line up with block boundaries. Waits for pending write-behind
+     * and drops any prefetched blocks first. Each call counts as one disk
+     * write
+     * @param heapIdx the index of the first record to be written
+     * @param src the array holding the records
+     * @param srcOffset the byte offset of the first record in src
+     * @param numRecords the number of records to be written
+     * @throws IOException for RandomAccessFile operations
+     */
+    public void writeRecords(long heapIdx, byte[] src, int srcOffset, int numRecords) throws IOException{
+        drainWrites();
+        cancelPrefetch();
+        long startTime = System.nanoTime();
+        raf.seek(heapIdx * 4);
+        raf.write(src, srcOffset, numRecords * 4);
+        metrics.write(1, numRecords * 4L, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Used to determine indexing
+     * @return the number of records in the RandomAccessFile
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public long numRecords() throws IOException {
+        return raf.length() / 4;
+    }
+
     /**
      * Used to determine indexing
      * @return the length of the RandomAccessFile
@@ -159,46 +605,176 @@ public class BufferPoolService implements DiskFileService{
     /**
      * The buffer pool must be flushed after the Heapsort algorithm is
      * finished. This is to ensure all blocks are being written to the
-     * random access file
+     * random access file. With write-behind, waits until the writer has
+     * written every evicted block
      * @throws IOException for RandomAccessFile operations
      */
     @Override
     public void flush() throws IOException{
-        while(!bufferPool.isEmpty()){
-            BufferNode last = bufferPool.getLast();
-            if(last.getMustWrite())
-                write(last);
-            bufferPool.removeLast();
+        BufferNode buffNode;
+        while((buffNode = policy.victim()) != null)
+            evict(buffNode);
+        for(long b = 0; b < pinnedBlocks; b++){
+            buffNode = blockTable.get(b);
+            if(buffNode != null)
+                evict(buffNode);
+        }
+        drainWrites();
+    }
+    /**
+     * Writes every dirty buffer to the disk file in block order, leaving
+     * it buffered and clean, and waits for pending write-behind. Used to
+     * take a checkpoint without emptying the pool
+     * @throws IOException for RandomAccessFile operations
+     */
+    void writeDirty() throws IOException{
+        List<BufferNode> dirty = blockTable.residents();
+        dirty.removeIf(buffNode -> !buffNode.getMustWrite());
+        dirty.sort(Comparator.comparingLong(BufferNode::getBlockNum));
+        for(BufferNode buffNode : dirty){
+            journal(buffNode);
+            write(buffNode);
+            buffNode.setMustWrite(false);
         }
+        drainWrites();
     }
-    private int find(long blockNum){
-        for(int i = 0; i < bufferPool.size(); i++){
-            if(blockNum == bufferPool.get(i).getBlockNum()){
-                cacheHits++;
-                return i;
+
+    /**
+     * Flushes the buffer pool, drops any prefetched blocks and closes the
+     * direct I/O channel, if any. The RandomAccessFile is left open for its
+     * owner
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void close() throws IOException{
+        flush();
+        cancelPrefetch();
+        if(direct != null){
+            direct.close();
+            direct = null;
+        }
+    }
+
+    // The last block of a file that is not a whole number of blocks is
+    // read and written only up to the end of the file
+    private int blockLength(long offset) throws IOException{
+        return (int)Math.max(0, Math.min(frameSize, raf.length() - offset));
+    }
+    // The journal keeps the block's contents as of the last checkpoint
+    // before the block is first overwritten
+    private void journal(BufferNode buffNode) throws IOException{
+        if(journal != null){
+            long offset = buffNode.getBlockNum() * frameSize;
+            journal.beforeWrite(offset, blockLength(offset));
+        }
+    }
+    private void cancelPrefetch() throws IOException{
+        if(prefetcher != null)
+            prefetcher.cancel();
+        reportPrefetches();
+    }
+    // Background reads are recorded here, on the sorting thread, because
+    // Metrics is not thread-safe
+    private void reportPrefetches(){
+        if(prefetcher != null)
+            prefetcher.report(metrics);
+    }
+    private void drainWrites() throws IOException{
+        if(writeBehind != null)
+            writeBehind.drain();
+    }
+    private BufferNode find(long blockNum){
+        BufferNode buffNode = blockTable.get(blockNum);
+        if(buffNode != null)
+            metrics.hit(blockNum);
+        else
+            metrics.miss(blockNum);
+        return buffNode;
+    }
+    private BufferNode access(long blockNum) throws IOException{
+        BufferNode buffNode = frame(blockNum);
+        resizePool();
+        return buffNode;
+    }
+    private BufferNode frame(long blockNum) throws IOException{
+        BufferNode buffNode = find(blockNum);
+        if(buffNode == null)
+            buffNode = cacheMissRead(blockNum);
+        else if(blockNum >= pinnedBlocks)
+            policy.access(buffNode);
+        return buffNode;
+    }
+    private void exchange(BufferNode buffNode1, int blockOffset1, BufferNode buffNode2, int blockOffset2){
+        short key = buffNode1.getKey(blockOffset1);
+        short value = buffNode1.getValue(blockOffset1);
+        buffNode1.set(blockOffset1, buffNode2.getKey(blockOffset2), buffNode2.getValue(blockOffset2));
+        buffNode2.set(blockOffset2, key, value);
+        buffNode1.setMustWrite(true);
+        buffNode2.setMustWrite(true);
+    }
+    private BufferNode cacheMissRead(long blockNum) throws IOException{
+        BufferNode buffNode = writeBehind == null ? null : writeBehind.takeBack(blockNum);
+        if(buffNode != null){
+            // Its write was counted when it was queued but never happens
+            writeBehindHits++;
+            metrics.cancelWrite(frameSize);
+        } else{
+            buffNode = freeFrame(blockNum);
+            BufferNode prefetched;
+            if(writeBehind != null && writeBehind.copyInFlight(blockNum, buffNode.getData())){
+                writeBehindHits++;
+            } else if(prefetcher != null && (prefetched = prefetcher.take(blockNum, buffNode)) != null){
+                buffNode = prefetched;
+                reportPrefetches();
+            } else{
+                long startTime = System.nanoTime();
+                long offset = blockNum * frameSize;
+                int length = blockLength(offset);
+                if(direct == null || !direct.read(offset, buffNode.getData(), length)){
+                    raf.seek(offset);
+                    raf.readFully(buffNode.getData(), 0, length);
+                }
+                metrics.read(1, length, System.nanoTime() - startTime);
             }
         }
-        cacheMisses++;
-        return -1;
-    }
-    private void cacheMissRead(long blockNum) throws IOException{
-        byte[] byteArr = new byte[RECORDSPERBLOCK * 4];
-        raf.seek(blockNum * RECORDSPERBLOCK * 4);
-        raf.read(byteArr);
-        ByteBuffer bb = ByteBuffer.wrap(byteArr);
-        List<Record> block = new ArrayList<>();
-        for(int i = 0; i < RECORDSPERBLOCK; i++){
-            long recOffset = (blockNum * RECORDSPERBLOCK + i) * 4;
-            block.add(new Record(recOffset, bb.getShort(i * 4), bb.getShort(i * 4 + 2)));
+        blockTable.put(blockNum, buffNode);
+        poolSize++;
+        if(blockNum >= pinnedBlocks)
+            policy.admit(buffNode);
+        return buffNode;
+    }
+    private BufferNode freeFrame(long blockNum){
+        BufferNode buffNode = freeFrames;
+        if(buffNode != null){
+            freeFrames = buffNode.next;
+        } else if(writeBehind == null || (buffNode = writeBehind.reclaim()) == null){
+            return new BufferNode(blockNum, new byte[frameSize]);
         }
-        bufferPool.add(0, new BufferNode(blockNum, block));
+        buffNode.rebind(blockNum);
+        return buffNode;
     }
     private void resizePool() throws IOException{
-        while(bufferPool.size() > numBuffers){
-            BufferNode last = bufferPool.getLast();
-            if(last.getMustWrite())
-                write(last);
-            bufferPool.removeLast();
+        while(poolSize > numBuffers){
+            BufferNode buffNode = policy.victim();
+            if(buffNode == null)
+                break;
+            evict(buffNode);
+        }
+    }
+    private void evict(BufferNode buffNode) throws IOException{
+        blockTable.remove(buffNode.getBlockNum());
+        poolSize--;
+        metrics.evict(buffNode.getMustWrite());
+        if(buffNode.getMustWrite()){
+            journal(buffNode);
+            if(writeBehind != null){
+                metrics.queueWrite(frameSize);
+                writeBehind.enqueue(buffNode);
+                return;
+            }
+            write(buffNode);
         }
+        buffNode.next = freeFrames;
+        freeFrames = buffNode;
     }
 }
@@ -0,0 +1,35 @@
+package externalsort;
+
+/**
+ * The CacheStats interface is implemented by every DiskFileService that
+ * can report the buffer statistics printed after the STATS line, so the
+ * Driver can compare different services on the same file.
+ */
+public interface CacheStats {
+    /**
+     * Getter for the number of accesses served without going to disk
+     * @return the number of cache hits
+     */
+    long getCacheHits();
+
+    /**
+     * Getter for the number of accesses that had to go to disk
+     * @return the number of cache misses
+     */
+    long getCacheMisses();
+
+    /**
+     * Getter for the number of blocks written to disk
+     * @return the number of disk writes
+     */
+    long getDiskWrites();
+
+    /**
+     * Getter for the number of blocks read from disk. Services that can
+     * serve a miss without reading the disk override this
+     * @return the number of disk reads
+     */
+    default long getDiskReads(){
+        return getCacheMisses();
+    }
+}
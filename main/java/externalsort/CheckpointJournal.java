@@ -0,0 +1,321 @@
+package externalsort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The CheckpointJournal class makes an in-place heapsort through a
+ * BufferPoolService crash-safe and resumable. It keeps two files next to
+ * the file being sorted. The .ckpt file names the last checkpoint: the
+ * phase of the sort, the next index of that phase and a sequence number,
+ * under a CRC32, and is replaced atomically. The .journal file is an undo
+ * log: before a buffer is written over a block for the first time since
+ * the last checkpoint, the block's contents as of that checkpoint are
+ * appended to the journal and forced to the device. Opening the journal
+ * of an interrupted sort copies those contents back, which returns the
+ * file to its state at the last checkpoint, and the sort resumes there.
+ * A checkpoint writes the pool's dirty buffers in block order, so it
+ * costs at most one write per buffer, and between checkpoints each block
+ * costs at most one extra read and journal entry. Only writes of the
+ * pool's buffers are journaled, not readBlocks and writeBlocks.
+ */
+public class CheckpointJournal implements Closeable {
+    /**
+     * Where a checkpoint was taken: before the sort started, or before
+     * the given index of the build or sort loop
+     */
+    public enum Phase {START, BUILD, SORT}
+
+    private static final int MAGIC = 0x48534350;
+    // Magic, sequence, phase, index, heap length, arity, file length, CRC
+    private static final int CHECKPOINTSIZE = 4 + 8 + 4 + 8 + 8 + 4 + 8 + 4;
+    // Sequence, offset and length ahead of each block, CRC after it
+    private static final int ENTRYHEADER = 8 + 8 + 4;
+    private final File checkpointFile;
+    private final File journalFile;
+    private final BufferPoolService pool;
+    private final FileChannel data;
+    private final FileChannel journal;
+    private final Set<Long> journaled = new HashSet<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer entry = ByteBuffer.allocate(ENTRYHEADER + 4096 + 4);
+    private long sequence = 0;
+    private Phase phase = Phase.START;
+    private long index = 0;
+    private long length = 0;
+    private int arity = 0;
+    private boolean resumed = false;
+    private int checkpoints = 0;
+    private long journalBytes = 0;
+
+    private CheckpointJournal(File file, BufferPoolService pool) throws IOException{
+        this.checkpointFile = new File(file.getPath() + ".ckpt");
+        this.journalFile = new File(file.getPath() + ".journal");
+        this.pool = pool;
+        this.data = pool.getChannel();
+        this.journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the journal of a file about to be sorted. If an earlier sort of
+     * the file was interrupted, the file is first restored to that sort's
+     * last checkpoint. Must be called before the pool reads anything
+     * @param file the path of the file being sorted
+     * @param pool the pool the file is sorted through, whose writes are
+     *             journaled from now on
+     * @return the journal, resumed if a checkpoint was found
+     * @throws IOException if the sidecar files cannot be read or written,
+     *                     or the checkpoint is corrupt or for another file
+     */
+    public static CheckpointJournal open(File file, BufferPoolService pool) throws IOException{
+        CheckpointJournal cj = new CheckpointJournal(file, pool);
+        try{
+            if(cj.checkpointFile.exists()){
+                cj.readCheckpoint();
+                cj.recover();
+                cj.resumed = true;
+            } else{
+                cj.writeCheckpoint();
+            }
+        } catch(IOException | RuntimeException e){
+            cj.journal.close();
+            throw e;
+        }
+        pool.setJournal(cj);
+        return cj;
+    }
+
+    /**
+     * Whether the sort resumes an interrupted one
+     * @return true if a checkpoint was found when the journal was opened
+     */
+    public boolean isResumed(){
+        return resumed;
+    }
+
+    /**
+     * Getter for the phase of the last checkpoint
+     * @return the phase, START if the sort has not checkpointed yet
+     */
+    public Phase getPhase(){
+        return phase;
+    }
+
+    /**
+     * Getter for the next index of the phase of the last checkpoint
+     * @return the index of the build or sort loop to resume at
+     */
+    public long getIndex(){
+        return index;
+    }
+
+    /**
+     * Getter for the number of records being heapsorted at the last
+     * checkpoint
+     * @return the heap length, or 0 before the first checkpoint
+     */
+    public long getLength(){
+        return length;
+    }
+
+    /**
+     * Getter for the heap arity of the last checkpoint
+     * @return the arity, or 0 before the first checkpoint
+     */
+    public int getArity(){
+        return arity;
+    }
+
+    /**
+     * Getter for the number of checkpoints taken since the journal was
+     * opened
+     * @return the number of checkpoints
+     */
+    public int getCheckpoints(){
+        return checkpoints;
+    }
+
+    /**
+     * Getter for the bytes appended to the journal since it was opened
+     * @return the journal bytes written
+     */
+    public long getJournalBytes(){
+        return journalBytes;
+    }
+
+    /**
+     * Writes the pool's dirty buffers and records that the sort can resume
+     * from here
+     * @param phase the loop the sort is in
+     * @param index the next index of that loop
+     * @param length the number of records being heapsorted
+     * @param arity the number of children of each heap node
+     * @throws IOException for file operations
+     */
+    void checkpoint(Phase phase, long index, long length, int arity) throws IOException{
+        pool.writeDirty();
+        data.force(false);
+        this.phase = phase;
+        this.index = index;
+        this.length = length;
+        this.arity = arity;
+        writeCheckpoint();
+        checkpoints++;
+    }
+
+    /**
+     * Appends the current contents of a block to the journal, unless it
+     * is already there for this checkpoint, so it can be restored if the
+     * sort is interrupted after the block is overwritten
+     * @param offset the byte offset of the block
+     * @param blockLength the length of the block in bytes
+     * @throws IOException for file operations
+     */
+    void beforeWrite(long offset, int blockLength) throws IOException{
+        if(!journaled.add(offset))
+            return;
+        int size = ENTRYHEADER + blockLength + 4;
+        if(entry.capacity() < size)
+            entry = ByteBuffer.allocate(size);
+        entry.clear();
+        entry.putLong(sequence).putLong(offset).putInt(blockLength);
+        entry.limit(ENTRYHEADER + blockLength);
+        while(entry.hasRemaining()){
+            if(data.read(entry, offset + entry.position() - ENTRYHEADER) < 0)
+                throw new IOException("Block at " + offset + " ends past the end of the file");
+        }
+        crc.reset();
+        crc.update(entry.array(), 0, ENTRYHEADER + blockLength);
+        entry.limit(size);
+        entry.putInt((int)crc.getValue());
+        entry.flip();
+        long position = journal.size();
+        while(entry.hasRemaining())
+            journal.write(entry, position + entry.position());
+        journal.force(false);
+        journalBytes += size;
+    }
+
+    /**
+     * Deletes the checkpoint and the journal once the sorted file is on the
+     * device
+     * @throws IOException for file operations
+     */
+    public void finish() throws IOException{
+        data.force(false);
+        journal.close();
+        Files.deleteIfExists(checkpointFile.toPath());
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    /**
+     * Closes the journal without deleting it, so an unfinished sort can
+     * still be resumed
+     * @throws IOException for file operations
+     */
+    @Override
+    public void close() throws IOException{
+        journal.close();
+    }
+
+    // Replaces the checkpoint file, then empties the journal, whose
+    // entries belong to the checkpoint just replaced
+    private void writeCheckpoint() throws IOException{
+        sequence++;
+        ByteBuffer bb = ByteBuffer.allocate(CHECKPOINTSIZE);
+        bb.putInt(MAGIC).putLong(sequence).putInt(phase.ordinal()).putLong(index).putLong(length).putInt(arity)
+                .putLong(data.size());
+        crc.reset();
+        crc.update(bb.array(), 0, bb.position());
+        bb.putInt((int)crc.getValue());
+        bb.flip();
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try(FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            while(bb.hasRemaining())
+                out.write(bb);
+            out.force(false);
+        }
+        try{
+            Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e){
+            Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        forceDirectory();
+        journal.truncate(0);
+        journal.force(false);
+        journaled.clear();
+    }
+    private void readCheckpoint() throws IOException{
+        ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath()));
+        if(bb.capacity() != CHECKPOINTSIZE || bb.getInt(0) != MAGIC)
+            throw new IOException(checkpointFile + " is not a checkpoint");
+        crc.reset();
+        crc.update(bb.array(), 0, CHECKPOINTSIZE - 4);
+        if(bb.getInt(CHECKPOINTSIZE - 4) != (int)crc.getValue())
+            throw new IOException(checkpointFile + " is corrupt");
+        bb.position(4);
+        sequence = bb.getLong();
+        phase = Phase.values()[bb.getInt()];
+        index = bb.getLong();
+        length = bb.getLong();
+        arity = bb.getInt();
+        long fileLength = bb.getLong();
+        if(fileLength != data.size())
+            throw new IOException(checkpointFile + " is for a file of " + fileLength + " bytes, not "
+                    + data.size());
+    }
+
+    // Copies back every intact entry of the current checkpoint. An entry
+    // torn by the interruption was never followed by its block's write
+    private void recover() throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(ENTRYHEADER);
+        long position = 0;
+        long end = journal.size();
+        while(position + ENTRYHEADER <= end){
+            header.clear();
+            journal.read(header, position);
+            long entrySequence = header.getLong(0);
+            long offset = header.getLong(8);
+            int blockLength = header.getInt(16);
+            if(blockLength < 0 || position + ENTRYHEADER + blockLength + 4 > end)
+                break;
+            ByteBuffer bb = ByteBuffer.allocate(ENTRYHEADER + blockLength + 4);
+            while(bb.hasRemaining() && journal.read(bb, position + bb.position()) >= 0);
+            crc.reset();
+            crc.update(bb.array(), 0, ENTRYHEADER + blockLength);
+            if(bb.getInt(ENTRYHEADER + blockLength) != (int)crc.getValue())
+                break;
+            if(entrySequence == sequence){
+                bb.position(ENTRYHEADER).limit(ENTRYHEADER + blockLength);
+                while(bb.hasRemaining())
+                    data.write(bb, offset + bb.position() - ENTRYHEADER);
+            }
+            position += bb.capacity();
+        }
+        data.force(false);
+        journal.truncate(0);
+        journal.force(false);
+    }
+
+    // Makes the checkpoint's rename durable where directories can be forced
+    private void forceDirectory(){
+        File dir = checkpointFile.getAbsoluteFile().getParentFile();
+        try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)){
+            channel.force(true);
+        } catch(IOException e){
+            // Not supported on this platform
+        }
+    }
+}
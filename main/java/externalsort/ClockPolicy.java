@@ -0,0 +1,60 @@
+package externalsort;
+
+import java.util.Arrays;
+
+/**
+ * The ClockPolicy class is the CLOCK (second chance) replacement scheme.
+ * Frames sit on a circular list swept by a clock hand. A hit only sets the
+ * frame's reference bit; the hand clears set bits as it passes and evicts
+ * the first frame whose bit is already clear. New frames start with a clear
+ * bit just behind the hand, so a block read once and never again is evicted
+ * before blocks that keep being reused. Reference bits are kept by frame
+ * slot.
+ */
+class ClockPolicy implements ReplacementPolicy {
+    private final FrameSlots slots = new FrameSlots();
+    private boolean[] referenced = new boolean[16];
+    private BufferNode hand;
+
+    @Override
+    public void admit(BufferNode buffNode){
+        int slot = slots.of(buffNode);
+        if(slot >= referenced.length)
+            referenced = Arrays.copyOf(referenced, Math.max(slot + 1, referenced.length * 2));
+        referenced[slot] = false;
+        if(hand == null){
+            buffNode.prev = buffNode;
+            buffNode.next = buffNode;
+            hand = buffNode;
+            return;
+        }
+        buffNode.next = hand;
+        buffNode.prev = hand.prev;
+        hand.prev.next = buffNode;
+        hand.prev = buffNode;
+    }
+    @Override
+    public void access(BufferNode buffNode){
+        referenced[buffNode.slot] = true;
+    }
+    @Override
+    public BufferNode victim(){
+        if(hand == null)
+            return null;
+        while(referenced[hand.slot]){
+            referenced[hand.slot] = false;
+            hand = hand.next;
+        }
+        BufferNode buffNode = hand;
+        if(buffNode.next == buffNode){
+            hand = null;
+        } else{
+            buffNode.prev.next = buffNode.next;
+            buffNode.next.prev = buffNode.prev;
+            hand = buffNode.next;
+        }
+        buffNode.prev = null;
+        buffNode.next = null;
+        return buffNode;
+    }
+}
@@ -0,0 +1,235 @@
+package externalsort;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The CompressedRunFile class is a run store that keeps every 4096-byte
+ * block compressed on disk. A block is stored as its first record and the
+ * zigzag-encoded differences between neighbouring records, bit-packed at
+ * the width of the largest difference (delta and frame-of-reference
+ * encoding). The blocks of a sorted run have small non-negative
+ * differences, so each record takes little more than the log of the
+ * average gap between keys instead of 32 bits; blocks that are not sorted
+ * still round-trip, only less compactly. Blocks are appended in order
+ * through a write buffer, and an in-memory index of their offsets lets
+ * any block be read and decoded on its own, so runs are still read one
+ * block at a time. Writing block 0 starts the file over, as every run
+ * generation and merge pass does.
+ */
+class CompressedRunFile implements RunStore {
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    // First record and bit width, then at most 32 bits per difference
+    private static final int MAXENCODED = 5 + (RECORDSPERBLOCK - 1) * 4;
+    private static final int WRITEBUFFER = 64 * BLOCKSIZE;
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final FileChannel channel;
+    private final byte[] writeBuffer = new byte[WRITEBUFFER];
+    private byte[] readBuffer = new byte[MAXENCODED];
+    // offsets[b] is where block b starts, offsets[numBlocks] the end
+    private long[] offsets = new long[1025];
+    private long numBlocks = 0;
+    private int pending = 0;
+    private long blocksRead = 0;
+    private long blocksWritten = 0;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+    private long codecNanos = 0;
+
+    /**
+     * CompressedRunFile defined by the spill file it keeps its blocks in
+     * @param raf the spill file, whose previous contents are ignored
+     */
+    CompressedRunFile(RandomAccessFile raf){
+        this.channel = raf.getChannel();
+    }
+    @Override
+    public long getCacheHits(){
+        return 0;
+    }
+    @Override
+    public long getCacheMisses(){
+        return blocksRead;
+    }
+    @Override
+    public long getDiskWrites(){
+        return blocksWritten;
+    }
+
+    /**
+     * Getter for the compressed bytes read back from the file
+     * @return the bytes read
+     */
+    long getBytesRead(){
+        return bytesRead;
+    }
+
+    /**
+     * Getter for the compressed bytes written to the file
+     * @return the bytes written
+     */
+    long getBytesWritten(){
+        return bytesWritten;
+    }
+
+    /**
+     * Getter for the time spent encoding and decoding blocks
+     * @return the codec time in nanoseconds
+     */
+    long getCodecNanos(){
+        return codecNanos;
+    }
+
+    /**
+     * Compresses blocks onto the end of the file
+     * @param blockNum the first block to be written, which must follow the
+     *                 last block written, or 0 to start the file over
+     * @param src the array holding the blocks
+     * @param numBlocks the number of blocks to be written
+     * @throws IOException for file operations
+     */
+    @Override
+    public void writeBlocks(long blockNum, byte[] src, int numBlocks) throws IOException{
+        if(blockNum == 0){
+            this.numBlocks = 0;
+            pending = 0;
+        }
+        if(blockNum != this.numBlocks)
+            throw new IllegalArgumentException("Block " + blockNum + " is not the next block of the run file");
+        for(int i = 0; i < numBlocks; i++){
+            if(pending + MAXENCODED > WRITEBUFFER)
+                flushWrites();
+            long startTime = System.nanoTime();
+            int length = encode(src, i * BLOCKSIZE, writeBuffer, pending);
+            codecNanos += System.nanoTime() - startTime;
+            pending += length;
+            if(this.numBlocks + 1 == offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[(int)this.numBlocks + 1] = offsets[(int)this.numBlocks] + length;
+            this.numBlocks++;
+        }
+        blocksWritten += numBlocks;
+    }
+
+    /**
+     * Reads and decompresses blocks
+     * @param blockNum the first block to be read
+     * @param dst the array receiving the blocks
+     * @param numBlocks the number of blocks to be read
+     * @throws IOException for file operations
+     */
+    @Override
+    public void readBlocks(long blockNum, byte[] dst, int numBlocks) throws IOException{
+        if(blockNum < 0 || blockNum + numBlocks > this.numBlocks)
+            throw new IllegalArgumentException("Blocks " + blockNum + " to " + (blockNum + numBlocks - 1)
+                    + " have not been written");
+        flushWrites();
+        long start = offsets[(int)blockNum];
+        int length = (int)(offsets[(int)blockNum + numBlocks] - start);
+        if(readBuffer.length < length)
+            readBuffer = new byte[Math.max(length, 2 * readBuffer.length)];
+        ByteBuffer bb = ByteBuffer.wrap(readBuffer, 0, length);
+        while(bb.hasRemaining()){
+            if(channel.read(bb, start + bb.position()) < 0)
+                throw new EOFException("Run file ends before block " + blockNum);
+        }
+        long startTime = System.nanoTime();
+        int offset = 0;
+        for(int i = 0; i < numBlocks; i++)
+            offset += decode(readBuffer, offset, dst, i * BLOCKSIZE);
+        codecNanos += System.nanoTime() - startTime;
+        blocksRead += numBlocks;
+        bytesRead += length;
+    }
+    private void flushWrites() throws IOException{
+        if(pending == 0)
+            return;
+        long position = offsets[(int)numBlocks] - pending;
+        ByteBuffer bb = ByteBuffer.wrap(writeBuffer, 0, pending);
+        while(bb.hasRemaining())
+            channel.write(bb, position + bb.position());
+        bytesWritten += pending;
+        pending = 0;
+    }
+
+    /**
+     * Compresses one block of records
+     * @param src the array holding the block
+     * @param srcOffset the byte offset of the block in src
+     * @param dst the array receiving the encoded block
+     * @param dstOffset the byte offset to encode it at
+     * @return the length of the encoded block in bytes
+     */
+    static int encode(byte[] src, int srcOffset, byte[] dst, int dstOffset){
+        int first = (int)INT.get(src, srcOffset);
+        int prev = first;
+        int bits = 0;
+        for(int i = 1; i < RECORDSPERBLOCK; i++){
+            int record = (int)INT.get(src, srcOffset + i * 4);
+            int delta = record - prev;
+            bits |= (delta << 1) ^ (delta >> 31);
+            prev = record;
+        }
+        int width = 32 - Integer.numberOfLeadingZeros(bits);
+        INT.set(dst, dstOffset, first);
+        dst[dstOffset + 4] = (byte)width;
+        int p = dstOffset + 5;
+        long acc = 0;
+        int accBits = 0;
+        prev = first;
+        for(int i = 1; i < RECORDSPERBLOCK; i++){
+            int record = (int)INT.get(src, srcOffset + i * 4);
+            int delta = record - prev;
+            acc |= (((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL) << accBits;
+            accBits += width;
+            while(accBits >= 8){
+                dst[p++] = (byte)acc;
+                acc >>>= 8;
+                accBits -= 8;
+            }
+            prev = record;
+        }
+        if(accBits > 0)
+            dst[p++] = (byte)acc;
+        return p - dstOffset;
+    }
+
+    /**
+     * Decompresses one block of records
+     * @param src the array holding the encoded block
+     * @param srcOffset the byte offset of the encoded block in src
+     * @param dst the array receiving the block
+     * @param dstOffset the byte offset to decode it at
+     * @return the length of the encoded block in bytes
+     */
+    static int decode(byte[] src, int srcOffset, byte[] dst, int dstOffset){
+        int record = (int)INT.get(src, srcOffset);
+        int width = src[srcOffset + 4];
+        long mask = (1L << width) - 1;
+        INT.set(dst, dstOffset, record);
+        int p = srcOffset + 5;
+        long acc = 0;
+        int accBits = 0;
+        for(int i = 1; i < RECORDSPERBLOCK; i++){
+            while(accBits < width){
+                acc |= (src[p++] & 0xFFL) << accBits;
+                accBits += 8;
+            }
+            int zigzag = (int)(acc & mask);
+            acc >>>= width;
+            accBits -= width;
+            record += (zigzag >>> 1) ^ -(zigzag & 1);
+            INT.set(dst, dstOffset + i * 4, record);
+        }
+        return (width * (RECORDSPERBLOCK - 1) + 7) / 8 + 5;
+    }
+}
@@ -0,0 +1,307 @@
+package externalsort;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * The ConcurrentBufferPoolService class is the thread-safe counterpart of
+ * BufferPoolService. It gives one file access to a SharedBufferPool that
+ * may also be serving other files, locking only the stripes of the blocks
+ * each operation touches. Operations on two blocks lock both stripes in a
+ * fixed order so concurrent swaps cannot deadlock. Statistics are kept in
+ * LongAdders so counting does not become a point of contention; the
+ * pool-wide Metrics are kept by the SharedBufferPool.
+ */
+public class ConcurrentBufferPoolService implements IndexedDiskFileService, CacheStats, Closeable{
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private final SharedBufferPool pool;
+    private final SharedBufferPool.FileState file;
+
+    /**
+     * ConcurrentBufferPoolService defined by the pool it shares and the
+     * channel of the file it serves
+     * @param pool the buffer pool shared with other services
+     * @param channel the channel used for the file's positional I/O
+     */
+    public ConcurrentBufferPoolService(SharedBufferPool pool, FileChannel channel){
+        this.pool = pool;
+        this.file = pool.register(channel);
+    }
+    @Override
+    public long getCacheHits(){
+        return file.cacheHits.sum();
+    }
+    @Override
+    public long getCacheMisses(){
+        return file.cacheMisses.sum();
+    }
+    @Override
+    public long getDiskWrites(){
+        return file.diskWrites.sum();
+    }
+
+    /**
+     * Grabs a Record from the shared buffer pool if present or reads its
+     * block from the disk file
+     * @param heapIdx the index that the Heapsort algorithm is
+     *                requesting
+     * @return the requested Record at the given offset
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public Record read(long heapIdx) throws IOException{
+        SharedBufferPool.Stripe stripe = pool.stripe(SharedBufferPool.key(file.fileId, heapIdx / RECORDSPERBLOCK));
+        stripe.lock();
+        try{
+            BufferNode buffNode = stripe.frame(file, heapIdx / RECORDSPERBLOCK);
+            int blockIdx = (int)(heapIdx % RECORDSPERBLOCK);
+            Record r = new Record(heapIdx * 4, buffNode.getKey(blockIdx), buffNode.getValue(blockIdx));
+            stripe.resize();
+            return r;
+        } finally{
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Writes the BufferNode representing a block of this file straight to
+     * the disk file with a positional write, under the lock of the block's
+     * stripe. A frame of the pool holding the same block is brought up to
+     * date and marked clean, so it cannot later overwrite the block with
+     * stale data
+     * @param buffNode the BufferNode to be written, either a frame of the
+     *                 pool or a block of this file
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void write(BufferNode buffNode) throws IOException{
+        long blockNum = SharedBufferPool.blockOf(buffNode.getBlockNum());
+        SharedBufferPool.Stripe stripe = pool.stripe(SharedBufferPool.key(file.fileId, blockNum));
+        stripe.lock();
+        try{
+            stripe.writeThrough(file, blockNum, buffNode);
+        } finally{
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Swaps the two given records and updates their offsets
+     * @param r1 the first record to be swapped
+     * @param r2 the second record to be swapped
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void swap(Record r1, Record r2) throws IOException{
+        swap(r1.getOffset() / 4, r2.getOffset() / 4);
+        long temp = r2.getOffset();
+        r2.setOffset(r1.getOffset());
+        r1.setOffset(temp);
+    }
+
+    /**
+     * Grabs the key of a record from the shared buffer pool
+     * @param heapIdx the index of the record
+     * @return the key of the record as a short
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public short keyAt(long heapIdx) throws IOException{
+        return read(heapIdx, true);
+    }
+
+    /**
+     * Grabs the value of a record from the shared buffer pool
+     * @param heapIdx the index of the record
+     * @return the value of the record as a short
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public short valueAt(long heapIdx) throws IOException{
+        return read(heapIdx, false);
+    }
+
+    /**
+     * Swaps the records at the two given indices while holding the locks
+     * of both of their stripes
+     * @param heapIdx1 the index of the first record to be swapped
+     * @param heapIdx2 the index of the second record to be swapped
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void swap(long heapIdx1, long heapIdx2) throws IOException{
+        exchange(heapIdx1, heapIdx2, false);
+    }
+
+    /**
+     * Swaps the records at the two given indices if the key at heapIdx2
+     * is greater than the key at heapIdx1, atomically with respect to
+     * other threads using the pool
+     * @param heapIdx1 the index of the parent record
+     * @param heapIdx2 the index of the child record
+     * @return true if the records were swapped, false otherwise
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public boolean compareAndSwapIfGreater(long heapIdx1, long heapIdx2) throws IOException{
+        return exchange(heapIdx1, heapIdx2, true);
+    }
+
+    /**
+     * Overwrites a record while holding the lock of its stripe
+     * @param heapIdx the index of the record
+     * @param key the new key
+     * @param value the new value
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void set(long heapIdx, short key, short value) throws IOException{
+        long blockNum = heapIdx / RECORDSPERBLOCK;
+        SharedBufferPool.Stripe stripe = pool.stripe(SharedBufferPool.key(file.fileId, blockNum));
+        stripe.lock();
+        try{
+            BufferNode buffNode = stripe.frame(file, blockNum);
+            buffNode.set((int)(heapIdx % RECORDSPERBLOCK), key, value);
+            buffNode.setMustWrite(true);
+            stripe.resize();
+        } finally{
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Copies a record over another while holding the locks of both of
+     * their stripes
+     * @param fromIdx the index of the record to be copied
+     * @param toIdx the index of the record to be overwritten
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void move(long fromIdx, long toIdx) throws IOException{
+        long blockNum1 = fromIdx / RECORDSPERBLOCK;
+        long blockNum2 = toIdx / RECORDSPERBLOCK;
+        SharedBufferPool.Stripe stripe1 = pool.stripe(SharedBufferPool.key(file.fileId, blockNum1));
+        SharedBufferPool.Stripe stripe2 = pool.stripe(SharedBufferPool.key(file.fileId, blockNum2));
+        SharedBufferPool.Stripe first = stripe1.index <= stripe2.index ? stripe1 : stripe2;
+        SharedBufferPool.Stripe second = first == stripe1 ? stripe2 : stripe1;
+        first.lock();
+        if(second != first)
+            second.lock();
+        try{
+            BufferNode from = stripe1.frame(file, blockNum1);
+            BufferNode to = stripe2.frame(file, blockNum2);
+            int fromOffset = (int)(fromIdx % RECORDSPERBLOCK);
+            to.set((int)(toIdx % RECORDSPERBLOCK), from.getKey(fromOffset), from.getValue(fromOffset));
+            to.setMustWrite(true);
+            stripe1.resize();
+            if(stripe2 != stripe1)
+                stripe2.resize();
+        } finally{
+            if(second != first)
+                second.unlock();
+            first.unlock();
+        }
+    }
+
+    /**
+     * Used to determine indexing
+     * @return the number of records in the disk file
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public long numRecords() throws IOException{
+        return file.channel.size() / 4;
+    }
+
+    /**
+     * Used to determine indexing
+     * @return the length of the disk file
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public long length() throws IOException{
+        return file.channel.size();
+    }
+
+    /**
+     * Writes back and drops every frame of this file, one stripe at a time.
+     * Other files sharing the pool keep their frames
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void flush() throws IOException{
+        for(int i = 0; ; i++){
+            SharedBufferPool.Stripe stripe = pool.stripeAt(i);
+            if(stripe == null)
+                break;
+            stripe.lock();
+            try{
+                stripe.flush(file.fileId);
+            } finally{
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Flushes this file and unregisters it from the pool, which matters
+     * when one pool serves many files over time. The statistics stay
+     * readable, but the service must not be used again
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void close() throws IOException{
+        flush();
+        pool.release(file);
+    }
+    private short read(long heapIdx, boolean key) throws IOException{
+        long blockNum = heapIdx / RECORDSPERBLOCK;
+        SharedBufferPool.Stripe stripe = pool.stripe(SharedBufferPool.key(file.fileId, blockNum));
+        stripe.lock();
+        try{
+            BufferNode buffNode = stripe.frame(file, blockNum);
+            int blockIdx = (int)(heapIdx % RECORDSPERBLOCK);
+            short s = key ? buffNode.getKey(blockIdx) : buffNode.getValue(blockIdx);
+            stripe.resize();
+            return s;
+        } finally{
+            stripe.unlock();
+        }
+    }
+    private boolean exchange(long heapIdx1, long heapIdx2, boolean ifGreater) throws IOException{
+        long blockNum1 = heapIdx1 / RECORDSPERBLOCK;
+        long blockNum2 = heapIdx2 / RECORDSPERBLOCK;
+        SharedBufferPool.Stripe stripe1 = pool.stripe(SharedBufferPool.key(file.fileId, blockNum1));
+        SharedBufferPool.Stripe stripe2 = pool.stripe(SharedBufferPool.key(file.fileId, blockNum2));
+        SharedBufferPool.Stripe first = stripe1.index <= stripe2.index ? stripe1 : stripe2;
+        SharedBufferPool.Stripe second = first == stripe1 ? stripe2 : stripe1;
+        first.lock();
+        if(second != first)
+            second.lock();
+        try{
+            BufferNode buffNode1 = stripe1.frame(file, blockNum1);
+            BufferNode buffNode2 = stripe2.frame(file, blockNum2);
+            int blockOffset1 = (int)(heapIdx1 % RECORDSPERBLOCK);
+            int blockOffset2 = (int)(heapIdx2 % RECORDSPERBLOCK);
+            boolean swapped = !ifGreater || buffNode2.getKey(blockOffset2) > buffNode1.getKey(blockOffset1);
+            if(swapped){
+                short key = buffNode1.getKey(blockOffset1);
+                short value = buffNode1.getValue(blockOffset1);
+                buffNode1.set(blockOffset1, buffNode2.getKey(blockOffset2), buffNode2.getValue(blockOffset2));
+                buffNode2.set(blockOffset2, key, value);
+                buffNode1.setMustWrite(true);
+                buffNode2.setMustWrite(true);
+            }
+            stripe1.resize();
+            if(stripe2 != stripe1)
+                stripe2.resize();
+            return swapped;
+        } finally{
+            if(second != first)
+                second.unlock();
+            first.unlock();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The CountingSortClient class sorts the disk file by counting keys
+ * instead of comparing them, which works because keys are 2-byte shorts.
+ * A first sequential pass builds a histogram of every key, and prefix sums
+ * of the histogram give each key's place in the sorted file. Consecutive
+ * keys are then grouped into key ranges of at most as many records as fit
+ * in memory. A scatter pass moves every record into its range's region of
+ * a spill file through a write buffer per range, all taken from a single
+ * memoryBlocks-sized arena, and each region is then read back, counted
+ * into key order in memory and written over its place in the disk file.
+ * When there are too many ranges for the arena, a range's region is
+ * scattered again by narrower ranges, between the spill file and the disk
+ * file, until it fits. Records with equal keys keep their original order.
+ */
+public class CountingSortClient implements SortEngine, CacheStats{
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private static final int NUMKEYS = 1 << 16;
+    private static final int MINBUCKETRECORDS = 16;
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final BufferPoolService dataFileService;
+    private final File spillDir;
+    private final int memoryBlocks;
+    private final int memoryRecords;
+    private long[] counts;
+    private byte[] buffer;
+    private byte[] arena;
+    private int[] rangeOf;
+    private int[] offsets;
+    private long spillMisses = 0;
+    private long spillWrites = 0;
+    private int distinctKeys = 0;
+    private int scatterPasses = 0;
+
+    /**
+     * CountingSortClient defined by the BufferPoolService of the disk
+     * file, the directory for its spill file, and how many blocks it may
+     * hold in memory at once
+     * @param dataFileService the service for the disk file being sorted
+     * @param spillDir the directory the temporary spill file is created in
+     * @param memoryBlocks the size of the read buffer and of the arena that
+     *                     holds the range write buffers or a sorted range
+     */
+    public CountingSortClient(BufferPoolService dataFileService, File spillDir, int memoryBlocks){
+        this.dataFileService = dataFileService;
+        this.spillDir = spillDir;
+        this.memoryBlocks = Math.max(1, memoryBlocks);
+        this.memoryRecords = this.memoryBlocks * RECORDSPERBLOCK;
+    }
+    @Override
+    public long getCacheHits(){
+        return dataFileService.getCacheHits();
+    }
+    @Override
+    public long getCacheMisses(){
+        return dataFileService.getCacheMisses() + spillMisses;
+    }
+    @Override
+    public long getDiskWrites(){
+        return dataFileService.getDiskWrites() + spillWrites;
+    }
+    public int getDistinctKeys(){
+        return distinctKeys;
+    }
+
+    /**
+     * Getter for the number of scatter passes, counting each region
+     * scattered again as one
+     * @return the scatter passes of the last sort
+     */
+    public int getScatterPasses(){
+        return scatterPasses;
+    }
+
+    /**
+     * Sorts the disk file with one histogram pass, a scatter pass by key
+     * range and a pass that sorts each range in memory
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        dataFileService.flush();
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        buffer = new byte[memoryBlocks * BLOCKSIZE];
+        arena = new byte[memoryBlocks * BLOCKSIZE];
+        rangeOf = new int[NUMKEYS];
+        offsets = new int[NUMKEYS];
+        counts = histogram(numBlocks);
+        distinctKeys = 0;
+        scatterPasses = 0;
+        for(long count : counts){
+            if(count > 0)
+                distinctKeys++;
+        }
+        File spillFile = File.createTempFile("externalsort", ".run", spillDir);
+        try(RandomAccessFile spillRaf = new RandomAccessFile(spillFile, "rw")){
+            spillRaf.setLength(dataFileService.length());
+            BufferPoolService spill = new BufferPoolService(spillRaf, 1);
+            sortRange(dataFileService, spill, 0, numBlocks * RECORDSPERBLOCK, 0, NUMKEYS);
+            spillMisses = spill.getCacheMisses();
+            spillWrites = spill.getDiskWrites();
+        } finally{
+            spillFile.delete();
+            buffer = null;
+            arena = null;
+            rangeOf = null;
+            offsets = null;
+        }
+    }
+    private long[] histogram(long numBlocks) throws IOException{
+        long[] counts = new long[NUMKEYS];
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+            int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            for(int i = 0; i < n * BLOCKSIZE; i += 4)
+                counts[bucket(buffer, i)]++;
+        }
+        return counts;
+    }
+
+    // The records with keys from lo to hi - 1 fill positions start to
+    // start + n - 1 of src, and other is free at those positions. Leaves
+    // them sorted at those positions of the disk file
+    private void sortRange(BufferPoolService src, BufferPoolService other, long start, long n, int lo, int hi)
+            throws IOException{
+        if(n == 0)
+            return;
+        if(n <= memoryRecords){
+            src.readRecords(start, buffer, 0, (int)n);
+            countInMemory((int)n, lo, hi);
+            dataFileService.writeRecords(start, arena, 0, (int)n);
+            return;
+        }
+        int[] bounds = ranges(n, lo, hi);
+        int numRanges = bounds.length - 1;
+        if(numRanges == 1){
+            // A single key is already in order
+            if(src != dataFileService)
+                copy(src, start, n);
+            return;
+        }
+        scatter(src, other, start, n, bounds);
+        long rangeStart = start;
+        for(int r = 0; r < numRanges; r++){
+            long rangeRecords = 0;
+            for(int k = bounds[r]; k < bounds[r + 1]; k++)
+                rangeRecords += counts[k];
+            sortRange(other, src, rangeStart, rangeRecords, bounds[r], bounds[r + 1]);
+            rangeStart += rangeRecords;
+        }
+    }
+
+    // Splits the keys into ranges of at most target records, or of a
+    // single key, where target leaves every range at least
+    // MINBUCKETRECORDS of the arena. Any two neighbouring ranges hold more
+    // than target records, so there are at most 2n / target + 1 of them
+    private int[] ranges(long n, int lo, int hi){
+        int maxRanges = Math.max(2, memoryRecords / MINBUCKETRECORDS);
+        long target = Math.max(memoryRecords, (2 * n + maxRanges - 2) / (maxRanges - 1));
+        int[] bounds = new int[maxRanges + 1];
+        int numRanges = 0;
+        long acc = 0;
+        bounds[0] = lo;
+        for(int k = lo; k < hi; k++){
+            if(counts[k] == 0)
+                continue;
+            if(acc > 0 && acc + counts[k] > target){
+                bounds[++numRanges] = k;
+                acc = 0;
+            }
+            acc += counts[k];
+        }
+        bounds[++numRanges] = hi;
+        return Arrays.copyOf(bounds, numRanges + 1);
+    }
+
+    // Moves every record into its range's region of dst, keeping the order
+    // of the records within each range
+    private void scatter(BufferPoolService src, BufferPoolService dst, long start, long n, int[] bounds)
+            throws IOException{
+        int numRanges = bounds.length - 1;
+        int slotRecords = memoryRecords / numRanges;
+        long[] next = new long[numRanges];
+        int[] fill = new int[numRanges];
+        long position = start;
+        for(int r = 0; r < numRanges; r++){
+            next[r] = position;
+            for(int k = bounds[r]; k < bounds[r + 1]; k++){
+                position += counts[k];
+                rangeOf[k] = r;
+            }
+        }
+        for(long idx = start; idx < start + n; idx += memoryRecords){
+            int m = (int)Math.min(memoryRecords, start + n - idx);
+            src.readRecords(idx, buffer, 0, m);
+            for(int i = 0; i < m * 4; i += 4){
+                int r = rangeOf[bucket(buffer, i)];
+                INT.set(arena, (r * slotRecords + fill[r]) * 4, (int)INT.get(buffer, i));
+                if(++fill[r] == slotRecords){
+                    dst.writeRecords(next[r], arena, r * slotRecords * 4, slotRecords);
+                    next[r] += slotRecords;
+                    fill[r] = 0;
+                }
+            }
+        }
+        for(int r = 0; r < numRanges; r++){
+            if(fill[r] > 0)
+                dst.writeRecords(next[r], arena, r * slotRecords * 4, fill[r]);
+        }
+        scatterPasses++;
+    }
+
+    // Counting sort of the n records in buffer, whose keys are from lo to
+    // hi - 1, into arena
+    private void countInMemory(int n, int lo, int hi){
+        int offset = 0;
+        for(int k = lo; k < hi; k++){
+            offsets[k] = offset;
+            offset += (int)counts[k];
+        }
+        for(int i = 0; i < n * 4; i += 4){
+            int k = bucket(buffer, i);
+            INT.set(arena, offsets[k]++ * 4, (int)INT.get(buffer, i));
+        }
+    }
+    private void copy(BufferPoolService src, long start, long n) throws IOException{
+        for(long idx = start; idx < start + n; idx += memoryRecords){
+            int m = (int)Math.min(memoryRecords, start + n - idx);
+            src.readRecords(idx, buffer, 0, m);
+            dataFileService.writeRecords(idx, buffer, 0, m);
+        }
+    }
+    private static int bucket(byte[] buffer, int offset){
+        return (short)((buffer[offset] << 8) | (buffer[offset + 1] & 0xFF)) - Short.MIN_VALUE;
+    }
+}
@@ -0,0 +1,101 @@
+package externalsort;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The DirectIO class reads and writes frames of a file through a second
+ * FileChannel opened with ExtendedOpenOption.DIRECT, bypassing the page
+ * cache so a pool that already caches blocks does not cache them twice.
+ * Unbuffered I/O needs the file position, the length and the memory
+ * address to be multiples of the file store's block size, so transfers
+ * go through one direct ByteBuffer aligned to it. A transfer that is not
+ * aligned returns false and is left to the caller's buffered path.
+ */
+class DirectIO implements Closeable {
+    private final FileChannel channel;
+    private final int alignment;
+    private final ByteBuffer staging;
+
+    private DirectIO(FileChannel channel, int alignment, int bufferSize){
+        this.channel = channel;
+        this.alignment = alignment;
+        this.staging = ByteBuffer.allocateDirect(bufferSize + alignment).alignedSlice(alignment)
+                .limit(bufferSize).slice();
+    }
+
+    /**
+     * Opens a file for unbuffered I/O if the platform and its file system
+     * allow it
+     * @param file the file to open, which must exist
+     * @param bufferSize the largest transfer in bytes
+     * @return the DirectIO, or null if direct I/O is not available
+     */
+    static DirectIO open(Path file, int bufferSize){
+        try{
+            long alignment = Files.getFileStore(file).getBlockSize();
+            if(alignment <= 0 || Long.bitCount(alignment) != 1 || bufferSize % alignment != 0)
+                return null;
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    ExtendedOpenOption.DIRECT);
+            return new DirectIO(channel, (int)alignment, bufferSize);
+        } catch(IOException | UnsupportedOperationException e){
+            return null;
+        }
+    }
+
+    /**
+     * Reads bytes from the file into an array
+     * @param position the file position to read from
+     * @param dst the array receiving the bytes
+     * @param length the number of bytes to read
+     * @return false if the transfer is not aligned and nothing was read
+     * @throws IOException if the read fails or reaches the end of the file
+     */
+    boolean read(long position, byte[] dst, int length) throws IOException{
+        if(!aligned(position, length))
+            return false;
+        staging.clear().limit(length);
+        while(staging.hasRemaining()){
+            if(channel.read(staging, position + staging.position()) < 0)
+                throw new EOFException("Direct read past the end of the file at " + position);
+        }
+        staging.flip();
+        staging.get(dst, 0, length);
+        return true;
+    }
+
+    /**
+     * Writes bytes from an array to the file
+     * @param position the file position to write at
+     * @param src the array holding the bytes
+     * @param length the number of bytes to write
+     * @return false if the transfer is not aligned and nothing was written
+     * @throws IOException if the write fails
+     */
+    boolean write(long position, byte[] src, int length) throws IOException{
+        if(!aligned(position, length))
+            return false;
+        staging.clear();
+        staging.put(src, 0, length);
+        staging.flip();
+        while(staging.hasRemaining())
+            channel.write(staging, position + staging.position());
+        return true;
+    }
+    private boolean aligned(long position, int length){
+        return position % alignment == 0 && length % alignment == 0 && length <= staging.capacity();
+    }
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+}
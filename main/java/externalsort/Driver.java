@@ -1,7 +1,14 @@
 package externalsort;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A package for Heap-sorting large binary files.
@@ -9,42 +16,325 @@ import java.io.RandomAccessFile;
  * @author Drew Kim drkim@calpoly.edu
  */
 public class Driver {
-    public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
+    // Every option parseOptions accepts, see its documentation
+    private static final Set<String> OPTIONS = Set.of("store", "stripes", "policy", "pin", "write-behind",
+            "prefetch", "block-size", "direct", "metrics", "jmx", "engine", "k", "arity", "sift", "checkpoint",
+            "runs", "compress-runs", "out-of-place", "resume", "record-size", "keys", "memory", "threads",
+            "bounded-keys");
+
+    public static void main(String[] args) throws IOException, JMException {
+        if (args.length < 2) {
             throw new IllegalArgumentException(
                 """
-                Expected exactly 2 arguments. One for a file name to sort, and one for the number of buffers in
-                the buffer pool.
+                Expected at least 2 arguments. One for a file name to sort, and one for the number of buffers in
+                the buffer pool, optionally followed by --option=value flags.
                 """
             );
         }
         String fileName = args[0];
         int numBuffers = Integer.parseInt(args[1]);
+        Map<String, String> options = parseOptions(args);
         RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
-        BufferPoolService bps = new BufferPoolService(raf, numBuffers);
-        HeapSortClient hsc = new HeapSortClient(bps);
+        IndexedDiskFileService service;
+        CacheStats stats;
+        Metrics metrics = null;
+        SharedBufferPool sharedPool = null;
+        boolean directIO = false;
+        String store = options.getOrDefault("store", "pool");
+        switch (store) {
+            case "pool" -> {
+                ReplacementPolicy policy = ReplacementPolicy.create(options.getOrDefault("policy", "lru"), numBuffers);
+                int pinnedBlocks = Integer.parseInt(options.getOrDefault("pin", "0"));
+                int writeBehind = Integer.parseInt(options.getOrDefault("write-behind", "0"));
+                int blockSize = Integer.parseInt(options.getOrDefault("block-size", "4096"));
+                BufferPoolService bps = new BufferPoolService(raf, numBuffers, policy, pinnedBlocks, writeBehind,
+                        blockSize);
+                bps.enablePrefetch(Integer.parseInt(options.getOrDefault("prefetch", "0")));
+                if (Boolean.parseBoolean(options.getOrDefault("direct", "false"))) {
+                    directIO = bps.enableDirectIO(new File(fileName).toPath());
+                }
+                service = bps;
+                stats = bps;
+                metrics = bps.getMetrics();
+            }
+            case "mmap" -> {
+                MappedFileService mfs = new MappedFileService(raf, numBuffers);
+                service = mfs;
+                stats = mfs;
+            }
+            case "concurrent" -> {
+                int stripes = Integer.parseInt(options.getOrDefault("stripes", "16"));
+                sharedPool = new SharedBufferPool(numBuffers, stripes);
+                ConcurrentBufferPoolService cbps = new ConcurrentBufferPoolService(sharedPool, raf.getChannel());
+                service = cbps;
+                stats = cbps;
+            }
+            default -> throw new IllegalArgumentException("Unknown store: " + store);
+        }
+        for (String poolOption : new String[]{"policy", "pin", "write-behind", "prefetch", "block-size", "direct"}) {
+            if (options.containsKey(poolOption) && !(service instanceof BufferPoolService)) {
+                throw new IllegalArgumentException("--" + poolOption + " requires --store=pool");
+            }
+        }
+        if (options.containsKey("stripes") && sharedPool == null) {
+            throw new IllegalArgumentException("--stripes requires --store=concurrent");
+        }
+        for (String metricsOption : new String[]{"metrics", "jmx"}) {
+            if (options.containsKey(metricsOption) && metrics == null && sharedPool == null) {
+                throw new IllegalArgumentException("--" + metricsOption + " requires --store=pool or concurrent");
+            }
+        }
+        if (options.containsKey("metrics")) {
+            // The heat map costs a store per hit, so only a metrics file pays for it
+            if (metrics != null) {
+                metrics.enableHeatMap(true);
+            } else {
+                sharedPool.enableHeatMap(true);
+            }
+        }
+        int memoryBlocks = Integer.parseInt(options.getOrDefault("memory", String.valueOf(numBuffers)));
+        String engineName = options.getOrDefault("engine", "heap");
+        if (engineName.equals("auto")) {
+            boolean boundedKeys = Boolean.parseBoolean(options.getOrDefault("bounded-keys", "false"));
+            engineName = SortPlanner.choose(raf.length(), memoryBlocks, boundedKeys).name().toLowerCase();
+        }
+        RecordSchema schema = RecordSchema.DEFAULT;
+        if (options.containsKey("record-size") || options.containsKey("keys")) {
+            schema = RecordSchema.parse(Integer.parseInt(options.getOrDefault("record-size", "4")),
+                    options.getOrDefault("keys", "0:short"));
+        }
+        if (!schema.isDefault() && !engineName.equals("heap") && !engineName.equals("key-pointer")) {
+            throw new IllegalArgumentException(
+                    "Only the heap and key-pointer engines sort records other than the 4-byte format");
+        }
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        SortEngine engine;
+        switch (engineName) {
+            case "heap" -> {
+                int arity = Integer.parseInt(options.getOrDefault("arity", "2"));
+                String sift = options.getOrDefault("sift", "classic");
+                if (!sift.equals("classic") && !sift.equals("bottom-up")) {
+                    throw new IllegalArgumentException("Unknown sift: " + sift);
+                }
+                if (schema.isDefault()) {
+                    engine = new HeapSortClient(service, arity, sift.equals("bottom-up"));
+                } else {
+                    engine = new SchemaHeapSortClient(requirePool(service, engineName), schema);
+                }
+            }
+            case "merge" -> {
+                String runs = options.getOrDefault("runs", "sorted");
+                MergeSortClient.RunGeneration runGeneration;
+                try {
+                    runGeneration = MergeSortClient.RunGeneration.valueOf(runs.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown run generation: " + runs);
+                }
+                boolean outOfPlace = Boolean.parseBoolean(options.getOrDefault("out-of-place", "false"));
+                MergeSortClient msc = new MergeSortClient(requirePool(service, engineName), spillDir, memoryBlocks,
+                        runGeneration, outOfPlace ? new File(fileName) : null);
+                msc.enableRunCompression(Boolean.parseBoolean(options.getOrDefault("compress-runs", "false")));
+                if (Boolean.parseBoolean(options.getOrDefault("resume", "false"))) {
+                    if (Boolean.parseBoolean(options.getOrDefault("compress-runs", "false"))) {
+                        throw new IllegalArgumentException("--resume cannot be combined with --compress-runs");
+                    }
+                    msc.enableResume(new File(fileName));
+                }
+                engine = msc;
+                stats = msc;
+            }
+            case "parallel" -> {
+                int threads = Integer.parseInt(options.getOrDefault("threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                ParallelSortClient psc = new ParallelSortClient(raf, spillDir, memoryBlocks, threads);
+                engine = psc;
+                stats = psc;
+            }
+            case "adaptive" -> {
+                AdaptiveSortClient asc = new AdaptiveSortClient(requirePool(service, engineName), spillDir, memoryBlocks);
+                engine = asc;
+                stats = asc;
+            }
+            case "counting" -> {
+                CountingSortClient csc = new CountingSortClient(requirePool(service, engineName), spillDir, memoryBlocks);
+                engine = csc;
+                stats = csc;
+            }
+            case "topk" -> {
+                if (!options.containsKey("k")) {
+                    throw new IllegalArgumentException("The topk engine requires --k=records");
+                }
+                PartialSortClient psc = PartialSortClient.topK(requirePool(service, engineName), memoryBlocks,
+                        Long.parseLong(options.get("k")));
+                engine = psc;
+                stats = psc;
+            }
+            case "quantiles" -> {
+                PartialSortClient psc = PartialSortClient.quantiles(requirePool(service, engineName), memoryBlocks);
+                engine = psc;
+                stats = psc;
+            }
+            case "key-pointer" -> {
+                KeyPointerSortClient kpsc = new KeyPointerSortClient(requirePool(service, engineName), schema,
+                        new File(fileName), spillDir, memoryBlocks);
+                engine = kpsc;
+                stats = kpsc;
+            }
+            default -> throw new IllegalArgumentException("Unknown engine: " + engineName);
+        }
+        for (String mergeOption : new String[]{"resume", "out-of-place"}) {
+            if (options.containsKey(mergeOption) && !(engine instanceof MergeSortClient)) {
+                throw new IllegalArgumentException("--" + mergeOption + " requires the merge engine");
+            }
+        }
+        CheckpointJournal journal = null;
+        String resumedFrom = "no";
+        if (options.containsKey("checkpoint")) {
+            if (!(engine instanceof HeapSortClient hsc)) {
+                throw new IllegalArgumentException("--checkpoint requires the heap engine");
+            }
+            journal = CheckpointJournal.open(new File(fileName), requirePool(service, engineName));
+            hsc.enableCheckpoints(journal, Long.parseLong(options.get("checkpoint")));
+            if (journal.isResumed()) {
+                resumedFrom = journal.getPhase().name().toLowerCase() + " at " + journal.getIndex();
+            }
+        }
+        ObjectName jmxName = null;
+        if (Boolean.parseBoolean(options.getOrDefault("jmx", "false"))) {
+            String name = new File(fileName).getName();
+            jmxName = metrics != null ? metrics.register(name) : sharedPool.registerMetrics(name);
+        }
         long startTime = System.currentTimeMillis();
-        hsc.buildMaxHeap();
-        hsc.sort();
+        engine.sortFile();
         long endTime = System.currentTimeMillis();
         long sortTime = endTime - startTime;
-        int recsPrinted = 0;
-        for(int i = 0; i < raf.length(); i += 4096) {
-            if(recsPrinted % 8 != 0)
-                System.out.print("    ");
-            raf.seek(i);
-            System.out.print(raf.readShort() + " " + raf.readShort());
-            recsPrinted++;
-            if(recsPrinted % 8 == 0)
-                System.out.println();
-        }
-        System.out.println();
-        System.out.println("STATS");
-        System.out.println("File name: " + fileName);
-        System.out.println("Cache hits: " + bps.getCacheHits());
-        System.out.println("Cache misses: " + bps.getCacheMisses());
-        System.out.println("Disk reads: " + bps.getCacheMisses());
-        System.out.println("Disk writes: " + bps.getDiskWrites());
-        System.out.println("Time to sort: " + sortTime);
+        if (service instanceof BufferPoolService bps) {
+            bps.close();
+        }
+        if (Boolean.parseBoolean(options.getOrDefault("out-of-place", "false"))
+                || engine instanceof KeyPointerSortClient) {
+            // The sorted file was renamed over the one raf still has open
+            raf.close();
+            raf = new RandomAccessFile(fileName, "rw");
+        }
+        int[] quantiles = engine instanceof PartialSortClient psc ? psc.getQuantiles() : null;
+        StatsReport.write(System.out, raf, fileName, stats, sortTime, quantiles);
+        if (engine instanceof AdaptiveSortClient asc) {
+            Presortedness p = asc.getPresortedness();
+            System.out.println("Ascending runs: " + p.getAscendingRuns());
+            System.out.println("Descents: " + p.getDescents());
+            System.out.println("Sort path: " + asc.getPath().name().toLowerCase());
+        }
+        if (engine instanceof MergeSortClient msc && options.containsKey("runs")) {
+            System.out.println("Runs: " + msc.getNumRuns());
+            System.out.printf("Average run length: %.1f%n", msc.getAverageRunLength());
+            System.out.println("Merge passes: " + msc.getMergePasses());
+        }
+        if (engine instanceof MergeSortClient msc && options.containsKey("resume")) {
+            System.out.println("Resumed: " + (msc.isResumed() ? "yes" : "no"));
+        }
+        if (engine instanceof MergeSortClient msc && options.containsKey("compress-runs")) {
+            long saved = msc.getRunBytes() - msc.getSpilledBytes();
+            System.out.println("Run bytes: " + msc.getRunBytes() + " raw, " + msc.getSpilledBytes() + " written");
+            System.out.printf("Compression ratio: %.2f%n", msc.getCompressionRatio());
+            System.out.printf("Codec time: %d ms, %.2f ns per byte saved%n", msc.getCodecNanos() / 1_000_000,
+                    saved > 0 ? msc.getCodecNanos() / (double)saved : 0.0);
+        }
+        if (engine instanceof HeapSortClient hsc && options.containsKey("sift")) {
+            System.out.println("Comparisons: " + hsc.getComparisons());
+            System.out.println("Record moves: " + hsc.getMoves());
+            System.out.println("Block touches: " + hsc.getBlockTouches());
+        }
+        if (service instanceof BufferPoolService bps && bps.getPrefetchIssued() > 0) {
+            System.out.println("Prefetches issued: " + bps.getPrefetchIssued());
+            System.out.println("Prefetch hits: " + bps.getPrefetchHits());
+            System.out.println("Prefetches wasted: " + bps.getPrefetchWasted());
+        }
+        if (journal != null) {
+            System.out.println("Resumed: " + resumedFrom);
+            System.out.println("Checkpoints: " + journal.getCheckpoints());
+            System.out.println("Journal bytes: " + journal.getJournalBytes());
+        }
+        if (options.containsKey("direct")) {
+            System.out.println("Direct I/O: " + (directIO ? "on" : "off"));
+        }
+        if (options.containsKey("metrics")) {
+            Metrics written = metrics != null ? metrics : sharedPool.getMetrics();
+            if (engine instanceof HeapSortClient hsc) {
+                written.addPhases(hsc.getPhaseNanos());
+            }
+            writeMetrics(options.get("metrics"), written);
+        }
+        if (jmxName != null) {
+            Metrics.unregister(jmxName);
+        }
+    }
+
+    private static void writeMetrics(String metricsFile, Metrics metrics) throws IOException {
+        try (FileWriter out = new FileWriter(metricsFile)) {
+            out.write(metrics.toJson());
+            out.write(System.lineSeparator());
+        }
+    }
+
+    private static BufferPoolService requirePool(IndexedDiskFileService service, String engineName) {
+        if (!(service instanceof BufferPoolService bps)) {
+            throw new IllegalArgumentException("The " + engineName + " engine requires --store=pool");
+        }
+        return bps;
+    }
+
+    /**
+     * Parses the optional flags following the two required arguments.
+     * Every flag has the form --name=value, and unknown names are rejected:
+     * --store=pool|mmap|concurrent   the LRU pool, a mapped file or a shared
+     *                                striped pool
+     * --stripes=n                    lock stripes of the concurrent store
+     * --policy=lru|clock|2q|lru-k    the pool's replacement policy
+     * --pin=blocks                   top heap blocks kept buffered
+     * --write-behind=frames          evicted blocks written in the background
+     * --prefetch=frames              heap blocks read ahead in the background
+     * --block-size=bytes             the pool's buffer size, 4096 to 1048576
+     * --direct=true                  unbuffered direct I/O where supported
+     * --metrics=file                 the pool's counters, histograms and heat
+     *                                map as JSON
+     * --jmx=true                     the pool's metrics as an MXBean while
+     *                                sorting
+     * --engine=name                  heap, merge, counting, parallel, adaptive,
+     *                                topk, quantiles, key-pointer or auto
+     * --k=records                    records the topk engine sorts to the front
+     * --arity=d                      the heap engine's fan-out, 2 by default
+     * --sift=classic|bottom-up       the heap engine's sift kernel
+     * --checkpoint=steps             checkpoints of a resumable heapsort
+     * --runs=sorted|replacement|natural
+     *                                the merge engine's run generation
+     * --compress-runs=true           bit-packed merge spill runs
+     * --out-of-place=true            merge into a file renamed over the input
+     * --resume=true                  merge runs kept to resume an interrupted
+     *                                sort
+     * --record-size=bytes            record width for the heap and key-pointer
+     *                                engines
+     * --keys=offset:type[,...]       keys of short, int, long or bytes:width,
+     *                                each optionally followed by :desc
+     * --memory=blocks                engine memory, the buffer count by default
+     * --threads=n                    parallel threads, processors by default
+     * --bounded-keys=true            lets auto pick the counting engine
+     * @param args the command line arguments
+     * @return a map from flag name to value
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (!args[i].startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected an option of the form --name=value, got " + args[i]);
+            }
+            String name = args[i].substring(2, eq);
+            if (!OPTIONS.contains(name)) {
+                throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+            options.put(name, args[i].substring(eq + 1));
+        }
+        return options;
     }
 }
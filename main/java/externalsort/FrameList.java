@@ -0,0 +1,72 @@
+package externalsort;
+
+/**
+ * The FrameList class is an intrusive doubly-linked list of BufferNodes,
+ * threaded through their prev and next links. Used by replacement policies
+ * that order frames by recency or arrival.
+ */
+class FrameList {
+    private BufferNode head;
+    private BufferNode tail;
+    private int size = 0;
+
+    /**
+     * Getter for the least recently linked frame
+     * @return the last frame, or null if the list is empty
+     */
+    BufferNode tail(){
+        return tail;
+    }
+
+    /**
+     * Getter for the number of frames in the list
+     * @return the size of the list
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * Adds a frame at the front of the list
+     * @param buffNode a frame that is not on any list
+     */
+    void linkFront(BufferNode buffNode){
+        buffNode.prev = null;
+        buffNode.next = head;
+        if(head != null)
+            head.prev = buffNode;
+        head = buffNode;
+        if(tail == null)
+            tail = buffNode;
+        size++;
+    }
+
+    /**
+     * Moves a frame already on the list to the front
+     * @param buffNode a frame on this list
+     */
+    void moveToFront(BufferNode buffNode){
+        if(buffNode == head)
+            return;
+        unlink(buffNode);
+        linkFront(buffNode);
+    }
+
+    /**
+     * Removes a frame from the list
+     * @param buffNode a frame on this list
+     */
+    void unlink(BufferNode buffNode){
+        if(buffNode.prev != null)
+            buffNode.prev.next = buffNode.next;
+        else
+            head = buffNode.next;
+        if(buffNode.next != null)
+            buffNode.next.prev = buffNode.prev;
+        else
+            tail = buffNode.prev;
+        buffNode.prev = null;
+        buffNode.next = null;
+        size--;
+    }
+}
@@ -0,0 +1,31 @@
+package externalsort;
+
+/**
+ * The FrameSlots class numbers the frames a ReplacementPolicy is given, in
+ * the order it first sees them, so the policy can keep its bookkeeping in
+ * arrays indexed by slot instead of on every BufferNode. A frame keeps its
+ * slot when it is rebound to another block, and a pool reuses its frames,
+ * so the slots stay as few as the frames the pool ever allocated.
+ */
+class FrameSlots {
+    private int size = 0;
+
+    /**
+     * Getter for the slot of a frame, numbering the frame if it has none
+     * @param buffNode a frame of the pool
+     * @return the frame's slot
+     */
+    int of(BufferNode buffNode){
+        if(buffNode.slot < 0)
+            buffNode.slot = size++;
+        return buffNode.slot;
+    }
+
+    /**
+     * Getter for the number of slots handed out
+     * @return one more than the highest slot
+     */
+    int size(){
+        return size;
+    }
+}
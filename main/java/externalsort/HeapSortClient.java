@@ -1,47 +1,260 @@
 package externalsort;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * The HeapSortClient class is the program attempting to sort the
- * disk file using the Heapsort algorithm.
+ * disk file using the Heapsort algorithm. The heap works purely on
+ * record indices and short keys so no objects are created per comparison.
+ * Since the access pattern is known in advance, the service is given
+ * prefetch hints: the grandchildren of every node a sift-down visits, and
+ * the next stretch of parents and children during the build sweep.
+ * The heap is binary by default. A d-ary layout, where the children of
+ * node i are d * i + 1 through d * i + d, packs all of a node's children
+ * into one block when d divides the block size, so a sift-down faults in
+ * about log_d(n) blocks instead of log_2(n) at the cost of d comparisons
+ * per level. The sorted file is the same either way.
+ * The bottom-up kernel uses Floyd's sift instead of swapping at every
+ * level: the moving record is held aside, the sift descends along the
+ * larger children to a leaf with one comparison per level, remembering
+ * the records on its path, climbs back to where the record belongs and
+ * then writes the remembered path one level up into the hole.
+ * Comparisons, record moves and block touches are counted so the kernels
+ * can be compared.
+ * With a CheckpointJournal the sort checkpoints every so many steps of
+ * either loop and resumes from the journal's last checkpoint.
  */
-public class HeapSortClient {
-    private final DiskFileService diskFileService;
+public class HeapSortClient implements SortEngine{
+    // How far ahead of the build sweep, in records, blocks are prefetched
+    private static final long READAHEAD = 1024;
+    private final IndexedDiskFileService diskFileService;
+    private final int arity;
+    private final boolean bottomUp;
+    // The path of the current bottom-up sift, from its root to a leaf
+    private final long[] pathIdx = new long[64];
+    private final int[] pathRecord = new int[64];
+    private long comparisons = 0;
+    private long moves = 0;
+    private long blockTouches = 0;
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private CheckpointJournal journal;
+    private long checkpointInterval;
+    private long untilCheckpoint;
 
     /**
      *
      * @param diskFileService the kind of service being used in order
      *                        to access the disk file
      */
-    public HeapSortClient(DiskFileService diskFileService){
+    public HeapSortClient(IndexedDiskFileService diskFileService){
+        this(diskFileService, 2);
+    }
+
+    /**
+     * HeapSortClient with a d-ary heap layout
+     * @param diskFileService the kind of service being used in order
+     *                        to access the disk file
+     * @param arity the number of children of each node, at least 2
+     */
+    public HeapSortClient(IndexedDiskFileService diskFileService, int arity){
+        this(diskFileService, arity, false);
+    }
+
+    /**
+     * HeapSortClient with a d-ary heap layout and a choice of sift kernel
+     * @param diskFileService the kind of service being used in order
+     *                        to access the disk file
+     * @param arity the number of children of each node, at least 2
+     * @param bottomUp true for Floyd's bottom-up sift, false to swap down
+     *                 level by level
+     */
+    public HeapSortClient(IndexedDiskFileService diskFileService, int arity, boolean bottomUp){
+        if(arity < 2)
+            throw new IllegalArgumentException("Heap arity must be at least 2, got " + arity);
         this.diskFileService = diskFileService;
+        this.arity = arity;
+        this.bottomUp = bottomUp;
+    }
+
+    /**
+     * Getter for the number of key comparisons made so far
+     * @return the number of comparisons
+     */
+    public long getComparisons(){
+        return comparisons;
+    }
+
+    /**
+     * Getter for the number of records written so far. A swap writes two
+     * @return the number of record moves
+     */
+    public long getMoves(){
+        return moves;
+    }
+
+    /**
+     * Getter for the number of blocks accessed through the service so far.
+     * Every record read or written touches one block, whether or not it is
+     * buffered
+     * @return the number of block touches
+     */
+    public long getBlockTouches(){
+        return blockTouches;
+    }
+
+    /**
+     * Getter for the time spent in each phase of the last full or partial
+     * sort: buildMaxHeap, sort and flush
+     * @return the nanoseconds spent in each phase, in phase order
+     */
+    public Map<String, Long> getPhaseNanos(){
+        return new LinkedHashMap<>(phaseNanos);
+    }
+    /**
+     * Makes the sort crash-safe. Every interval steps of the build or sort
+     * loop, the pool's dirty blocks are written and the position of the
+     * sort is recorded in the journal. If the journal was opened on an
+     * interrupted sort of the same file, the sort resumes from its last
+     * checkpoint instead of starting over. The journal is finished, and
+     * its files deleted, once the sort completes
+     * @param journal the journal of the pool the file is sorted through
+     * @param interval the steps between checkpoints, which bounds the
+     *                 work lost when the sort is interrupted
+     */
+    public void enableCheckpoints(CheckpointJournal journal, long interval){
+        this.journal = journal;
+        this.checkpointInterval = Math.max(1, interval);
+    }
+    private void checkpoint(CheckpointJournal.Phase phase, long idx, long length) throws IOException{
+        if(journal != null && --untilCheckpoint <= 0){
+            journal.checkpoint(phase, idx, length, arity);
+            untilCheckpoint = checkpointInterval;
+        }
     }
     private void heapify(long length, long idx) throws IOException{
-        long maxIdx = idx;
-        Record root = diskFileService.read(idx);
-        Record maxRecord = root;
         long leftIdx = 2 * idx + 1;
         long rightIdx = 2 * idx + 2;
-        if(leftIdx < length){
-            Record leftRecord = diskFileService.read(leftIdx);
-            if(leftRecord.getKey() > maxRecord.getKey()){
-                maxIdx = leftIdx;
-                maxRecord = leftRecord;
-            }
+        if(leftIdx >= length)
+            return;
+        long grandchildIdx = 2 * leftIdx + 1;
+        if(grandchildIdx < length){
+            diskFileService.prefetch(grandchildIdx);
+            diskFileService.prefetch(Math.min(grandchildIdx + 3, length - 1));
         }
+        long maxIdx = leftIdx;
         if(rightIdx < length){
-            Record rightRecord = diskFileService.read(rightIdx);
-            if(rightRecord.getKey() > maxRecord.getKey()){
+            comparisons++;
+            blockTouches += 2;
+            if(diskFileService.keyAt(rightIdx) > diskFileService.keyAt(leftIdx))
                 maxIdx = rightIdx;
-                maxRecord = rightRecord;
-            }
         }
-        if(maxIdx != idx){
-            diskFileService.swap(root, maxRecord);
+        comparisons++;
+        blockTouches += 2;
+        if(diskFileService.compareAndSwapIfGreater(idx, maxIdx)){
+            moves += 2;
             heapify(length, maxIdx);
         }
     }
+    private void siftDown(long length, long idx) throws IOException{
+        while(true){
+            long firstIdx = arity * idx + 1;
+            if(firstIdx >= length)
+                return;
+            long endIdx = Math.min(firstIdx + arity, length);
+            long grandchildIdx = arity * firstIdx + 1;
+            if(grandchildIdx < length){
+                diskFileService.prefetch(grandchildIdx);
+                diskFileService.prefetch(Math.min(arity * (endIdx - 1) + arity, length - 1));
+            }
+            long maxIdx = maxChild(firstIdx, endIdx);
+            comparisons++;
+            blockTouches += 2;
+            if(!diskFileService.compareAndSwapIfGreater(idx, maxIdx))
+                return;
+            moves += 2;
+            idx = maxIdx;
+        }
+    }
+    private long maxChild(long firstIdx, long endIdx) throws IOException{
+        long maxIdx = firstIdx;
+        short maxKey = diskFileService.keyAt(firstIdx);
+        for(long childIdx = firstIdx + 1; childIdx < endIdx; childIdx++){
+            short key = diskFileService.keyAt(childIdx);
+            if(key > maxKey){
+                maxKey = key;
+                maxIdx = childIdx;
+            }
+        }
+        comparisons += endIdx - firstIdx - 1;
+        blockTouches += endIdx - firstIdx;
+        return maxIdx;
+    }
+    private void siftDownFrom(long length, long idx) throws IOException{
+        if(bottomUp){
+            int record = diskFileService.recordAt(idx);
+            blockTouches++;
+            siftBottomUp(length, idx, (short)(record >> 16), (short)record);
+        } else if(arity == 2){
+            heapify(length, idx);
+        } else{
+            siftDown(length, idx);
+        }
+    }
+
+    // The record at idx is treated as a hole; the given record, held aside
+    // by the caller, ends up where it belongs in the subtree below idx
+    private void siftBottomUp(long length, long idx, short key, short value) throws IOException{
+        int depth = 0;
+        pathIdx[0] = idx;
+        while(true){
+            long firstIdx = arity * pathIdx[depth] + 1;
+            if(firstIdx >= length)
+                break;
+            long endIdx = Math.min(firstIdx + arity, length);
+            long grandchildIdx = arity * firstIdx + 1;
+            if(grandchildIdx < length){
+                diskFileService.prefetch(grandchildIdx);
+                diskFileService.prefetch(Math.min(arity * (endIdx - 1) + arity, length - 1));
+            }
+            long maxIdx = firstIdx;
+            int maxRecord = diskFileService.recordAt(firstIdx);
+            for(long childIdx = firstIdx + 1; childIdx < endIdx; childIdx++){
+                int record = diskFileService.recordAt(childIdx);
+                if(record >> 16 > maxRecord >> 16){
+                    maxRecord = record;
+                    maxIdx = childIdx;
+                }
+            }
+            comparisons += endIdx - firstIdx - 1;
+            blockTouches += endIdx - firstIdx;
+            depth++;
+            pathIdx[depth] = maxIdx;
+            pathRecord[depth] = maxRecord;
+        }
+        int level = depth;
+        while(level > 0){
+            comparisons++;
+            if(pathRecord[level] >> 16 >= key)
+                break;
+            level--;
+        }
+        for(int i = 1; i <= level; i++)
+            diskFileService.set(pathIdx[i - 1], (short)(pathRecord[i] >> 16), (short)pathRecord[i]);
+        diskFileService.set(pathIdx[level], key, value);
+        moves += level + 1;
+        blockTouches += level + 1;
+    }
+
+    /**
+     * Runs both steps of the Heapsort algorithm
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        sortFirst(diskFileService.numRecords());
+    }
 
     /**
      * The first step in the Heapsort algorithm which is to build a MaxHeap
@@ -49,27 +262,91 @@ public class HeapSortClient {
      * @throws IOException for RandomAccessFile operations
      */
     public void buildMaxHeap() throws IOException{
-        long length = diskFileService.length() / 4;
-        long lastNonLeaf = length / 2 - 1;
+        long length = diskFileService.numRecords();
+        buildMaxHeap(length, (length - 2) / arity);
+    }
+    private void buildMaxHeap(long length, long lastNonLeaf) throws IOException{
         for(long i = lastNonLeaf; i >= 0 ; i--){
-            heapify(length, i);
+            checkpoint(CheckpointJournal.Phase.BUILD, i, length);
+            if(i % READAHEAD == 0 && i >= READAHEAD)
+                readAhead(length, i - READAHEAD, i);
+            siftDownFrom(length, i);
         }
     }
 
+    private void readAhead(long length, long from, long to) throws IOException{
+        diskFileService.prefetch(from);
+        for(long child = arity * from + 1; child < arity * to + 1 && child < length; child += READAHEAD)
+            diskFileService.prefetch(child);
+        if(arity * to < length)
+            diskFileService.prefetch(arity * to);
+    }
+
     /**
      * The second step in the Heapsort algorithm which is to repeatedly remove
      * the largest value and put it at the end of the list
      * @throws IOException for RandomAccessFile operations
      */
     public void sort() throws IOException{
-        long lastIdx = (diskFileService.length() / 4) - 1;
+        long length = diskFileService.numRecords();
+        sort(length, length - 1);
+        diskFileService.flush();
+    }
+
+    /**
+     * Heapsorts only the first numRecords records of the file, leaving the
+     * rest of it untouched
+     * @param numRecords the number of records at the front of the file to
+     *                   sort
+     * @throws IOException for RandomAccessFile operations
+     */
+    public void sortFirst(long numRecords) throws IOException{
+        long length = Math.min(numRecords, diskFileService.numRecords());
+        long buildFrom = (length - 2) / arity;
+        long sortFrom = length - 1;
+        boolean built = false;
+        if(journal != null && journal.getPhase() != CheckpointJournal.Phase.START){
+            if(journal.getLength() != length || journal.getArity() != arity)
+                throw new IllegalStateException("The checkpoint is for a " + journal.getArity() + "-ary heap of "
+                        + journal.getLength() + " records, not a " + arity + "-ary heap of " + length);
+            if(journal.getPhase() == CheckpointJournal.Phase.BUILD)
+                buildFrom = journal.getIndex();
+            else{
+                sortFrom = journal.getIndex();
+                built = true;
+            }
+        }
+        untilCheckpoint = checkpointInterval;
+        long startTime = System.nanoTime();
+        if(!built)
+            buildMaxHeap(length, buildFrom);
+        long builtTime = System.nanoTime();
+        sort(length, sortFrom);
+        long sortedTime = System.nanoTime();
+        diskFileService.flush();
+        if(journal != null)
+            journal.finish();
+        phaseNanos.clear();
+        phaseNanos.put("buildMaxHeap", builtTime - startTime);
+        phaseNanos.put("sort", sortedTime - builtTime);
+        phaseNanos.put("flush", System.nanoTime() - sortedTime);
+    }
+    private void sort(long length, long lastIdx) throws IOException{
         while(lastIdx > 0){
-            Record first = diskFileService.read(0);
-            Record last = diskFileService.read(lastIdx);
-            diskFileService.swap(first, last);
-            heapify(lastIdx, 0);
+            checkpoint(CheckpointJournal.Phase.SORT, lastIdx, length);
+            if(bottomUp){
+                int record = diskFileService.recordAt(lastIdx);
+                diskFileService.move(0, lastIdx);
+                moves++;
+                blockTouches += 3;
+                siftBottomUp(lastIdx, 0, (short)(record >> 16), (short)record);
+            } else{
+                diskFileService.swap(0, lastIdx);
+                moves += 2;
+                blockTouches += 2;
+                siftDownFrom(lastIdx, 0);
+            }
             lastIdx--;
         }
-        diskFileService.flush();
     }
 }
@@ -0,0 +1,59 @@
+package externalsort;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The InMemorySortClient class is the fast path for files small enough to
+ * hold whole: one sequential read, a sort of the packed records in memory
+ * and one sequential write. It is only meant for files that fit in the
+ * memory the caller has set aside for them.
+ */
+public class InMemorySortClient implements SortEngine, CacheStats{
+    private static final int BLOCKSIZE = 4096;
+    private final RandomAccessFile raf;
+    private long blocksRead = 0;
+    private long blocksWritten = 0;
+
+    /**
+     * InMemorySortClient defined by the RandomAccessFile it sorts
+     * @param raf the file to be sorted, at most 2 GB
+     */
+    public InMemorySortClient(RandomAccessFile raf){
+        this.raf = raf;
+    }
+    @Override
+    public long getCacheHits(){
+        return 0;
+    }
+    @Override
+    public long getCacheMisses(){
+        return blocksRead;
+    }
+    @Override
+    public long getDiskWrites(){
+        return blocksWritten;
+    }
+
+    /**
+     * Reads the whole file, sorts its records as packed ints and writes
+     * them back
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        byte[] data = new byte[Math.toIntExact(raf.length())];
+        raf.seek(0);
+        raf.readFully(data);
+        blocksRead += (data.length + BLOCKSIZE - 1) / BLOCKSIZE;
+        int[] records = new int[data.length / 4];
+        ByteBuffer.wrap(data).asIntBuffer().get(records);
+        Arrays.sort(records);
+        ByteBuffer.wrap(data).asIntBuffer().put(records);
+        raf.seek(0);
+        raf.write(data);
+        blocksWritten += (data.length + BLOCKSIZE - 1) / BLOCKSIZE;
+    }
+}
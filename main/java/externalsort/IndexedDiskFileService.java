@@ -0,0 +1,93 @@
+package externalsort;
+
+import java.io.IOException;
+
+/**
+ * The IndexedDiskFileService interface is the primitive-level successor
+ * of DiskFileService. Records are addressed purely by their index in the
+ * disk file and keys are handed out as shorts, so the Heapsort algorithm
+ * never has to materialize Record objects in its inner loop.
+ */
+public interface IndexedDiskFileService extends DiskFileService {
+    /**
+     * Used to determine indexing
+     * @return the number of records in the disk file
+     * @throws IOException for RandomAccessFile operations
+     */
+    long numRecords() throws IOException;
+
+    /**
+     * The service's version of reading a key from a disk file
+     * @param idx the index of the record
+     * @return the key of the record as a short
+     * @throws IOException for RandomAccessFile operations
+     */
+    short keyAt(long idx) throws IOException;
+
+    /**
+     * The service's version of reading a value from a disk file
+     * @param idx the index of the record
+     * @return the value of the record as a short
+     * @throws IOException for RandomAccessFile operations
+     */
+    short valueAt(long idx) throws IOException;
+
+    /**
+     * Reads a whole record with one lookup of its block
+     * @param idx the index of the record
+     * @return the key in the high 16 bits and the value in the low 16 bits
+     * @throws IOException for RandomAccessFile operations
+     */
+    default int recordAt(long idx) throws IOException{
+        return (keyAt(idx) << 16) | (valueAt(idx) & 0xFFFF);
+    }
+
+    /**
+     * The service's version of swapping two records in a disk file
+     * by their indices
+     * @param idx1 the index of the first record to be swapped
+     * @param idx2 the index of the second record to be swapped
+     * @throws IOException for RandomAccessFile operations
+     */
+    void swap(long idx1, long idx2) throws IOException;
+
+    /**
+     * Swaps the two records only if the key at idx2 is greater than
+     * the key at idx1. This is the sift-down step of the Heapsort algorithm
+     * done with a single lookup of each block
+     * @param idx1 the index of the parent record
+     * @param idx2 the index of the child record
+     * @return true if the records were swapped, false otherwise
+     * @throws IOException for RandomAccessFile operations
+     */
+    boolean compareAndSwapIfGreater(long idx1, long idx2) throws IOException;
+
+    /**
+     * Overwrites the record at the given index
+     * @param idx the index of the record
+     * @param key the new key
+     * @param value the new value
+     * @throws IOException for RandomAccessFile operations
+     */
+    void set(long idx, short key, short value) throws IOException;
+
+    /**
+     * Copies the record at fromIdx over the record at toIdx, leaving the
+     * record at fromIdx as it was. Lets the Heapsort algorithm move a hole
+     * through the heap instead of swapping at every level
+     * @param fromIdx the index of the record to be copied
+     * @param toIdx the index of the record to be overwritten
+     * @throws IOException for RandomAccessFile operations
+     */
+    void move(long fromIdx, long toIdx) throws IOException;
+
+    /**
+     * Hints that the record at idx is likely to be read soon, so a service
+     * able to read ahead can start loading its block. Services that cannot
+     * do so ignore the hint
+     * @param idx the index of the record
+     * @throws IOException for RandomAccessFile operations
+     */
+    default void prefetch(long idx) throws IOException{
+    }
+}
@@ -0,0 +1,270 @@
+package externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The KeyPointerSortClient class sorts files of wide records without
+ * moving a record until its place is known. One sequential pass extracts
+ * the keys of every record, normalized so that they compare as unsigned
+ * bytes, and pairs them with the record's index. These entries are much
+ * smaller than the records. When they fit in memory they are sorted in
+ * primitive arrays: packed into longs for keys of up to four bytes, and by
+ * an LSD radix sort of the key bytes otherwise. Larger sets are spilled to
+ * a temporary file and heapsorted there by SchemaHeapSortClient. A single
+ * gather pass then reads the records in sorted order through the buffer
+ * pool and streams them to a new file through a SequentialWriter, which
+ * is renamed over the original, so every record is written exactly once.
+ * The service's RandomAccessFile is left open on the unsorted original, so
+ * the caller must reopen the target to see the result.
+ */
+public class KeyPointerSortClient implements SortEngine, CacheStats{
+    private static final int BLOCKSIZE = 4096;
+    // Blocks in each of the output writer's two buffers
+    private static final int WRITEBLOCKS = 64;
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private final BufferPoolService dataFileService;
+    private final RecordSchema.Key[] keys;
+    private final int recordSize;
+    private final int keyWidth;
+    private final File target;
+    private final File spillDir;
+    private final int memoryBlocks;
+    private long spillHits = 0;
+    private long spillMisses = 0;
+    private long spillReads = 0;
+    private long spillWrites = 0;
+    private long outputWrites = 0;
+    private boolean spilled = false;
+
+    /**
+     * Visits one record of the disk file during the key extraction pass
+     */
+    private interface RecordVisitor {
+        void visit(long idx, byte[] src, int offset) throws IOException;
+    }
+
+    /**
+     * Yields the index of the record that belongs at each position of the
+     * sorted file, asked for in order
+     */
+    private interface SortedOrder {
+        long indexAt(long position) throws IOException;
+    }
+
+    /**
+     * KeyPointerSortClient defined by the service for the disk file, the
+     * layout of its records, where the sorted file goes and how much memory
+     * the key entries may take
+     * @param dataFileService the service for the disk file being sorted
+     * @param schema the record size and keys of the file
+     * @param target the path of the disk file, which the sorted file replaces
+     * @param spillDir the directory the key file is spilled to
+     * @param memoryBlocks the blocks of memory the sorted entries may use
+     */
+    public KeyPointerSortClient(BufferPoolService dataFileService, RecordSchema schema, File target, File spillDir,
+                                int memoryBlocks){
+        this.dataFileService = dataFileService;
+        this.keys = schema.getKeys();
+        this.recordSize = schema.getRecordSize();
+        int width = 0;
+        for(RecordSchema.Key key : keys)
+            width += key.getWidth();
+        if(width + 8 > BLOCKSIZE)
+            throw new IllegalArgumentException("Keys of " + width + " bytes are too wide for key-pointer entries");
+        this.keyWidth = width;
+        this.target = target;
+        this.spillDir = spillDir;
+        this.memoryBlocks = Math.max(1, memoryBlocks);
+    }
+    @Override
+    public long getCacheHits(){
+        return dataFileService.getCacheHits() + spillHits;
+    }
+    @Override
+    public long getCacheMisses(){
+        return dataFileService.getCacheMisses() + spillMisses;
+    }
+    @Override
+    public long getDiskReads(){
+        return dataFileService.getDiskReads() + spillReads;
+    }
+    @Override
+    public long getDiskWrites(){
+        return dataFileService.getDiskWrites() + spillWrites + outputWrites;
+    }
+
+    /**
+     * Whether the key entries were too large for memory
+     * @return true if the last sort spilled its entries to a key file
+     */
+    public boolean isSpilled(){
+        return spilled;
+    }
+
+    /**
+     * Sorts the disk file by extracting and sorting its keys, then
+     * gathering the records into a new file in sorted order
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        dataFileService.flush();
+        long length = dataFileService.length();
+        if(length % BLOCKSIZE != 0)
+            throw new IllegalArgumentException("The file must be a whole number of " + BLOCKSIZE + "-byte blocks");
+        long numRecords = length / recordSize;
+        if(numRecords == 0)
+            return;
+        // Entries in memory are indexed by int, so huge files always spill
+        spilled = numRecords * (keyWidth + 8) > (long)memoryBlocks * BLOCKSIZE
+                || numRecords * keyWidth > Integer.MAX_VALUE - 8;
+        if(spilled)
+            sortSpilled(numRecords);
+        else if(keyWidth <= 4)
+            sortPacked((int)numRecords);
+        else
+            sortRadix((int)numRecords);
+    }
+
+    // Keys of up to 4 bytes and 32-bit indexes share one long, with the
+    // sign bit flipped so that signed order is unsigned order
+    private void sortPacked(int numRecords) throws IOException{
+        long[] entries = new long[numRecords];
+        byte[] key = new byte[4];
+        forEachRecord((idx, src, offset) -> {
+            normalize(src, offset, key, 0);
+            long k = (int)INT.get(key, 0) & 0xFFFFFFFFL;
+            entries[(int)idx] = (k << 32 | idx) ^ Long.MIN_VALUE;
+        });
+        Arrays.sort(entries);
+        gather(numRecords, position -> (int)entries[(int)position]);
+    }
+
+    // Keys are stored back to back and the record order is radix sorted
+    // one key byte at a time, least significant first
+    private void sortRadix(int numRecords) throws IOException{
+        byte[] keyBytes = new byte[numRecords * keyWidth];
+        forEachRecord((idx, src, offset) -> normalize(src, offset, keyBytes, (int)idx * keyWidth));
+        int[] order = new int[numRecords];
+        int[] next = new int[numRecords];
+        for(int i = 0; i < numRecords; i++)
+            order[i] = i;
+        int[] counts = new int[257];
+        for(int b = keyWidth - 1; b >= 0; b--){
+            Arrays.fill(counts, 0);
+            for(int i = 0; i < numRecords; i++)
+                counts[(keyBytes[i * keyWidth + b] & 0xFF) + 1]++;
+            // A byte that is the same in every key does not reorder anything
+            if(counts[(keyBytes[b] & 0xFF) + 1] == numRecords)
+                continue;
+            for(int i = 1; i < counts.length; i++)
+                counts[i] += counts[i - 1];
+            for(int i = 0; i < numRecords; i++){
+                int idx = order[i];
+                next[counts[keyBytes[idx * keyWidth + b] & 0xFF]++] = idx;
+            }
+            int[] temp = order;
+            order = next;
+            next = temp;
+        }
+        int[] sorted = order;
+        gather(numRecords, position -> sorted[(int)position]);
+    }
+
+    // Entries are the key bytes followed by the big-endian index, padded to
+    // a power of two so none spans two blocks, and are heapsorted as records
+    // whose single key is the key and index together. The last block is
+    // padded with all-ones entries, which sort after every real one
+    private void sortSpilled(long numRecords) throws IOException{
+        int entrySize = Integer.highestOneBit(keyWidth + 7) << 1;
+        int entriesPerBlock = BLOCKSIZE / entrySize;
+        RecordSchema entrySchema = new RecordSchema(entrySize,
+                new RecordSchema.Key(0, RecordSchema.KeyType.BYTES, keyWidth + 8, false));
+        File keyFile = File.createTempFile("externalsort", ".keys", spillDir);
+        try(RandomAccessFile raf = new RandomAccessFile(keyFile, "rw")){
+            BufferPoolService keyService = new BufferPoolService(raf, memoryBlocks);
+            byte[] block = new byte[BLOCKSIZE];
+            forEachRecord((idx, src, offset) -> {
+                int pos = (int)(idx % entriesPerBlock) * entrySize;
+                normalize(src, offset, block, pos);
+                LONG.set(block, pos + keyWidth, idx);
+                if(pos + entrySize == BLOCKSIZE)
+                    keyService.writeBlocks(idx / entriesPerBlock, block, 1);
+            });
+            int used = (int)(numRecords % entriesPerBlock);
+            if(used > 0){
+                Arrays.fill(block, used * entrySize, BLOCKSIZE, (byte)0xFF);
+                keyService.writeBlocks(numRecords / entriesPerBlock, block, 1);
+            }
+            new SchemaHeapSortClient(keyService, entrySchema).sortFile();
+            gather(numRecords, position -> {
+                int pos = (int)(position % entriesPerBlock) * entrySize;
+                if(pos == 0)
+                    keyService.readBlocks(position / entriesPerBlock, block, 1);
+                return (long)LONG.get(block, pos + keyWidth);
+            });
+            spillHits = keyService.getCacheHits();
+            spillMisses = keyService.getCacheMisses();
+            spillReads = keyService.getDiskReads();
+            spillWrites = keyService.getDiskWrites();
+        } finally{
+            keyFile.delete();
+        }
+    }
+
+    // Reads the disk file front to back in large block reads
+    private void forEachRecord(RecordVisitor visitor) throws IOException{
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        byte[] buffer = new byte[WRITEBLOCKS * BLOCKSIZE];
+        long idx = 0;
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += WRITEBLOCKS){
+            int n = (int)Math.min(WRITEBLOCKS, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            for(int offset = 0; offset < n * BLOCKSIZE; offset += recordSize)
+                visitor.visit(idx++, buffer, offset);
+        }
+    }
+
+    // Copies the keys of a record so they order as unsigned bytes: numeric
+    // keys have their sign bit flipped and descending keys are inverted
+    private void normalize(byte[] src, int offset, byte[] dst, int dstOffset){
+        for(RecordSchema.Key key : keys){
+            int width = key.getWidth();
+            System.arraycopy(src, offset + key.getOffset(), dst, dstOffset, width);
+            if(key.getType() != RecordSchema.KeyType.BYTES)
+                dst[dstOffset] ^= (byte)0x80;
+            if(key.isDescending()){
+                for(int i = dstOffset; i < dstOffset + width; i++)
+                    dst[i] = (byte)~dst[i];
+            }
+            dstOffset += width;
+        }
+    }
+
+    // Reads the records in sorted order into blocks and streams them to a
+    // new file that replaces the target
+    private void gather(long numRecords, SortedOrder order) throws IOException{
+        outputWrites += SequentialWriter.replace(target, WRITEBLOCKS, out -> {
+            byte[] block = new byte[BLOCKSIZE];
+            int pos = 0;
+            long blockNum = 0;
+            for(long position = 0; position < numRecords; position++){
+                dataFileService.readRecord(order.indexAt(position), recordSize, block, pos);
+                pos += recordSize;
+                if(pos == BLOCKSIZE){
+                    out.writeBlocks(blockNum++, block, 1);
+                    pos = 0;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package externalsort;
+
+/**
+ * The LatencyHistogram class counts latencies in power-of-two buckets of
+ * nanoseconds: bucket i holds the latencies from 2^i up to 2^(i+1) - 1,
+ * and bucket 0 also holds 0. Recording is one array increment, so it can
+ * sit on the block I/O path, and percentiles are read back to within a
+ * factor of two.
+ */
+class LatencyHistogram {
+    private final long[] buckets = new long[64];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * Counts one latency
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos){
+        nanos = Math.max(0, nanos);
+        buckets[63 - Long.numberOfLeadingZeros(nanos | 1)]++;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Adds every latency recorded by another histogram
+     * @param other the histogram to add
+     */
+    void add(LatencyHistogram other){
+        for(int i = 0; i < buckets.length; i++)
+            buckets[i] += other.buckets[i];
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Getter for the number of latencies recorded
+     * @return the count
+     */
+    long getCount(){
+        return count;
+    }
+
+    /**
+     * Getter for the largest latency recorded
+     * @return the maximum in nanoseconds, or 0 when empty
+     */
+    long getMax(){
+        return max;
+    }
+
+    /**
+     * Getter for the bucket counts
+     * @return a copy of the 64 buckets
+     */
+    long[] getBuckets(){
+        return buckets.clone();
+    }
+
+    /**
+     * Estimates a percentile by the upper bound of the bucket it falls in
+     * @param p the percentile, between 0 and 100
+     * @return the latency in nanoseconds, or 0 when empty
+     */
+    long percentile(double p){
+        long rank = (long)Math.ceil(count * p / 100);
+        long seen = 0;
+        for(int i = 0; i < buckets.length; i++){
+            seen += buckets[i];
+            if(seen >= rank && seen > 0)
+                return Math.min(max, (2L << i) - 1);
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the histogram as a JSON object
+     * @param out the builder receiving the object
+     */
+    void toJson(StringBuilder out){
+        out.append("{\"count\":").append(count)
+                .append(",\"p50\":").append(percentile(50))
+                .append(",\"p99\":").append(percentile(99))
+                .append(",\"max\":").append(max)
+                .append(",\"buckets\":");
+        Metrics.appendArray(out, buckets);
+        out.append('}');
+    }
+}
@@ -0,0 +1,151 @@
+package externalsort;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The LruKPolicy class is the LRU-K replacement scheme. Each frame keeps
+ * the logical times of its last K accesses and the victim is the frame
+ * whose K-th most recent access is oldest. Frames accessed fewer than K
+ * times are evicted first, least recently used first, so blocks touched
+ * once during a sweep cannot push out blocks that are touched over and
+ * over. Frames sit in a binary min-heap ordered by that access time; an
+ * access only ever makes a frame younger, so it is a single sift-down.
+ * The histories of recently evicted blocks are retained for a while, so a
+ * block that keeps coming back earns its place instead of starting over
+ * as a one-off every time it is read again. Histories and heap positions
+ * are kept by frame slot.
+ */
+class LruKPolicy implements ReplacementPolicy {
+    private final int k;
+    private final Map<Long, long[]> retained;
+    private final FrameSlots slots = new FrameSlots();
+    private long[][] history = new long[16][];
+    private int[] heapIdx = new int[16];
+    private BufferNode[] heap = new BufferNode[16];
+    private int heapSize = 0;
+    private long clock = 0;
+    // Evicted histories retained per buffer in the pool
+    private static final int RETAINED = 4;
+    // Accesses within this many ticks of the clock count as one operation
+    private static final int CORRELATED = 4;
+    private final BufferNode[] recent = new BufferNode[CORRELATED];
+
+    /**
+     * LruKPolicy is defined by how many past accesses it considers and
+     * the number of buffers, which bounds how many evicted histories are
+     * retained
+     * @param k the number of accesses tracked per frame (at least 1)
+     * @param numBuffers the number of buffers in the pool
+     */
+    LruKPolicy(int k, int numBuffers){
+        this.k = Math.max(1, k);
+        int maxRetained = Math.max(16, RETAINED * numBuffers);
+        this.retained = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest){
+                return size() > maxRetained;
+            }
+        };
+    }
+    @Override
+    public void admit(BufferNode buffNode){
+        int slot = slots.of(buffNode);
+        if(slot >= heapIdx.length){
+            int length = Math.max(slot + 1, heapIdx.length * 2);
+            history = Arrays.copyOf(history, length);
+            heapIdx = Arrays.copyOf(heapIdx, length);
+        }
+        long[] times = retained.remove(buffNode.getBlockNum());
+        if(times != null)
+            System.arraycopy(times, 0, times, 1, k - 1);
+        else
+            times = new long[k];
+        times[0] = ++clock;
+        history[slot] = times;
+        push(buffNode);
+    }
+    @Override
+    public void access(BufferNode buffNode){
+        long[] times = history[buffNode.slot];
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+        siftDown(heapIdx[buffNode.slot]);
+    }
+    @Override
+    public BufferNode victim(){
+        if(heapSize == 0)
+            return null;
+        // Frames used within the correlated reference period are skipped,
+        // so a block just read for the current operation is not the victim
+        int skipped = 0;
+        BufferNode buffNode = pop();
+        while(heapSize > 0 && history[buffNode.slot][0] > clock - CORRELATED && skipped < CORRELATED){
+            recent[skipped++] = buffNode;
+            buffNode = pop();
+        }
+        for(int i = 0; i < skipped; i++){
+            push(recent[i]);
+            recent[i] = null;
+        }
+        retained.put(buffNode.getBlockNum(), history[buffNode.slot]);
+        history[buffNode.slot] = null;
+        return buffNode;
+    }
+    private BufferNode pop(){
+        BufferNode buffNode = heap[0];
+        heap[0] = heap[--heapSize];
+        heapIdx[heap[0].slot] = 0;
+        heap[heapSize] = null;
+        if(heapSize > 0)
+            siftDown(0);
+        heapIdx[buffNode.slot] = -1;
+        return buffNode;
+    }
+    private void push(BufferNode buffNode){
+        if(heapSize == heap.length)
+            heap = Arrays.copyOf(heap, heapSize * 2);
+        heap[heapSize] = buffNode;
+        heapIdx[buffNode.slot] = heapSize;
+        siftUp(heapSize++);
+    }
+    private long priority(BufferNode buffNode){
+        long[] times = history[buffNode.slot];
+        if(times[k - 1] == 0)
+            return times[0] + Long.MIN_VALUE / 2;
+        return times[k - 1];
+    }
+    private void siftUp(int idx){
+        BufferNode buffNode = heap[idx];
+        long p = priority(buffNode);
+        while(idx > 0){
+            int parent = (idx - 1) / 2;
+            if(priority(heap[parent]) <= p)
+                break;
+            heap[idx] = heap[parent];
+            heapIdx[heap[idx].slot] = idx;
+            idx = parent;
+        }
+        heap[idx] = buffNode;
+        heapIdx[buffNode.slot] = idx;
+    }
+    private void siftDown(int idx){
+        BufferNode buffNode = heap[idx];
+        long p = priority(buffNode);
+        while(true){
+            int child = 2 * idx + 1;
+            if(child >= heapSize)
+                break;
+            if(child + 1 < heapSize && priority(heap[child + 1]) < priority(heap[child]))
+                child++;
+            if(priority(heap[child]) >= p)
+                break;
+            heap[idx] = heap[child];
+            heapIdx[heap[idx].slot] = idx;
+            idx = child;
+        }
+        heap[idx] = buffNode;
+        heapIdx[buffNode.slot] = idx;
+    }
+}
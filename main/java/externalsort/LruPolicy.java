@@ -0,0 +1,26 @@
+package externalsort;
+
+/**
+ * The LruPolicy class is the Least Recently Used replacement scheme. Frames
+ * are kept in an intrusive doubly-linked list from most to least recently
+ * used, so admitting, promoting and evicting are all constant time.
+ */
+class LruPolicy implements ReplacementPolicy {
+    private final FrameList frames = new FrameList();
+
+    @Override
+    public void admit(BufferNode buffNode){
+        frames.linkFront(buffNode);
+    }
+    @Override
+    public void access(BufferNode buffNode){
+        frames.moveToFront(buffNode);
+    }
+    @Override
+    public BufferNode victim(){
+        BufferNode buffNode = frames.tail();
+        if(buffNode != null)
+            frames.unlink(buffNode);
+        return buffNode;
+    }
+}
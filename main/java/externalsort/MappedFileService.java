@@ -0,0 +1,303 @@
+package externalsort;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MappedFileService class is an alternative to BufferPoolService that
+ * maps the disk file into memory and lets the operating system's page cache
+ * act as the buffer pool. The file is mapped in 1 GB windows so files
+ * larger than 2 GB can be addressed. Since the page cache is invisible to
+ * the program, hits, misses and writes are counted against a model of an
+ * LRU buffer pool of the same number of 4096 byte blocks: a touch of a
+ * block outside the window of the most recently touched blocks is a miss,
+ * and a block dirtied inside the window counts as one disk write when it
+ * leaves the window or is flushed. With the same number of buffers the
+ * counts match the LRU BufferPoolService's STATS, though the operating
+ * system may well have cached more of the file.
+ */
+public class MappedFileService implements IndexedDiskFileService, CacheStats{
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int WINDOWSHIFT = 30;
+    private static final long WINDOWMASK = (1L << WINDOWSHIFT) - 1;
+    private final RandomAccessFile raf;
+    private static final byte[] NODATA = new byte[0];
+    private final MappedByteBuffer[] windows;
+    // The modelled pool: its frames hold no data, only recency and dirtiness
+    private final int numBuffers;
+    private final BlockTable blockTable;
+    private final FrameList lru = new FrameList();
+    private BufferNode spare;
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long diskWrites = 0;
+
+    /**
+     * MappedFileService defined by the RandomAccessFile raf it maps, with
+     * a modelled pool large enough for every block of the file, so each
+     * block misses on its first touch only.
+     * The whole file is mapped read-write when the service is created
+     * @param raf the file to be mapped
+     * @throws IOException for FileChannel operations
+     */
+    public MappedFileService(RandomAccessFile raf) throws IOException{
+        this(raf, (int)Math.min(Integer.MAX_VALUE, (raf.length() + 4095) / 4096));
+    }
+
+    /**
+     * MappedFileService defined by the RandomAccessFile raf it maps and
+     * the number of buffers of the LRU pool its statistics model.
+     * The whole file is mapped read-write when the service is created
+     * @param raf the file to be mapped
+     * @param numBuffers the number of blocks in the modelled pool
+     * @throws IOException for FileChannel operations
+     */
+    public MappedFileService(RandomAccessFile raf, int numBuffers) throws IOException{
+        this.raf = raf;
+        this.numBuffers = Math.max(1, numBuffers);
+        this.blockTable = new BlockTable(Math.min(this.numBuffers, 1 << 20));
+        FileChannel channel = raf.getChannel();
+        long size = channel.size();
+        int numWindows = (int)((size + WINDOWMASK) >>> WINDOWSHIFT);
+        windows = new MappedByteBuffer[numWindows];
+        for(int i = 0; i < numWindows; i++){
+            long start = (long)i << WINDOWSHIFT;
+            windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(1L << WINDOWSHIFT, size - start));
+        }
+    }
+    @Override
+    public long getCacheHits(){
+        return cacheHits;
+    }
+    @Override
+    public long getCacheMisses(){
+        return cacheMisses;
+    }
+    @Override
+    public long getDiskWrites(){
+        return diskWrites;
+    }
+
+    /**
+     * Reads a Record straight out of the mapped file
+     * @param heapIdx the index that the Heapsort algorithm is
+     *                requesting
+     * @return the requested Record at the given offset
+     */
+    @Override
+    public Record read(long heapIdx){
+        touch(heapIdx, false);
+        trim();
+        long offset = heapIdx * 4;
+        return new Record(offset, getShort(offset), getShort(offset + 2));
+    }
+
+    /**
+     * Copies the BufferNode's block into the mapped file
+     * @param buffNode the BufferNode to be written
+     */
+    @Override
+    public void write(BufferNode buffNode){
+        long offset = buffNode.getBlockNum() * RECORDSPERBLOCK * 4;
+        byte[] data = buffNode.getData();
+        windows[(int)(offset >>> WINDOWSHIFT)].put((int)(offset & WINDOWMASK), data, 0, data.length);
+        touch(buffNode.getBlockNum() * RECORDSPERBLOCK, true);
+        trim();
+    }
+
+    /**
+     * Swaps the two given records in the mapped file
+     * @param r1 the first record to be swapped
+     * @param r2 the second record to be swapped
+     */
+    @Override
+    public void swap(Record r1, Record r2){
+        long heapIdx1 = r1.getOffset() / 4;
+        long heapIdx2 = r2.getOffset() / 4;
+        touch(heapIdx1, true);
+        touch(heapIdx2, true);
+        trim();
+        put(heapIdx1, r2.getKey(), r2.getValue());
+        put(heapIdx2, r1.getKey(), r1.getValue());
+        long temp = r2.getOffset();
+        r2.setOffset(r1.getOffset());
+        r1.setOffset(temp);
+    }
+
+    /**
+     * Reads a key straight out of the mapped file
+     * @param heapIdx the index of the record
+     * @return the key of the record as a short
+     */
+    @Override
+    public short keyAt(long heapIdx){
+        touch(heapIdx, false);
+        trim();
+        return getShort(heapIdx * 4);
+    }
+
+    /**
+     * Reads a value straight out of the mapped file
+     * @param heapIdx the index of the record
+     * @return the value of the record as a short
+     */
+    @Override
+    public short valueAt(long heapIdx){
+        touch(heapIdx, false);
+        trim();
+        return getShort(heapIdx * 4 + 2);
+    }
+
+    /**
+     * Swaps the records at the two given indices in the mapped file
+     * @param heapIdx1 the index of the first record to be swapped
+     * @param heapIdx2 the index of the second record to be swapped
+     */
+    @Override
+    public void swap(long heapIdx1, long heapIdx2){
+        touch(heapIdx1, true);
+        touch(heapIdx2, true);
+        trim();
+        exchange(heapIdx1, heapIdx2);
+    }
+
+    /**
+     * Swaps the records at the two given indices if the key at heapIdx2
+     * is greater than the key at heapIdx1
+     * @param heapIdx1 the index of the parent record
+     * @param heapIdx2 the index of the child record
+     * @return true if the records were swapped, false otherwise
+     */
+    @Override
+    public boolean compareAndSwapIfGreater(long heapIdx1, long heapIdx2){
+        BufferNode buffNode1 = touch(heapIdx1, false);
+        BufferNode buffNode2 = touch(heapIdx2, false);
+        boolean swapped = getShort(heapIdx2 * 4) > getShort(heapIdx1 * 4);
+        if(swapped){
+            buffNode1.setMustWrite(true);
+            buffNode2.setMustWrite(true);
+            exchange(heapIdx1, heapIdx2);
+        }
+        trim();
+        return swapped;
+    }
+
+    /**
+     * Overwrites a record in the mapped file
+     * @param heapIdx the index of the record
+     * @param key the new key
+     * @param value the new value
+     */
+    @Override
+    public void set(long heapIdx, short key, short value){
+        touch(heapIdx, true);
+        trim();
+        put(heapIdx, key, value);
+    }
+
+    /**
+     * Copies a record over another in the mapped file
+     * @param fromIdx the index of the record to be copied
+     * @param toIdx the index of the record to be overwritten
+     */
+    @Override
+    public void move(long fromIdx, long toIdx){
+        touch(fromIdx, false);
+        touch(toIdx, true);
+        trim();
+        putInt(toIdx * 4, getInt(fromIdx * 4));
+    }
+
+    /**
+     * Used to determine indexing
+     * @return the number of records in the mapped file
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public long numRecords() throws IOException{
+        return raf.length() / 4;
+    }
+
+    /**
+     * Used to determine indexing
+     * @return the length of the mapped file
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public long length() throws IOException{
+        return raf.length();
+    }
+
+    /**
+     * Forces every mapped window to disk. Each block of the modelled pool
+     * dirtied since the last flush is counted as one disk write
+     */
+    @Override
+    public void flush(){
+        for(BufferNode buffNode : blockTable.residents()){
+            if(buffNode.getMustWrite()){
+                diskWrites++;
+                buffNode.setMustWrite(false);
+            }
+        }
+        for(MappedByteBuffer window : windows)
+            window.force();
+    }
+
+    // Touches a block of the modelled pool, which may briefly hold more
+    // than numBuffers blocks so both blocks of a swap are resident, as in
+    // BufferPoolService, until trim is called
+    private BufferNode touch(long heapIdx, boolean mustWrite){
+        long blockNum = heapIdx / RECORDSPERBLOCK;
+        BufferNode buffNode = blockTable.get(blockNum);
+        if(buffNode != null){
+            cacheHits++;
+            lru.moveToFront(buffNode);
+        } else{
+            cacheMisses++;
+            if(spare != null){
+                buffNode = spare;
+                buffNode.rebind(blockNum);
+                spare = null;
+            } else{
+                buffNode = new BufferNode(blockNum, NODATA);
+            }
+            blockTable.put(blockNum, buffNode);
+            lru.linkFront(buffNode);
+        }
+        if(mustWrite)
+            buffNode.setMustWrite(true);
+        return buffNode;
+    }
+    private void trim(){
+        while(lru.size() > numBuffers){
+            BufferNode victim = lru.tail();
+            lru.unlink(victim);
+            blockTable.remove(victim.getBlockNum());
+            if(victim.getMustWrite())
+                diskWrites++;
+            spare = victim;
+        }
+    }
+    private void exchange(long heapIdx1, long heapIdx2){
+        int record1 = getInt(heapIdx1 * 4);
+        putInt(heapIdx1 * 4, getInt(heapIdx2 * 4));
+        putInt(heapIdx2 * 4, record1);
+    }
+    private void put(long heapIdx, short key, short value){
+        long offset = heapIdx * 4;
+        windows[(int)(offset >>> WINDOWSHIFT)].putShort((int)(offset & WINDOWMASK), key);
+        windows[(int)(offset >>> WINDOWSHIFT)].putShort((int)(offset & WINDOWMASK) + 2, value);
+    }
+    private short getShort(long offset){
+        return windows[(int)(offset >>> WINDOWSHIFT)].getShort((int)(offset & WINDOWMASK));
+    }
+    private int getInt(long offset){
+        return windows[(int)(offset >>> WINDOWSHIFT)].getInt((int)(offset & WINDOWMASK));
+    }
+    private void putInt(long offset, int record){
+        windows[(int)(offset >>> WINDOWSHIFT)].putInt((int)(offset & WINDOWMASK), record);
+    }
+}
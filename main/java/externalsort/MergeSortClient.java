@@ -0,0 +1,473 @@
+package externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The MergeSortClient class sorts the disk file with an external merge
+ * sort instead of the Heapsort algorithm. Memory-sized runs are sorted in
+ * RAM and written to a spill file, then merged k at a time through a small
+ * in-memory heap of run heads until a single run is written back over the
+ * disk file. All file access goes through the block reading and writing of
+ * BufferPoolService, so every pass is sequential. Runs can instead be
+ * generated by replacement selection, which makes them about twice as
+ * long on random input and saves merge passes, or as natural runs, where
+ * each sorted chunk that continues the previous one extends its run, so
+ * input that is already in order needs few or no merges. A resumable
+ * sort names its spill files after the disk file and records the current
+ * runs in a RunManifest after run generation and after every merge pass,
+ * so a sort interrupted after its runs were generated restarts from its
+ * last completed pass.
+ * Out of place, the last merge streams the sorted file into a new file
+ * through a double-buffered SequentialWriter, which is then renamed over
+ * the original, so the sorted output is written in large sequential
+ * writes instead of block by block. With run compression, the spill files
+ * are CompressedRunFiles, which store each block of a run delta-encoded
+ * and bit-packed, trading codec time for fewer spill bytes moved.
+ * Records are compared as packed ints (key in the high half, value in the
+ * low half), so records with equal keys come out ordered by value.
+ */
+public class MergeSortClient implements SortEngine, CacheStats{
+    /**
+     * The ways the initial runs can be generated
+     */
+    public enum RunGeneration {SORTED, REPLACEMENT, NATURAL}
+
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    // Blocks in each of the out-of-place writer's two buffers
+    private static final int WRITEBLOCKS = 64;
+    private final BufferPoolService dataFileService;
+    private final File target;
+    private final File spillDir;
+    private final int memoryBlocks;
+    private final RunGeneration runGeneration;
+    private long spillMisses = 0;
+    private long spillWrites = 0;
+    private long outputWrites = 0;
+    private boolean compressRuns = false;
+    private long runBytes = 0;
+    private long compressedRunBytes = 0;
+    private long compressedBytesRead = 0;
+    private long codecNanos = 0;
+    private int numRuns = 0;
+    private long runRecords = 0;
+    private int mergePasses = 0;
+    private File resumeFile = null;
+    private boolean resumed = false;
+
+    /**
+     * MergeSortClient defined by the BufferPoolService of the disk file,
+     * the directory for its spill files, and how many blocks it may hold
+     * in memory at once
+     * @param dataFileService the service for the disk file being sorted
+     * @param spillDir the directory temporary run files are created in
+     * @param memoryBlocks the size of a run, and one more than the
+     *                     number of runs merged at once, raised to 2 if smaller
+     */
+    public MergeSortClient(BufferPoolService dataFileService, File spillDir, int memoryBlocks){
+        this(dataFileService, spillDir, memoryBlocks, RunGeneration.SORTED);
+    }
+
+    /**
+     * MergeSortClient with a choice of run generation
+     * @param dataFileService the service for the disk file being sorted
+     * @param spillDir the directory temporary run files are created in
+     * @param memoryBlocks the size of a run, and one more than the
+     *                     number of runs merged at once, raised to 2 if smaller
+     * @param replacementSelection true to generate runs by replacement
+     *                             selection, false to sort memory-sized runs
+     */
+    public MergeSortClient(BufferPoolService dataFileService, File spillDir, int memoryBlocks,
+                           boolean replacementSelection){
+        this(dataFileService, spillDir, memoryBlocks,
+                replacementSelection ? RunGeneration.REPLACEMENT : RunGeneration.SORTED);
+    }
+
+    /**
+     * MergeSortClient with a choice of run generation
+     * @param dataFileService the service for the disk file being sorted
+     * @param spillDir the directory temporary run files are created in
+     * @param memoryBlocks the size of a run, and one more than the
+     *                     number of runs merged at once, raised to 2 if smaller
+     * @param runGeneration how the initial runs are generated
+     */
+    public MergeSortClient(BufferPoolService dataFileService, File spillDir, int memoryBlocks,
+                           RunGeneration runGeneration){
+        this(dataFileService, spillDir, memoryBlocks, runGeneration, null);
+    }
+
+    /**
+     * MergeSortClient that writes the sorted file out of place. The
+     * sorted records go to a new file next to target, which is then
+     * atomically renamed over it. The service's RandomAccessFile is left
+     * open on the unsorted original, so the caller must reopen target to
+     * see the result
+     * @param dataFileService the service for the disk file being sorted
+     * @param spillDir the directory temporary run files are created in
+     * @param memoryBlocks the size of a run, and one more than the
+     *                     number of runs merged at once, raised to 2 if smaller
+     * @param runGeneration how the initial runs are generated
+     * @param target the path of the disk file, or null to sort in place
+     */
+    public MergeSortClient(BufferPoolService dataFileService, File spillDir, int memoryBlocks,
+                           RunGeneration runGeneration, File target){
+        this.dataFileService = dataFileService;
+        this.target = target;
+        this.spillDir = spillDir;
+        this.memoryBlocks = Math.max(2, memoryBlocks);
+        this.runGeneration = runGeneration;
+    }
+    @Override
+    public long getCacheHits(){
+        return dataFileService.getCacheHits();
+    }
+    @Override
+    public long getCacheMisses(){
+        return dataFileService.getCacheMisses() + spillMisses;
+    }
+    @Override
+    public long getDiskWrites(){
+        return dataFileService.getDiskWrites() + spillWrites + outputWrites;
+    }
+    public int getNumRuns(){
+        return numRuns;
+    }
+    public int getMergePasses(){
+        return mergePasses;
+    }
+
+    /**
+     * Stores runs compressed in the spill files instead of as raw blocks
+     * @param compress true to compress the runs
+     */
+    public void enableRunCompression(boolean compress){
+        this.compressRuns = compress;
+    }
+
+    /**
+     * Keeps the spill files, named after file, and their run manifest
+     * until the sort succeeds, so a sort of the same file interrupted
+     * after its runs were generated resumes from its last completed merge
+     * pass. Runs cannot be both resumable and compressed
+     * @param file the disk file being sorted
+     */
+    public void enableResume(File file){
+        this.resumeFile = file;
+    }
+
+    /**
+     * Getter for whether the last sort resumed the runs of an interrupted one
+     * @return true if the runs were read from a run manifest
+     */
+    public boolean isResumed(){
+        return resumed;
+    }
+
+    /**
+     * Getter for the bytes of runs written to the spill files, before
+     * compression
+     * @return the raw run bytes
+     */
+    public long getRunBytes(){
+        return runBytes;
+    }
+
+    /**
+     * Getter for the bytes of runs written to the spill files. Without
+     * compression this is the raw run bytes
+     * @return the bytes written
+     */
+    public long getSpilledBytes(){
+        return compressRuns ? compressedRunBytes : runBytes;
+    }
+
+    /**
+     * Getter for the bytes of compressed runs read back from the spill files
+     * @return the compressed bytes read, or 0 without compression
+     */
+    public long getCompressedBytesRead(){
+        return compressedBytesRead;
+    }
+
+    /**
+     * Getter for the compression ratio of the runs
+     * @return the raw run bytes per byte written, 1 without compression
+     */
+    public double getCompressionRatio(){
+        return getSpilledBytes() == 0 ? 1 : runBytes / (double)getSpilledBytes();
+    }
+
+    /**
+     * Getter for the time spent compressing and decompressing runs
+     * @return the codec time in nanoseconds
+     */
+    public long getCodecNanos(){
+        return codecNanos;
+    }
+
+    /**
+     * Getter for the average length of the initial runs
+     * @return the average number of records per run, or 0 before sorting
+     */
+    public double getAverageRunLength(){
+        return numRuns == 0 ? 0 : runRecords / (double)numRuns;
+    }
+
+    /**
+     * Sorts the disk file. A file that fits in memory is sorted in a
+     * single read and write; otherwise runs are generated and merged
+     * through two spill files that are deleted afterwards, or kept with
+     * their run manifest after a failure when resume is enabled
+     * @throws IOException for RandomAccessFile operations, or a run
+     *                     manifest that does not match the disk file
+     */
+    @Override
+    public void sortFile() throws IOException{
+        dataFileService.flush();
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        if(numBlocks <= memoryBlocks){
+            int n = (int)numBlocks;
+            byte[] buffer = new byte[n * BLOCKSIZE];
+            dataFileService.readBlocks(0, buffer, n);
+            sortBlocks(buffer, new int[n * RECORDSPERBLOCK], n);
+            if(target == null){
+                dataFileService.writeBlocks(0, buffer, n);
+            } else{
+                outputWrites += SequentialWriter.replace(target, WRITEBLOCKS, out -> out.writeBlocks(0, buffer, n));
+            }
+            numRuns = 1;
+            runRecords = (long)n * RECORDSPERBLOCK;
+            return;
+        }
+        File file1;
+        File file2;
+        File manifest = null;
+        if(resumeFile == null){
+            file1 = File.createTempFile("externalsort", ".run", spillDir);
+            file2 = File.createTempFile("externalsort", ".run", spillDir);
+        } else{
+            if(compressRuns)
+                throw new IllegalStateException("Compressed runs cannot be resumed");
+            file1 = new File(spillDir, resumeFile.getName() + ".run1");
+            file2 = new File(spillDir, resumeFile.getName() + ".run2");
+            manifest = new File(spillDir, resumeFile.getName() + ".runs");
+        }
+        boolean sorted = false;
+        try(RandomAccessFile raf1 = new RandomAccessFile(file1, "rw");
+            RandomAccessFile raf2 = new RandomAccessFile(file2, "rw")){
+            RunStore spill1 = compressRuns ? new CompressedRunFile(raf1) : new BufferPoolService(raf1, 1);
+            RunStore spill2 = compressRuns ? new CompressedRunFile(raf2) : new BufferPoolService(raf2, 1);
+            List<Run> runs;
+            int srcSpill = 1;
+            if(manifest != null && manifest.exists()){
+                RunManifest leftover = RunManifest.read(manifest);
+                runs = leftover.getRuns();
+                srcSpill = leftover.getSpill();
+                checkRuns(manifest, runs, srcSpill == 1 ? raf1 : raf2, numBlocks);
+                resumed = true;
+            } else{
+                runs = switch(runGeneration){
+                    case SORTED -> generateRuns(spill1, numBlocks);
+                    case REPLACEMENT -> new ReplacementSelection(dataFileService, spill1, memoryBlocks)
+                            .generateRuns(numBlocks);
+                    case NATURAL -> generateNaturalRuns(spill1, numBlocks);
+                };
+                saveRuns(manifest, raf1, 1, runs);
+            }
+            numRuns = runs.size();
+            for(Run run : runs)
+                runRecords += run.getNumRecords();
+            RunStore src = srcSpill == 1 ? spill1 : spill2;
+            RunStore dst = srcSpill == 1 ? spill2 : spill1;
+            int fanIn = Math.max(2, memoryBlocks - 1);
+            while(runs.size() > fanIn){
+                runs = mergePass(src, dst, runs, fanIn);
+                RunStore temp = src;
+                src = dst;
+                dst = temp;
+                srcSpill = 3 - srcSpill;
+                saveRuns(manifest, srcSpill == 1 ? raf1 : raf2, srcSpill, runs);
+            }
+            if(target == null){
+                merge(src, runs, dataFileService::writeBlocks, 0);
+            } else{
+                RunStore last = src;
+                List<Run> lastRuns = runs;
+                outputWrites += SequentialWriter.replace(target, WRITEBLOCKS, out -> merge(last, lastRuns, out, 0));
+            }
+            mergePasses++;
+            spillMisses = spill1.getCacheMisses() + spill2.getCacheMisses();
+            spillWrites = spill1.getDiskWrites() + spill2.getDiskWrites();
+            runBytes = spillWrites * BLOCKSIZE;
+            if(compressRuns){
+                CompressedRunFile crf1 = (CompressedRunFile)spill1;
+                CompressedRunFile crf2 = (CompressedRunFile)spill2;
+                compressedRunBytes = crf1.getBytesWritten() + crf2.getBytesWritten();
+                compressedBytesRead = crf1.getBytesRead() + crf2.getBytesRead();
+                codecNanos = crf1.getCodecNanos() + crf2.getCodecNanos();
+            }
+            sorted = true;
+        } finally{
+            if(manifest == null || sorted){
+                file1.delete();
+                file2.delete();
+                if(manifest != null)
+                    manifest.delete();
+            }
+        }
+    }
+    // Forces the spill file holding the runs before the manifest points
+    // at them, so the manifest never names runs that were not written
+    private void saveRuns(File manifest, RandomAccessFile raf, int spill, List<Run> runs) throws IOException{
+        if(manifest == null)
+            return;
+        raf.getChannel().force(false);
+        new RunManifest(spill, runs).write(manifest);
+    }
+    private static void checkRuns(File manifest, List<Run> runs, RandomAccessFile raf, long numBlocks)
+            throws IOException{
+        long records = 0;
+        long end = 0;
+        for(Run run : runs){
+            records += run.getNumRecords();
+            end = Math.max(end, run.getStartBlock() + run.getNumBlocks(RECORDSPERBLOCK));
+        }
+        if(records != numBlocks * RECORDSPERBLOCK || end * BLOCKSIZE > raf.length())
+            throw new IOException(manifest + " does not hold the runs of a file of " + numBlocks + " blocks");
+    }
+    private List<Run> generateRuns(RunStore spill, long numBlocks) throws IOException{
+        byte[] buffer = new byte[memoryBlocks * BLOCKSIZE];
+        int[] records = new int[memoryBlocks * RECORDSPERBLOCK];
+        List<Run> runs = new ArrayList<>();
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+            int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            sortBlocks(buffer, records, n);
+            spill.writeBlocks(blockNum, buffer, n);
+            runs.add(new Run(blockNum, (long)n * RECORDSPERBLOCK));
+        }
+        return runs;
+    }
+    private List<Run> generateNaturalRuns(RunStore spill, long numBlocks) throws IOException{
+        byte[] buffer = new byte[memoryBlocks * BLOCKSIZE];
+        int[] records = new int[memoryBlocks * RECORDSPERBLOCK];
+        List<Run> runs = new ArrayList<>();
+        long runStart = 0;
+        long runRecords = 0;
+        int last = 0;
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+            int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            sortBlocks(buffer, records, n);
+            if(runRecords > 0 && records[0] < last){
+                runs.add(new Run(runStart, runRecords));
+                runStart = blockNum;
+                runRecords = 0;
+            }
+            spill.writeBlocks(blockNum, buffer, n);
+            runRecords += (long)n * RECORDSPERBLOCK;
+            last = records[n * RECORDSPERBLOCK - 1];
+        }
+        if(runRecords > 0)
+            runs.add(new Run(runStart, runRecords));
+        return runs;
+    }
+    private List<Run> mergePass(RunStore src, RunStore dst, List<Run> runs, int fanIn)
+            throws IOException{
+        List<Run> merged = new ArrayList<>();
+        long outBlock = 0;
+        for(int i = 0; i < runs.size(); i += fanIn){
+            Run run = merge(src, runs.subList(i, Math.min(i + fanIn, runs.size())), dst::writeBlocks, outBlock);
+            merged.add(run);
+            outBlock += run.getNumBlocks(RECORDSPERBLOCK);
+        }
+        mergePasses++;
+        return merged;
+    }
+    private Run merge(RunStore src, List<Run> runs, BlockWriter dst, long startBlock)
+            throws IOException{
+        int k = runs.size();
+        byte[][] inBlocks = new byte[k][BLOCKSIZE];
+        long[] nextBlock = new long[k];
+        long[] remaining = new long[k];
+        int[] pos = new int[k];
+        int[] heads = new int[k];
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for(int i = 0; i < k; i++){
+            Run run = runs.get(i);
+            if(run.getNumRecords() == 0)
+                continue;
+            src.readBlocks(run.getStartBlock(), inBlocks[i], 1);
+            nextBlock[i] = run.getStartBlock() + 1;
+            remaining[i] = run.getNumRecords();
+            heads[i] = (int)INT.get(inBlocks[i], 0);
+            heap[heapSize++] = i;
+        }
+        for(int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(heap, heapSize, heads, i);
+        byte[] out = new byte[BLOCKSIZE];
+        int outPos = 0;
+        long outBlock = startBlock;
+        long total = 0;
+        while(heapSize > 0){
+            int r = heap[0];
+            INT.set(out, outPos * 4, heads[r]);
+            outPos++;
+            total++;
+            if(outPos == RECORDSPERBLOCK){
+                dst.writeBlocks(outBlock++, out, 1);
+                outPos = 0;
+            }
+            if(--remaining[r] == 0){
+                heap[0] = heap[--heapSize];
+            } else{
+                if(++pos[r] == RECORDSPERBLOCK){
+                    src.readBlocks(nextBlock[r]++, inBlocks[r], 1);
+                    pos[r] = 0;
+                }
+                heads[r] = (int)INT.get(inBlocks[r], pos[r] * 4);
+            }
+            siftDown(heap, heapSize, heads, 0);
+        }
+        if(outPos > 0)
+            dst.writeBlocks(outBlock, out, 1);
+        return new Run(startBlock, total);
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int[] heads, int idx){
+        int r = heap[idx];
+        while(true){
+            int child = 2 * idx + 1;
+            if(child >= heapSize)
+                break;
+            if(child + 1 < heapSize && heads[heap[child + 1]] < heads[heap[child]])
+                child++;
+            if(heads[heap[child]] >= heads[r])
+                break;
+            heap[idx] = heap[child];
+            idx = child;
+        }
+        heap[idx] = r;
+    }
+    static void sortBlocks(byte[] buffer, int[] records, int numBlocks){
+        int n = numBlocks * RECORDSPERBLOCK;
+        IntBuffer view = ByteBuffer.wrap(buffer).asIntBuffer();
+        view.get(records, 0, n);
+        Arrays.sort(records, 0, n);
+        view.clear();
+        view.put(records, 0, n);
+    }
+}
@@ -0,0 +1,280 @@
+package externalsort;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Metrics class keeps the exact counters of one BufferPoolService, or
+ * of one stripe of a SharedBufferPool: hits, misses, block reads and
+ * writes, evictions and bytes moved, as longs so they do not overflow on
+ * large files. It also times every block read and write into latency
+ * histograms, accumulates the time spent in named sort phases and, once
+ * enabled, counts the accesses to each block in a heat map, which is off
+ * by default because it costs a store on every hit. Everything can be
+ * exported as JSON or registered as an MXBean. Counters are updated by
+ * one thread at a time and read by JMX without locking, so a JMX client
+ * may see them a moment out of date.
+ */
+public class Metrics implements MetricsMXBean{
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long diskReads = 0;
+    private long diskWrites = 0;
+    private long evictions = 0;
+    private long dirtyEvictions = 0;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    // Grows to cover the highest block accessed
+    private long[] heat = new long[64];
+    private int heatBlocks = 0;
+    private boolean heatMap = false;
+
+    // Created by the pool it measures.
+    Metrics() {}
+
+    /**
+     * Adds up the metrics of the stripes of a pool
+     * @param parts the metrics to add up
+     * @return new metrics holding the sums
+     */
+    static Metrics sum(Metrics... parts){
+        Metrics total = new Metrics();
+        for(Metrics part : parts){
+            total.cacheHits += part.cacheHits;
+            total.cacheMisses += part.cacheMisses;
+            total.diskReads += part.diskReads;
+            total.diskWrites += part.diskWrites;
+            total.evictions += part.evictions;
+            total.dirtyEvictions += part.dirtyEvictions;
+            total.bytesRead += part.bytesRead;
+            total.bytesWritten += part.bytesWritten;
+            total.readLatency.add(part.readLatency);
+            total.writeLatency.add(part.writeLatency);
+            total.addPhases(part.phaseNanos);
+            long[] heat = part.getBlockHeat();
+            total.cover(heat.length);
+            for(int i = 0; i < heat.length; i++)
+                total.heat[i] += heat[i];
+            total.heatMap |= part.heatMap;
+        }
+        return total;
+    }
+
+    /**
+     * Turns counting the accesses to each block on or off
+     * @param enabled true to keep the heat map up to date
+     */
+    public void enableHeatMap(boolean enabled){
+        this.heatMap = enabled;
+    }
+
+    void hit(long blockNum){
+        cacheHits++;
+        touch(blockNum);
+    }
+    void miss(long blockNum){
+        cacheMisses++;
+        touch(blockNum);
+    }
+    // Called on the sorting thread, for its own reads and for those the
+    // prefetcher reports
+    void read(int numBlocks, long bytes, long nanos){
+        diskReads += numBlocks;
+        bytesRead += bytes;
+        readLatency.record(nanos);
+    }
+    void write(int writes, long bytes, long nanos){
+        diskWrites += writes;
+        bytesWritten += bytes;
+        writeLatency.record(nanos);
+    }
+
+    // Blocks handed to the write-behind queue count as written when queued,
+    // and uncounted if they are taken back before the writer gets to them
+    void queueWrite(int bytes){
+        diskWrites++;
+        bytesWritten += bytes;
+    }
+    void cancelWrite(int bytes){
+        diskWrites--;
+        bytesWritten -= bytes;
+    }
+    void evict(boolean dirty){
+        evictions++;
+        if(dirty)
+            dirtyEvictions++;
+    }
+    private void touch(long blockNum){
+        if(!heatMap)
+            return;
+        cover(blockNum + 1);
+        heat[(int)blockNum]++;
+    }
+    private void cover(long numBlocks){
+        if(numBlocks > heat.length)
+            heat = Arrays.copyOf(heat, (int)Math.max(numBlocks, 2L * heat.length));
+        heatBlocks = (int)Math.max(heatBlocks, numBlocks);
+    }
+
+    /**
+     * Adds time spent in a phase of the sort. Time added to the same phase
+     * twice accumulates
+     * @param phase the name of the phase, such as buildMaxHeap
+     * @param nanos the time spent in nanoseconds
+     */
+    public void addPhase(String phase, long nanos){
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * Adds the times of several phases
+     * @param phases the time spent in each phase in nanoseconds
+     */
+    public void addPhases(Map<String, Long> phases){
+        phases.forEach(this::addPhase);
+    }
+    @Override
+    public long getCacheHits(){
+        return cacheHits;
+    }
+    @Override
+    public long getCacheMisses(){
+        return cacheMisses;
+    }
+    @Override
+    public long getDiskReads(){
+        return diskReads;
+    }
+    @Override
+    public long getDiskWrites(){
+        return diskWrites;
+    }
+    @Override
+    public long getEvictions(){
+        return evictions;
+    }
+    @Override
+    public long getDirtyEvictions(){
+        return dirtyEvictions;
+    }
+    @Override
+    public long getBytesRead(){
+        return bytesRead;
+    }
+    @Override
+    public long getBytesWritten(){
+        return bytesWritten;
+    }
+    @Override
+    public Map<String, Long> getPhaseNanos(){
+        return new LinkedHashMap<>(phaseNanos);
+    }
+    @Override
+    public long[] getReadLatencyBuckets(){
+        return readLatency.getBuckets();
+    }
+    @Override
+    public long[] getWriteLatencyBuckets(){
+        return writeLatency.getBuckets();
+    }
+    @Override
+    public long[] getBlockHeat(){
+        return Arrays.copyOf(heat, heatBlocks);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as
+     * externalsort:type=Metrics,name=name
+     * @param name the name distinguishing this pool from others
+     * @return the name the metrics were registered under
+     * @throws JMException if the name is malformed or already registered
+     */
+    public ObjectName register(String name) throws JMException{
+        return register(this, name);
+    }
+
+    /**
+     * Registers any view of metrics with the platform MBean server as
+     * externalsort:type=Metrics,name=name
+     * @param metrics the view to register
+     * @param name the name distinguishing this pool from others
+     * @return the name the metrics were registered under
+     * @throws JMException if the name is malformed or already registered
+     */
+    static ObjectName register(MetricsMXBean metrics, String name) throws JMException{
+        ObjectName objectName = new ObjectName("externalsort:type=Metrics,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try{
+            server.registerMBean(metrics, objectName);
+        } catch(InstanceAlreadyExistsException e){
+            throw new JMException("Metrics already registered as " + objectName);
+        }
+        return objectName;
+    }
+
+    /**
+     * Removes metrics registered by register
+     * @param objectName the name returned by register
+     * @throws JMException if nothing is registered under the name
+     */
+    public static void unregister(ObjectName objectName) throws JMException{
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch(InstanceNotFoundException e){
+            throw new JMException("No metrics registered as " + objectName);
+        }
+    }
+
+    /**
+     * Exports every counter, phase, histogram and the heat map as one JSON
+     * object
+     * @return the JSON text
+     */
+    public String toJson(){
+        StringBuilder out = new StringBuilder();
+        out.append("{\"cacheHits\":").append(cacheHits)
+                .append(",\"cacheMisses\":").append(cacheMisses)
+                .append(",\"diskReads\":").append(diskReads)
+                .append(",\"diskWrites\":").append(diskWrites)
+                .append(",\"evictions\":").append(evictions)
+                .append(",\"dirtyEvictions\":").append(dirtyEvictions)
+                .append(",\"bytesRead\":").append(bytesRead)
+                .append(",\"bytesWritten\":").append(bytesWritten)
+                .append(",\"phaseNanos\":{");
+        boolean first = true;
+        for(Map.Entry<String, Long> phase : phaseNanos.entrySet()){
+            if(!first)
+                out.append(',');
+            first = false;
+            out.append('"').append(phase.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":")
+                    .append(phase.getValue());
+        }
+        out.append("},\"readLatencyNanos\":");
+        readLatency.toJson(out);
+        out.append(",\"writeLatencyNanos\":");
+        writeLatency.toJson(out);
+        out.append(",\"blockHeat\":");
+        appendArray(out, getBlockHeat());
+        out.append('}');
+        return out.toString();
+    }
+    static void appendArray(StringBuilder out, long[] values){
+        out.append('[');
+        for(int i = 0; i < values.length; i++){
+            if(i > 0)
+                out.append(',');
+            out.append(values[i]);
+        }
+        out.append(']');
+    }
+}
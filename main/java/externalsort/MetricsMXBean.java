@@ -0,0 +1,81 @@
+package externalsort;
+
+import java.util.Map;
+
+/**
+ * The MetricsMXBean interface is the JMX view of a buffer pool's Metrics,
+ * so a running sort can be watched and graphed from a JMX client.
+ */
+public interface MetricsMXBean {
+    /**
+     * Getter for the accesses served from a buffer
+     * @return the number of cache hits
+     */
+    long getCacheHits();
+
+    /**
+     * Getter for the accesses that had to read their block
+     * @return the number of cache misses
+     */
+    long getCacheMisses();
+
+    /**
+     * Getter for the blocks read from the disk file
+     * @return the number of block reads
+     */
+    long getDiskReads();
+
+    /**
+     * Getter for the blocks written to the disk file
+     * @return the number of block writes
+     */
+    long getDiskWrites();
+
+    /**
+     * Getter for the buffers evicted to make room for another block
+     * @return the number of evictions
+     */
+    long getEvictions();
+
+    /**
+     * Getter for the evicted buffers that had to be written back
+     * @return the number of dirty evictions
+     */
+    long getDirtyEvictions();
+
+    /**
+     * Getter for the bytes read from the disk file
+     * @return the bytes read
+     */
+    long getBytesRead();
+
+    /**
+     * Getter for the bytes written to the disk file
+     * @return the bytes written
+     */
+    long getBytesWritten();
+
+    /**
+     * Getter for the time spent in each named phase of the sort
+     * @return the nanoseconds of each phase, in the order first added
+     */
+    Map<String, Long> getPhaseNanos();
+
+    /**
+     * Getter for the block read latencies
+     * @return 64 power-of-two buckets of nanoseconds, see LatencyHistogram
+     */
+    long[] getReadLatencyBuckets();
+
+    /**
+     * Getter for the block write latencies
+     * @return 64 power-of-two buckets of nanoseconds, see LatencyHistogram
+     */
+    long[] getWriteLatencyBuckets();
+
+    /**
+     * Getter for the heat map, empty unless it was enabled
+     * @return the accesses to each block, up to the highest block accessed
+     */
+    long[] getBlockHeat();
+}
@@ -0,0 +1,349 @@
+package externalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ParallelSortClient class is a multi-core version of MergeSortClient.
+ * The file is split into block-aligned runs that are sorted concurrently on
+ * a ForkJoinPool, each worker holding at most memoryBlocks blocks. Groups of
+ * runs are then merged concurrently until few enough remain, and the final
+ * merge is split by key range: a key histogram gathered while sorting the
+ * runs gives splitter keys that cut the output into equal slices, and each
+ * worker k-way merges its key range from every run straight into its slice
+ * of the disk file. All I/O is positional FileChannel I/O so workers never
+ * share a file cursor.
+ */
+public class ParallelSortClient implements SortEngine, CacheStats{
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private static final int NUMKEYS = 1 << 16;
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final RandomAccessFile raf;
+    private final File spillDir;
+    private final int memoryBlocks;
+    private final int threads;
+    private final LongAdder blocksRead = new LongAdder();
+    private final LongAdder blocksWritten = new LongAdder();
+    private int numRuns = 0;
+    private int mergePasses = 0;
+
+    /**
+     * An I/O step run by one worker
+     */
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * ParallelSortClient defined by the disk file, the directory for its
+     * spill files, the memory budget of each worker and the number of
+     * worker threads
+     * @param raf the disk file being sorted
+     * @param spillDir the directory temporary run files are created in
+     * @param memoryBlocks the number of blocks each worker may hold, which
+     *                     is also the size of a run
+     * @param threads the parallelism of the ForkJoinPool
+     */
+    public ParallelSortClient(RandomAccessFile raf, File spillDir, int memoryBlocks, int threads){
+        this.raf = raf;
+        this.spillDir = spillDir;
+        this.memoryBlocks = Math.max(1, memoryBlocks);
+        this.threads = Math.max(1, threads);
+    }
+    @Override
+    public long getCacheHits(){
+        return 0;
+    }
+    @Override
+    public long getCacheMisses(){
+        return blocksRead.sum();
+    }
+    @Override
+    public long getDiskWrites(){
+        return blocksWritten.sum();
+    }
+    public int getNumRuns(){
+        return numRuns;
+    }
+    public int getMergePasses(){
+        return mergePasses;
+    }
+
+    /**
+     * Sorts the disk file using every worker thread
+     * @throws IOException for FileChannel operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        FileChannel data = raf.getChannel();
+        long numBlocks = data.size() / BLOCKSIZE;
+        if(numBlocks == 0)
+            return;
+        numRuns = (int)((numBlocks + memoryBlocks - 1) / memoryBlocks);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        File file1 = File.createTempFile("externalsort", ".run", spillDir);
+        File file2 = File.createTempFile("externalsort", ".run", spillDir);
+        try(FileChannel spill1 = FileChannel.open(file1.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileChannel spill2 = FileChannel.open(file2.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            AtomicLongArray counts = new AtomicLongArray(NUMKEYS);
+            FileChannel runDst = numRuns == 1 ? data : spill1;
+            List<IOAction> actions = new ArrayList<>();
+            List<long[]> runs = new ArrayList<>();
+            for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+                long first = blockNum;
+                int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+                actions.add(() -> sortRun(data, runDst, first, n, counts));
+                runs.add(new long[]{first * RECORDSPERBLOCK, (first + n) * RECORDSPERBLOCK});
+            }
+            runAll(pool, actions);
+            if(numRuns == 1)
+                return;
+            FileChannel src = spill1;
+            FileChannel dst = spill2;
+            int fanIn = Math.max(2, memoryBlocks - 1);
+            while(runs.size() > fanIn){
+                runs = mergePass(pool, src, dst, runs, fanIn);
+                FileChannel temp = src;
+                src = dst;
+                dst = temp;
+            }
+            finalMerge(pool, src, runs, data, counts);
+        } finally{
+            pool.shutdown();
+            file1.delete();
+            file2.delete();
+        }
+    }
+    private void sortRun(FileChannel src, FileChannel dst, long blockNum, int n, AtomicLongArray counts)
+            throws IOException{
+        byte[] buffer = new byte[n * BLOCKSIZE];
+        int[] records = new int[n * RECORDSPERBLOCK];
+        readFully(src, ByteBuffer.wrap(buffer), blockNum * BLOCKSIZE);
+        blocksRead.add(n);
+        MergeSortClient.sortBlocks(buffer, records, n);
+        int i = 0;
+        while(i < records.length){
+            int key = records[i] >> 16;
+            int j = i;
+            while(j < records.length && records[j] >> 16 == key)
+                j++;
+            counts.addAndGet(key - Short.MIN_VALUE, j - i);
+            i = j;
+        }
+        writeFully(dst, ByteBuffer.wrap(buffer), blockNum * BLOCKSIZE);
+        blocksWritten.add(n);
+    }
+    private List<long[]> mergePass(ForkJoinPool pool, FileChannel src, FileChannel dst, List<long[]> runs,
+                                   int fanIn) throws IOException{
+        List<IOAction> actions = new ArrayList<>();
+        List<long[]> merged = new ArrayList<>();
+        for(int i = 0; i < runs.size(); i += fanIn){
+            List<long[]> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+            long start = group.get(0)[0];
+            long end = group.get(group.size() - 1)[1];
+            actions.add(() -> merge(src, group, dst, start));
+            merged.add(new long[]{start, end});
+        }
+        runAll(pool, actions);
+        mergePasses++;
+        return merged;
+    }
+    private void finalMerge(ForkJoinPool pool, FileChannel src, List<long[]> runs, FileChannel dst,
+                            AtomicLongArray counts) throws IOException{
+        long numRecords = runs.get(runs.size() - 1)[1];
+        int numSlices = Math.max(1, threads);
+        int[] splitters = new int[numSlices + 1];
+        long[] sliceStart = new long[numSlices + 1];
+        splitters[0] = Short.MIN_VALUE;
+        splitters[numSlices] = Short.MAX_VALUE + 1;
+        sliceStart[numSlices] = numRecords;
+        long below = 0;
+        int key = 0;
+        for(int t = 1; t < numSlices; t++){
+            long target = t * numRecords / numSlices;
+            while(key < NUMKEYS && below + counts.get(key) <= target)
+                below += counts.get(key++);
+            splitters[t] = key + Short.MIN_VALUE;
+            sliceStart[t] = below;
+        }
+        List<IOAction> actions = new ArrayList<>();
+        for(int t = 0; t < numSlices; t++){
+            if(sliceStart[t] == sliceStart[t + 1])
+                continue;
+            int lowKey = splitters[t];
+            int highKey = splitters[t + 1];
+            long outRecord = sliceStart[t];
+            actions.add(() -> {
+                List<long[]> slices = new ArrayList<>();
+                for(long[] run : runs)
+                    slices.add(new long[]{lowerBound(src, run, lowKey), lowerBound(src, run, highKey)});
+                merge(src, slices, dst, outRecord);
+            });
+        }
+        runAll(pool, actions);
+        mergePasses++;
+    }
+    // Each probe is a separate read of the file, so each counts as a block
+    // read
+    private long lowerBound(FileChannel src, long[] run, int key) throws IOException{
+        long lo = run[0];
+        long hi = run[1];
+        ByteBuffer keyBuffer = ByteBuffer.allocate(2);
+        while(lo < hi){
+            long mid = (lo + hi) >>> 1;
+            keyBuffer.clear();
+            readFully(src, keyBuffer, mid * 4);
+            blocksRead.increment();
+            if(keyBuffer.getShort(0) < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+    private void merge(FileChannel src, List<long[]> slices, FileChannel dst, long outRecord) throws IOException{
+        int k = slices.size();
+        byte[][] inBlocks = new byte[k][BLOCKSIZE];
+        long[] next = new long[k];
+        long[] end = new long[k];
+        int[] pos = new int[k];
+        int[] limit = new int[k];
+        int[] heads = new int[k];
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for(int i = 0; i < k; i++){
+            next[i] = slices.get(i)[0];
+            end[i] = slices.get(i)[1];
+            if(next[i] < end[i]){
+                refill(src, inBlocks[i], next, end, limit, i);
+                heads[i] = (int)INT.get(inBlocks[i], 0);
+                heap[heapSize++] = i;
+            }
+        }
+        for(int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(heap, heapSize, heads, i);
+        byte[] out = new byte[BLOCKSIZE];
+        int outPos = 0;
+        while(heapSize > 0){
+            int r = heap[0];
+            INT.set(out, outPos * 4, heads[r]);
+            if(++outPos == RECORDSPERBLOCK){
+                writeFully(dst, ByteBuffer.wrap(out), outRecord * 4);
+                blocksWritten.increment();
+                outRecord += outPos;
+                outPos = 0;
+            }
+            if(++pos[r] == limit[r]){
+                if(next[r] == end[r]){
+                    heap[0] = heap[--heapSize];
+                    siftDown(heap, heapSize, heads, 0);
+                    continue;
+                }
+                refill(src, inBlocks[r], next, end, limit, r);
+                pos[r] = 0;
+            }
+            heads[r] = (int)INT.get(inBlocks[r], pos[r] * 4);
+            siftDown(heap, heapSize, heads, 0);
+        }
+        if(outPos > 0){
+            writeFully(dst, ByteBuffer.wrap(out, 0, outPos * 4), outRecord * 4);
+            blocksWritten.increment();
+        }
+    }
+    private void refill(FileChannel src, byte[] block, long[] next, long[] end, int[] limit, int i)
+            throws IOException{
+        int n = (int)Math.min(RECORDSPERBLOCK, end[i] - next[i]);
+        readFully(src, ByteBuffer.wrap(block, 0, n * 4), next[i] * 4);
+        blocksRead.increment();
+        next[i] += n;
+        limit[i] = n;
+    }
+    private static void siftDown(int[] heap, int heapSize, int[] heads, int idx){
+        if(heapSize == 0)
+            return;
+        int r = heap[idx];
+        while(true){
+            int child = 2 * idx + 1;
+            if(child >= heapSize)
+                break;
+            if(child + 1 < heapSize && heads[heap[child + 1]] < heads[heap[child]])
+                child++;
+            if(heads[heap[child]] >= heads[r])
+                break;
+            heap[idx] = heap[child];
+            idx = child;
+        }
+        heap[idx] = r;
+    }
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+        while(buffer.hasRemaining()){
+            int n = channel.read(buffer, position);
+            if(n < 0)
+                throw new IOException("Unexpected end of file at " + position);
+            position += n;
+        }
+    }
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+    private static void runAll(ForkJoinPool pool, List<IOAction> actions) throws IOException{
+        try{
+            pool.invoke(new Batch(actions, 0, actions.size()));
+        } catch(UncheckedIOException e){
+            throw e.getCause();
+        } catch(RuntimeException e){
+            for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()){
+                if(cause instanceof IOException ioe)
+                    throw ioe;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fork-join task that splits a list of independent I/O steps in half
+     * until each worker runs a single step
+     */
+    private static class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<IOAction> actions;
+        private final int lo;
+        private final int hi;
+
+        Batch(List<IOAction> actions, int lo, int hi){
+            this.actions = actions;
+            this.lo = lo;
+            this.hi = hi;
+        }
+        @Override
+        protected void compute(){
+            if(hi - lo == 1){
+                try{
+                    actions.get(lo).run();
+                } catch(IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            } else if(hi - lo > 1){
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Batch(actions, lo, mid), new Batch(actions, mid, hi));
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package externalsort;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The PartialSortClient class answers questions about the sorted order of
+ * the disk file without sorting all of it. In top-K mode it moves the K
+ * records with the smallest keys to the front of the file in ascending
+ * order and leaves the rest of the file as a permutation of the other
+ * records. When the K candidates fit in memory they are kept in a bounded
+ * max-heap over one sequential pass and only the blocks they end up in are
+ * rewritten; a larger K is selected by key histogram, partitioned to the
+ * front of the file and heapsorted there. In quantile mode it finds the
+ * record that starts each block of the sorted file, the records a stable
+ * sort would put there, with two sequential passes and no writes at all.
+ */
+public class PartialSortClient implements SortEngine, CacheStats{
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private static final int NUMKEYS = 1 << 16;
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final BufferPoolService dataFileService;
+    private final int memoryBlocks;
+    private final long k;
+    private int[] quantiles;
+
+    private PartialSortClient(BufferPoolService dataFileService, int memoryBlocks, long k){
+        this.dataFileService = dataFileService;
+        this.memoryBlocks = Math.max(1, memoryBlocks);
+        this.k = k;
+    }
+
+    /**
+     * PartialSortClient that moves the k smallest records to the front of
+     * the file, in ascending order
+     * @param dataFileService the service for the disk file
+     * @param memoryBlocks the number of blocks read at once, which also
+     *                     bounds how many candidates are kept in memory
+     * @param k the number of records to select
+     * @return the top-K client
+     */
+    public static PartialSortClient topK(BufferPoolService dataFileService, int memoryBlocks, long k){
+        if(k < 0)
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        return new PartialSortClient(dataFileService, memoryBlocks, k);
+    }
+
+    /**
+     * PartialSortClient that finds the first record of every block of the
+     * sorted file and leaves the file itself unchanged
+     * @param dataFileService the service for the disk file
+     * @param memoryBlocks the number of blocks read at once
+     * @return the quantile client
+     */
+    public static PartialSortClient quantiles(BufferPoolService dataFileService, int memoryBlocks){
+        return new PartialSortClient(dataFileService, memoryBlocks, -1);
+    }
+    @Override
+    public long getCacheHits(){
+        return dataFileService.getCacheHits();
+    }
+    @Override
+    public long getCacheMisses(){
+        return dataFileService.getCacheMisses();
+    }
+    @Override
+    public long getDiskWrites(){
+        return dataFileService.getDiskWrites();
+    }
+
+    /**
+     * Getter for the block-boundary records found in quantile mode
+     * @return the records, packed as key and value into an int, that start
+     *         each block of the sorted file, or null in top-K mode or before
+     *         sortFile
+     */
+    public int[] getQuantiles(){
+        return quantiles;
+    }
+
+    /**
+     * Runs the partial sort: selects the top K records, or finds the block
+     * quantiles without writing
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        dataFileService.flush();
+        if(k < 0){
+            quantiles = blockQuantiles();
+            return;
+        }
+        long numRecords = dataFileService.length() / BLOCKSIZE * RECORDSPERBLOCK;
+        long selected = Math.min(k, numRecords);
+        if(selected == 0)
+            return;
+        if(selected <= (long)memoryBlocks * RECORDSPERBLOCK)
+            heapSelect((int)selected);
+        else
+            selectThenSort(selected);
+        dataFileService.flush();
+    }
+
+    // One pass keeps the k smallest records seen so far in a max-heap, with
+    // the position each came from, so the largest candidate is at the root
+    private void heapSelect(int k) throws IOException{
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        byte[] buffer = new byte[memoryBlocks * BLOCKSIZE];
+        int[] records = new int[k];
+        long[] positions = new long[k];
+        int size = 0;
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+            int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            long base = blockNum * RECORDSPERBLOCK;
+            for(int i = 0; i < n * RECORDSPERBLOCK; i++){
+                int record = (int)INT.get(buffer, i * 4);
+                if(size < k){
+                    records[size] = record;
+                    positions[size] = base + i;
+                    siftUp(records, positions, size++);
+                } else if(record < records[0]){
+                    records[0] = record;
+                    positions[0] = base + i;
+                    siftDown(records, positions, 0, k);
+                }
+            }
+        }
+        // Heapsort the candidates in place, leaving them in ascending order
+        for(int last = k - 1; last > 0; last--){
+            swap(records, positions, 0, last);
+            siftDown(records, positions, 0, last);
+        }
+        rewriteFront(k, records, positions, buffer);
+    }
+
+    // Writes the candidates over the first k positions. The records they
+    // displace there move into the positions the candidates came from, so
+    // only the front blocks and those positions are written.
+    private void rewriteFront(int k, int[] records, long[] positions, byte[] buffer) throws IOException{
+        int frontBlocks = (k + RECORDSPERBLOCK - 1) / RECORDSPERBLOCK;
+        long frontRecords = (long)frontBlocks * RECORDSPERBLOCK;
+        dataFileService.readBlocks(0, buffer, frontBlocks);
+        boolean[] kept = new boolean[k];
+        long[] vacated = new long[k];
+        int numVacated = 0;
+        for(int i = 0; i < k; i++){
+            if(positions[i] < k)
+                kept[(int)positions[i]] = true;
+            else
+                vacated[numVacated++] = positions[i];
+        }
+        Arrays.sort(vacated, 0, numVacated);
+        int[] displaced = new int[numVacated];
+        int numDisplaced = 0;
+        for(int i = 0; i < k; i++){
+            if(!kept[i])
+                displaced[numDisplaced++] = (int)INT.get(buffer, i * 4);
+        }
+        for(int i = 0; i < k; i++)
+            INT.set(buffer, i * 4, records[i]);
+        for(int i = 0; i < numVacated; i++){
+            long pos = vacated[i];
+            if(pos < frontRecords)
+                INT.set(buffer, (int)pos * 4, displaced[i]);
+            else
+                dataFileService.set(pos, (short)(displaced[i] >> 16), (short)displaced[i]);
+        }
+        dataFileService.writeBlocks(0, buffer, frontBlocks);
+    }
+    private static void siftUp(int[] records, long[] positions, int i){
+        while(i > 0){
+            int parent = (i - 1) / 2;
+            if(records[parent] >= records[i])
+                return;
+            swap(records, positions, parent, i);
+            i = parent;
+        }
+    }
+    private static void siftDown(int[] records, long[] positions, int i, int length){
+        while(true){
+            int largest = i;
+            int left = 2 * i + 1;
+            if(left < length && records[left] > records[largest])
+                largest = left;
+            if(left + 1 < length && records[left + 1] > records[largest])
+                largest = left + 1;
+            if(largest == i)
+                return;
+            swap(records, positions, i, largest);
+            i = largest;
+        }
+    }
+    private static void swap(int[] records, long[] positions, int i, int j){
+        int record = records[i];
+        records[i] = records[j];
+        records[j] = record;
+        long pos = positions[i];
+        positions[i] = positions[j];
+        positions[j] = pos;
+    }
+
+    // Too many candidates to hold: find the threshold key from a histogram,
+    // swap every selected record from the back of the file with a record
+    // that is not selected from the front, then heapsort the front
+    private void selectThenSort(long k) throws IOException{
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        byte[] buffer = new byte[memoryBlocks * BLOCKSIZE];
+        long[] counts = new long[NUMKEYS];
+        long[] frontCounts = new long[NUMKEYS];
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+            int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            long base = blockNum * RECORDSPERBLOCK;
+            for(int i = 0; i < n * RECORDSPERBLOCK; i++){
+                int bucket = keyAt(buffer, i) - Short.MIN_VALUE;
+                counts[bucket]++;
+                if(base + i < k)
+                    frontCounts[bucket]++;
+            }
+        }
+        // Every key below the threshold is selected, and the first ties
+        // with it are, front of the file first
+        int threshold = 0;
+        long below = 0;
+        while(below + counts[threshold] < k)
+            below += counts[threshold++];
+        long ties = k - below;
+        long frontTies = Math.min(ties, frontCounts[threshold]);
+        long backTies = ties - frontTies;
+        short t = (short)(threshold + Short.MIN_VALUE);
+        long seenFront = 0;
+        long seenBack = 0;
+        long j = k;
+        for(long i = 0; i < k; i++){
+            short key = dataFileService.keyAt(i);
+            if(key < t || (key == t && seenFront++ < frontTies))
+                continue;
+            while(true){
+                short back = dataFileService.keyAt(j);
+                if(back < t)
+                    break;
+                if(back == t && seenBack < backTies){
+                    seenBack++;
+                    break;
+                }
+                j++;
+            }
+            dataFileService.swap(i, j++);
+        }
+        new HeapSortClient(dataFileService).sortFirst(k);
+    }
+    private static short keyAt(byte[] buffer, int i){
+        return (short)(((buffer[i * 4] & 0xFF) << 8) | (buffer[i * 4 + 1] & 0xFF));
+    }
+
+    // The first pass counts every key; the second finds, for the rank that
+    // starts each block, the right occurrence of its key in file order
+    private int[] blockQuantiles() throws IOException{
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        byte[] buffer = new byte[memoryBlocks * BLOCKSIZE];
+        long[] counts = new long[NUMKEYS];
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+            int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            for(int i = 0; i < n * RECORDSPERBLOCK; i++)
+                counts[keyAt(buffer, i) - Short.MIN_VALUE]++;
+        }
+        int numTargets = (int)numBlocks;
+        int[] result = new int[numTargets];
+        int[] targetKey = new int[numTargets];
+        long[] occurrence = new long[numTargets];
+        // The targets of each key are consecutive; next[key] is the first
+        // one not yet found, or -1 when the key starts no block
+        int[] next = new int[NUMKEYS];
+        Arrays.fill(next, -1);
+        int bucket = 0;
+        long below = 0;
+        for(int m = 0; m < numTargets; m++){
+            long rank = (long)m * RECORDSPERBLOCK;
+            while(below + counts[bucket] <= rank)
+                below += counts[bucket++];
+            targetKey[m] = bucket;
+            occurrence[m] = rank - below;
+            if(next[bucket] < 0)
+                next[bucket] = m;
+        }
+        long[] seen = new long[NUMKEYS];
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += memoryBlocks){
+            int n = (int)Math.min(memoryBlocks, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            for(int i = 0; i < n * RECORDSPERBLOCK; i++){
+                int key = keyAt(buffer, i) - Short.MIN_VALUE;
+                int m = next[key];
+                long c = seen[key]++;
+                if(m >= 0 && occurrence[m] == c){
+                    result[m] = (int)INT.get(buffer, i * 4);
+                    m++;
+                    next[key] = m < numTargets && targetKey[m] == key ? m : -1;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,237 @@
+package externalsort;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * The Prefetcher class reads blocks a BufferPoolService is expected to need
+ * soon on a background thread, into spare frames of its own. When the pool
+ * misses on a prefetched block it takes the frame instead of reading the
+ * disk file, waiting only if the read is still in progress. At most depth
+ * blocks are requested, being read or ready at once; when a new request
+ * does not fit, the oldest ready block is dropped and counted as wasted.
+ * Reads are positional, so the pool's own file pointer is never moved.
+ * Their latencies are kept until the pool collects them with report, so
+ * the pool's Metrics are only ever updated on the sorting thread.
+ * The reader thread exits after a short idle period and is restarted by
+ * the next request.
+ */
+class Prefetcher {
+    // How long the reader thread waits for a request before exiting
+    private static final long IDLEMILLIS = 100;
+    private final FileChannel channel;
+    private final int depth;
+    private final int blockSize;
+    private final ArrayDeque<Long> requests = new ArrayDeque<>();
+    private final Set<Long> requested = new HashSet<>();
+    private final LinkedHashMap<Long, BufferNode> ready = new LinkedHashMap<>();
+    private BufferNode spareFrames;
+    private long reading = -1;
+    private Thread reader;
+    private boolean idle = false;
+    private boolean waiting = false;
+    private int issued = 0;
+    private int hits = 0;
+    private int wasted = 0;
+    // Latencies of the reads finished since the last report
+    private long[] readNanos = new long[16];
+    private int numReads = 0;
+
+    /**
+     * Prefetcher defined by the channel of the file being sorted and the
+     * number of blocks it may hold
+     * @param channel the channel used for positional reads
+     * @param depth the most blocks requested, being read or ready at once
+     * @param blockSize the size of a block in bytes
+     */
+    Prefetcher(FileChannel channel, int depth, int blockSize){
+        this.channel = channel;
+        this.depth = Math.max(1, depth);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Asks for a block to be read in the background. Ignored if the block
+     * is already requested or ready, or if nothing can make room for it
+     * @param blockNum the block expected to be read soon
+     */
+    synchronized void request(long blockNum){
+        if(blockNum == reading || requested.contains(blockNum) || ready.containsKey(blockNum))
+            return;
+        if(requests.size() + ready.size() + (reading >= 0 ? 1 : 0) >= depth){
+            Iterator<BufferNode> oldest = ready.values().iterator();
+            if(!oldest.hasNext())
+                return;
+            recycle(oldest.next());
+            oldest.remove();
+            wasted++;
+        }
+        requests.add(blockNum);
+        requested.add(blockNum);
+        issued++;
+        if(reader == null){
+            reader = new Thread(this::readLoop, "prefetch");
+            reader.setDaemon(true);
+            reader.start();
+        } else if(idle){
+            notifyAll();
+        }
+    }
+
+    /**
+     * Takes a prefetched block for the pool, waiting if it is being read.
+     * A block that was requested but not started is forgotten so the pool
+     * can read it itself
+     * @param blockNum the block the pool missed on
+     * @param spare a frame the pool no longer needs, recycled for later
+     *              prefetches, or null
+     * @return the frame holding the block, or null if it was not prefetched
+     * @throws IOException if the background read failed
+     */
+    synchronized BufferNode take(long blockNum, BufferNode spare) throws IOException{
+        if(requested.remove(blockNum)){
+            requests.remove(blockNum);
+            return null;
+        }
+        while(reading == blockNum){
+            waiting = true;
+            await();
+            waiting = false;
+        }
+        BufferNode buffNode = ready.remove(blockNum);
+        if(buffNode == null)
+            return null;
+        if(spare != null)
+            recycle(spare);
+        hits++;
+        return buffNode;
+    }
+
+    /**
+     * Forgets every request and drops every ready block, counting them as
+     * wasted. Called before the file is written behind the pool's back, so
+     * no stale block is handed out afterwards
+     * @throws IOException if interrupted while a read finishes
+     */
+    synchronized void cancel() throws IOException{
+        requests.clear();
+        requested.clear();
+        while(reading >= 0){
+            waiting = true;
+            await();
+            waiting = false;
+        }
+        for(BufferNode buffNode : ready.values())
+            recycle(buffNode);
+        wasted += ready.size();
+        ready.clear();
+    }
+
+    /**
+     * Records every block read in the background since the last call
+     * @param metrics the metrics of the pool the blocks were read for
+     */
+    synchronized void report(Metrics metrics){
+        for(int i = 0; i < numReads; i++)
+            metrics.read(1, blockSize, readNanos[i]);
+        numReads = 0;
+    }
+
+    /**
+     * Getter for the number of blocks requested
+     * @return the number of prefetches issued
+     */
+    synchronized int getIssued(){
+        return issued;
+    }
+
+    /**
+     * Getter for the number of misses served by a prefetched block
+     * @return the number of prefetch hits
+     */
+    synchronized int getHits(){
+        return hits;
+    }
+
+    /**
+     * Getter for the number of prefetched blocks dropped without being used
+     * @return the number of wasted prefetches
+     */
+    synchronized int getWasted(){
+        return wasted;
+    }
+    private void readLoop(){
+        while(true){
+            long blockNum;
+            BufferNode buffNode;
+            synchronized(this){
+                if(requests.isEmpty()){
+                    idle = true;
+                    try{
+                        wait(IDLEMILLIS);
+                    } catch(InterruptedException e){
+                        // Exit below, a later request starts a new reader
+                    }
+                    idle = false;
+                    if(requests.isEmpty()){
+                        reader = null;
+                        return;
+                    }
+                }
+                blockNum = requests.poll();
+                requested.remove(blockNum);
+                reading = blockNum;
+                buffNode = spareFrames;
+                if(buffNode != null){
+                    spareFrames = buffNode.next;
+                    buffNode.rebind(blockNum);
+                } else{
+                    buffNode = new BufferNode(blockNum, new byte[blockSize]);
+                }
+            }
+            boolean read = false;
+            long startTime = System.nanoTime();
+            try{
+                ByteBuffer bb = ByteBuffer.wrap(buffNode.getData());
+                long position = blockNum * blockSize;
+                while(bb.hasRemaining() && channel.read(bb, position + bb.position()) >= 0);
+                read = !bb.hasRemaining();
+            } catch(IOException e){
+                // The pool reads the block itself when it misses on it
+            }
+            long nanos = System.nanoTime() - startTime;
+            synchronized(this){
+                if(read){
+                    ready.put(blockNum, buffNode);
+                    if(numReads == readNanos.length)
+                        readNanos = Arrays.copyOf(readNanos, 2 * numReads);
+                    readNanos[numReads++] = nanos;
+                } else
+                    recycle(buffNode);
+                reading = -1;
+                if(waiting)
+                    notifyAll();
+            }
+        }
+    }
+    private void recycle(BufferNode buffNode){
+        buffNode.next = spareFrames;
+        spareFrames = buffNode;
+    }
+    private void await() throws IOException{
+        try{
+            wait();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a prefetch");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package externalsort;
+
+import java.io.IOException;
+
+/**
+ * The Presortedness class measures how much order a disk file already has,
+ * in one sequential pass over its blocks. It counts the maximal runs of
+ * non-decreasing keys, the maximal runs of non-increasing keys, and the
+ * descents, the adjacent pairs whose keys are out of order. A sorted file
+ * has one ascending run and no descents, a reversed file has one
+ * descending run, and a random file has a descent about every other
+ * record.
+ */
+public class Presortedness {
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private long numRecords = 0;
+    private long ascents = 0;
+    private long descents = 0;
+
+    // Use scan to measure a file.
+    private Presortedness() {}
+
+    /**
+     * Scans a disk file straight through its blocks. The buffer pool is
+     * flushed first
+     * @param dataFileService the service for the disk file
+     * @param memoryBlocks how many blocks are read at once
+     * @return the measurements of the file
+     * @throws IOException for RandomAccessFile operations
+     */
+    public static Presortedness scan(BufferPoolService dataFileService, int memoryBlocks) throws IOException{
+        dataFileService.flush();
+        Presortedness p = new Presortedness();
+        long numBlocks = dataFileService.length() / BLOCKSIZE;
+        int chunk = Math.max(1, memoryBlocks);
+        byte[] buffer = new byte[chunk * BLOCKSIZE];
+        short prev = 0;
+        for(long blockNum = 0; blockNum < numBlocks; blockNum += chunk){
+            int n = (int)Math.min(chunk, numBlocks - blockNum);
+            dataFileService.readBlocks(blockNum, buffer, n);
+            for(int i = 0; i < n * RECORDSPERBLOCK; i++){
+                short key = (short)(((buffer[i * 4] & 0xFF) << 8) | (buffer[i * 4 + 1] & 0xFF));
+                if(p.numRecords > 0 && key < prev)
+                    p.descents++;
+                else if(p.numRecords > 0 && key > prev)
+                    p.ascents++;
+                prev = key;
+                p.numRecords++;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Getter for the number of records scanned
+     * @return the number of records
+     */
+    public long getNumRecords(){
+        return numRecords;
+    }
+
+    /**
+     * Getter for the number of maximal runs of non-decreasing keys
+     * @return the number of ascending runs, 1 for a sorted file
+     */
+    public long getAscendingRuns(){
+        return numRecords == 0 ? 0 : descents + 1;
+    }
+
+    /**
+     * Getter for the number of maximal runs of non-increasing keys
+     * @return the number of descending runs, 1 for a reversed file
+     */
+    public long getDescendingRuns(){
+        return numRecords == 0 ? 0 : ascents + 1;
+    }
+
+    /**
+     * Getter for the number of adjacent pairs whose keys are out of order,
+     * the adjacent inversions of the file
+     * @return the number of descents
+     */
+    public long getDescents(){
+        return descents;
+    }
+}
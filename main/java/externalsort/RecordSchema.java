@@ -0,0 +1,224 @@
+package externalsort;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The RecordSchema class describes a fixed-size record: its size in bytes
+ * and the keys it is sorted by, in order of significance. Each key has an
+ * offset, a type, a width and a direction. Numeric keys are big-endian and
+ * signed; byte keys compare as unsigned bytes, lexicographically, which
+ * also orders big-endian unsigned composites. A comparator specialized to
+ * the key types is built once per schema, so records are compared
+ * straight out of their buffers without boxing. The record size must be a
+ * power of two from 4 to 4096 bytes so that no record spans two blocks.
+ * DEFAULT is the 4-byte format with a short key, which the original
+ * engines sort through their packed-int fast paths.
+ */
+public final class RecordSchema {
+    /**
+     * The types a key can have
+     */
+    public enum KeyType {
+        SHORT(2), INT(4), LONG(8), BYTES(0);
+
+        private final int width;
+
+        KeyType(int width){
+            this.width = width;
+        }
+    }
+
+    /**
+     * The 4-byte record with a 2-byte key followed by a 2-byte value
+     */
+    public static final RecordSchema DEFAULT = new RecordSchema(4, new Key(0, KeyType.SHORT));
+
+    private static final int BLOCKSIZE = 4096;
+    private static final VarHandle SHORT =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private final int recordSize;
+    private final Key[] keys;
+    private final KeyComparator comparator;
+
+    /**
+     * The Key class is one field of a record that records are sorted by
+     */
+    public static final class Key {
+        private final int offset;
+        private final KeyType type;
+        private final int width;
+        private final boolean descending;
+
+        /**
+         * Ascending numeric key
+         * @param offset the byte offset of the key in the record
+         * @param type the type of the key, not BYTES
+         */
+        public Key(int offset, KeyType type){
+            this(offset, type, type.width, false);
+        }
+
+        /**
+         * Key of any type and direction
+         * @param offset the byte offset of the key in the record
+         * @param type the type of the key
+         * @param width the width of the key in bytes, which must match a
+         *              numeric type
+         * @param descending true to sort this key from largest to smallest
+         */
+        public Key(int offset, KeyType type, int width, boolean descending){
+            if(type != KeyType.BYTES && width != type.width)
+                throw new IllegalArgumentException(type + " keys are " + type.width + " bytes wide, got " + width);
+            if(offset < 0 || width <= 0)
+                throw new IllegalArgumentException("Bad key at offset " + offset + " of width " + width);
+            this.offset = offset;
+            this.type = type;
+            this.width = width;
+            this.descending = descending;
+        }
+        public int getOffset(){
+            return offset;
+        }
+        public KeyType getType(){
+            return type;
+        }
+        public int getWidth(){
+            return width;
+        }
+        public boolean isDescending(){
+            return descending;
+        }
+    }
+
+    /**
+     * Compares two records in place. Offsets are the byte offsets of the
+     * records, not of their keys
+     */
+    interface KeyComparator {
+        int compare(byte[] a, int aOffset, byte[] b, int bOffset);
+    }
+
+    /**
+     * RecordSchema defined by its record size and its keys
+     * @param recordSize the size of a record in bytes
+     * @param keys the keys, most significant first
+     */
+    public RecordSchema(int recordSize, Key... keys){
+        if(recordSize < 4 || recordSize > BLOCKSIZE || Integer.bitCount(recordSize) != 1)
+            throw new IllegalArgumentException("Record size must be a power of two from 4 to 4096, got " + recordSize);
+        if(keys.length == 0)
+            throw new IllegalArgumentException("A schema needs at least one key");
+        for(Key key : keys){
+            if(key.offset + key.width > recordSize)
+                throw new IllegalArgumentException("Key at offset " + key.offset + " does not fit in "
+                        + recordSize + "-byte records");
+        }
+        this.recordSize = recordSize;
+        this.keys = keys.clone();
+        this.comparator = comparator(this.keys);
+    }
+
+    /**
+     * Parses a schema from command line text: a comma-separated list of
+     * keys, each offset:type, offset:bytes:width or either followed by
+     * :desc, for example 0:long,8:bytes:8:desc
+     * @param recordSize the size of a record in bytes
+     * @param spec the keys
+     * @return the schema
+     */
+    public static RecordSchema parse(int recordSize, String spec){
+        String[] fields = spec.split(",");
+        Key[] keys = new Key[fields.length];
+        for(int i = 0; i < fields.length; i++){
+            String[] parts = fields[i].trim().split(":");
+            try{
+                int offset = Integer.parseInt(parts[0]);
+                KeyType type = KeyType.valueOf(parts[1].toUpperCase());
+                int next = 2;
+                int width = type.width;
+                if(type == KeyType.BYTES)
+                    width = Integer.parseInt(parts[next++]);
+                boolean descending = parts.length > next && parts[next++].equals("desc");
+                if(parts.length > next)
+                    throw new IllegalArgumentException("Unexpected " + parts[next]);
+                keys[i] = new Key(offset, type, width, descending);
+            } catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e){
+                throw new IllegalArgumentException("Bad key " + fields[i] + ": " + e.getMessage());
+            }
+        }
+        return new RecordSchema(recordSize, keys);
+    }
+    public int getRecordSize(){
+        return recordSize;
+    }
+    public int getRecordsPerBlock(){
+        return BLOCKSIZE / recordSize;
+    }
+    public Key[] getKeys(){
+        return keys.clone();
+    }
+
+    /**
+     * Whether this is the 4-byte format of DEFAULT
+     * @return true if records are 4 bytes sorted ascending by a leading
+     *         short key
+     */
+    public boolean isDefault(){
+        return recordSize == 4 && keys.length == 1 && keys[0].offset == 0 && keys[0].type == KeyType.SHORT
+                && !keys[0].descending;
+    }
+
+    /**
+     * Compares two records by the keys of this schema
+     * @param a the array holding the first record
+     * @param aOffset the byte offset of the first record
+     * @param b the array holding the second record
+     * @param bOffset the byte offset of the second record
+     * @return negative, zero or positive as the first record sorts before,
+     *         with or after the second
+     */
+    public int compare(byte[] a, int aOffset, byte[] b, int bOffset){
+        return comparator.compare(a, aOffset, b, bOffset);
+    }
+
+    // One comparator per key, chained only when there is more than one key
+    private static KeyComparator comparator(Key[] keys){
+        if(keys.length == 1)
+            return comparator(keys[0]);
+        KeyComparator[] parts = new KeyComparator[keys.length];
+        for(int i = 0; i < keys.length; i++)
+            parts[i] = comparator(keys[i]);
+        return (a, aOffset, b, bOffset) -> {
+            for(KeyComparator part : parts){
+                int c = part.compare(a, aOffset, b, bOffset);
+                if(c != 0)
+                    return c;
+            }
+            return 0;
+        };
+    }
+    private static KeyComparator comparator(Key key){
+        int o = key.offset;
+        int w = key.width;
+        KeyComparator ascending = switch(key.type){
+            case SHORT -> (a, aOffset, b, bOffset) ->
+                    Short.compare((short)SHORT.get(a, aOffset + o), (short)SHORT.get(b, bOffset + o));
+            case INT -> (a, aOffset, b, bOffset) ->
+                    Integer.compare((int)INT.get(a, aOffset + o), (int)INT.get(b, bOffset + o));
+            case LONG -> (a, aOffset, b, bOffset) ->
+                    Long.compare((long)LONG.get(a, aOffset + o), (long)LONG.get(b, bOffset + o));
+            case BYTES -> (a, aOffset, b, bOffset) ->
+                    Arrays.compareUnsigned(a, aOffset + o, aOffset + o + w, b, bOffset + o, bOffset + o + w);
+        };
+        if(!key.descending)
+            return ascending;
+        return (a, aOffset, b, bOffset) -> ascending.compare(b, bOffset, a, aOffset);
+    }
+}
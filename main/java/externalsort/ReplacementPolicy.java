@@ -0,0 +1,56 @@
+package externalsort;
+
+/**
+ * The ReplacementPolicy interface decides which frame the buffer pool
+ * evicts when it is full. The pool tells the policy about every frame it
+ * loads, every hit on a loaded frame, and asks it for a victim when it has
+ * to make room. Pinned frames are never handed to the policy.
+ */
+public interface ReplacementPolicy {
+    /**
+     * Called once a frame has been loaded from the disk file
+     * @param buffNode the newly loaded frame
+     */
+    void admit(BufferNode buffNode);
+
+    /**
+     * Called on every cache hit of a frame
+     * @param buffNode the frame that was accessed
+     */
+    void access(BufferNode buffNode);
+
+    /**
+     * Chooses a frame to evict and stops tracking it
+     * @return the frame to evict, or null if the policy tracks no frames
+     */
+    BufferNode victim();
+
+    /**
+     * Creates a policy from its command line name
+     * @param name lru, clock, 2q, lru-k (K = 2) or lru-n for a given K
+     * @param numBuffers the number of buffers in the pool
+     * @return the replacement policy
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    static ReplacementPolicy create(String name, int numBuffers){
+        switch(name){
+            case "lru":
+                return new LruPolicy();
+            case "clock":
+                return new ClockPolicy();
+            case "2q":
+                return new TwoQueuePolicy(numBuffers);
+            case "lru-k":
+                return new LruKPolicy(2, numBuffers);
+            default:
+                if(name.startsWith("lru-")){
+                    try{
+                        return new LruKPolicy(Integer.parseInt(name.substring(4)), numBuffers);
+                    } catch(NumberFormatException e){
+                        // Fall through to the error below
+                    }
+                }
+                throw new IllegalArgumentException("Unknown replacement policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package externalsort;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ReplacementSelection class generates the initial runs of an external
+ * merge sort by replacement selection. Records stream in one block at a
+ * time and sit in a min-heap. The smallest is written to the current run
+ * and replaced by the next input record, which stays in the heap if it is
+ * not smaller than the record just written. Otherwise the heap shrinks by
+ * one and the record is parked in the freed slot past its end, to seed the
+ * next run once the heap empties. The heap and the parked records share a
+ * single int array, so every record held costs its 4 bytes. On random
+ * input the runs average about twice the records held, and input that is
+ * already sorted comes out as a single run. Records are compared as packed
+ * ints, like the rest of the merge sort.
+ */
+class ReplacementSelection {
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final BufferPoolService input;
+    private final RunStore spill;
+    private final int capacity;
+    private final int[] heap;
+    private final byte[] inBlock = new byte[BLOCKSIZE];
+    private final byte[] outBlock = new byte[BLOCKSIZE];
+    private long nextInBlock = 0;
+    private long numInBlocks;
+    private int inPos = RECORDSPERBLOCK;
+
+    /**
+     * ReplacementSelection defined by the file it reads, the spill file it
+     * writes runs to, and its memory. One block is kept for input and one
+     * for output, and the heap holds the records of the rest
+     * @param input the service for the disk file being sorted
+     * @param spill the service for the spill file receiving the runs
+     * @param memoryBlocks the number of blocks it may hold in memory
+     */
+    ReplacementSelection(BufferPoolService input, RunStore spill, int memoryBlocks){
+        this.input = input;
+        this.spill = spill;
+        this.capacity = Math.max(1, memoryBlocks - 2) * RECORDSPERBLOCK;
+        this.heap = new int[capacity];
+    }
+
+    /**
+     * Reads the first numBlocks blocks of the input and writes them to the
+     * spill file as sorted runs laid back to back, each starting on a block
+     * boundary
+     * @param numBlocks the number of blocks in the input
+     * @return the runs in the order they were written
+     * @throws IOException for RandomAccessFile operations
+     */
+    List<Run> generateRuns(long numBlocks) throws IOException{
+        numInBlocks = numBlocks;
+        // heap[0, size) is the current run's heap, heap[size, end) the
+        // records parked for the next run
+        int end = 0;
+        while(end < capacity && hasNext())
+            heap[end++] = next();
+        List<Run> runs = new ArrayList<>();
+        long runStart = 0;
+        long outBlockNum = 0;
+        int outPos = 0;
+        while(end > 0){
+            int size = end;
+            for(int i = size / 2 - 1; i >= 0; i--)
+                siftDown(i, size);
+            long runRecords = 0;
+            while(size > 0){
+                int record = heap[0];
+                INT.set(outBlock, outPos * 4, record);
+                runRecords++;
+                if(++outPos == RECORDSPERBLOCK){
+                    spill.writeBlocks(outBlockNum++, outBlock, 1);
+                    outPos = 0;
+                }
+                if(hasNext()){
+                    int next = next();
+                    if(next >= record){
+                        heap[0] = next;
+                    } else{
+                        heap[0] = heap[--size];
+                        heap[size] = next;
+                    }
+                } else{
+                    heap[0] = heap[--size];
+                    heap[size] = heap[--end];
+                }
+                siftDown(0, size);
+            }
+            if(outPos > 0){
+                spill.writeBlocks(outBlockNum++, outBlock, 1);
+                outPos = 0;
+            }
+            runs.add(new Run(runStart, runRecords));
+            runStart = outBlockNum;
+        }
+        return runs;
+    }
+    private boolean hasNext(){
+        return inPos < RECORDSPERBLOCK || nextInBlock < numInBlocks;
+    }
+    private int next() throws IOException{
+        if(inPos == RECORDSPERBLOCK){
+            input.readBlocks(nextInBlock++, inBlock, 1);
+            inPos = 0;
+        }
+        return (int)INT.get(inBlock, 4 * inPos++);
+    }
+    private void siftDown(int i, int size){
+        int record = heap[i];
+        int child;
+        while((child = 2 * i + 1) < size){
+            if(child + 1 < size && heap[child + 1] < heap[child])
+                child++;
+            if(heap[child] >= record)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = record;
+    }
+}
@@ -0,0 +1,47 @@
+package externalsort;
+
+/**
+ * The Run class describes one sorted run written to a spill file by an
+ * external merge sort. Every run starts on a block boundary; its last
+ * block is padded when the number of records is not a multiple of the
+ * records per block.
+ */
+class Run {
+    private final long startBlock;
+    private final long numRecords;
+
+    /**
+     * Run is defined by where it starts and how many records it holds
+     * @param startBlock the first block of the run in its spill file
+     * @param numRecords the number of records in the run
+     */
+    Run(long startBlock, long numRecords){
+        this.startBlock = startBlock;
+        this.numRecords = numRecords;
+    }
+
+    /**
+     * Getter for the first block of the run
+     * @return the block number as a long
+     */
+    long getStartBlock(){
+        return startBlock;
+    }
+
+    /**
+     * Getter for the number of records in the run
+     * @return the number of records as a long
+     */
+    long getNumRecords(){
+        return numRecords;
+    }
+
+    /**
+     * Used to lay out runs back to back in a spill file
+     * @param recordsPerBlock the number of records per block
+     * @return the number of blocks the run occupies, including padding
+     */
+    long getNumBlocks(int recordsPerBlock){
+        return (numRecords + recordsPerBlock - 1) / recordsPerBlock;
+    }
+}
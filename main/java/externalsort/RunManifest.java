@@ -0,0 +1,105 @@
+package externalsort;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The RunManifest class reads and writes the run directory of a resumable
+ * merge sort: a small text file whose first line names the spill file
+ * (1 or 2) holding the current runs, followed by one line per run giving
+ * its first block and its number of records, in the order the runs were
+ * written. It is replaced whole after each pass, so an interrupted sort
+ * finds either the runs before the pass or the runs after it.
+ */
+class RunManifest {
+    private final int spill;
+    private final List<Run> runs;
+
+    /**
+     * RunManifest is defined by the spill file holding the runs and the runs
+     * @param spill the spill file holding the runs, 1 or 2
+     * @param runs the runs in the order they were written
+     */
+    RunManifest(int spill, List<Run> runs){
+        this.spill = spill;
+        this.runs = runs;
+    }
+
+    /**
+     * Getter for the spill file holding the runs
+     * @return 1 or 2
+     */
+    int getSpill(){
+        return spill;
+    }
+
+    /**
+     * Getter for the runs
+     * @return the runs in the order they were written
+     */
+    List<Run> getRuns(){
+        return runs;
+    }
+
+    /**
+     * Writes the run directory to a temporary file and renames it over any
+     * previous one
+     * @param file the manifest file
+     * @throws IOException for file operations
+     */
+    void write(File file) throws IOException{
+        File temp = new File(file.getPath() + ".tmp");
+        try(BufferedWriter out = new BufferedWriter(new FileWriter(temp, false))){
+            out.write(String.valueOf(spill));
+            out.newLine();
+            for(Run run : runs){
+                out.write(run.getStartBlock() + " " + run.getNumRecords());
+                out.newLine();
+            }
+        }
+        try{
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e){
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a run directory written by write
+     * @param file the manifest file
+     * @return the run directory
+     * @throws IOException for file operations or a malformed line
+     */
+    static RunManifest read(File file) throws IOException{
+        List<Run> runs = new ArrayList<>();
+        int spill;
+        try(BufferedReader in = new BufferedReader(new FileReader(file))){
+            String line = in.readLine();
+            if(line == null || !(line.equals("1") || line.equals("2")))
+                throw new IOException("Malformed spill file in " + file + ": " + line);
+            spill = Integer.parseInt(line);
+            while((line = in.readLine()) != null){
+                if(line.isEmpty())
+                    continue;
+                String[] fields = line.split(" ");
+                if(fields.length != 2)
+                    throw new IOException("Malformed run in " + file + ": " + line);
+                try{
+                    runs.add(new Run(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+                } catch(NumberFormatException e){
+                    throw new IOException("Malformed run in " + file + ": " + line, e);
+                }
+            }
+        }
+        return new RunManifest(spill, runs);
+    }
+}
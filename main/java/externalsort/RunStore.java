@@ -0,0 +1,20 @@
+package externalsort;
+
+import java.io.IOException;
+
+/**
+ * The RunStore interface is where the merge engine keeps its runs: whole
+ * blocks written and read back by block number, either straight through a
+ * BufferPoolService or compressed by a CompressedRunFile. Reads and
+ * writes count towards the store's cache misses and disk writes.
+ */
+interface RunStore extends BlockWriter, CacheStats {
+    /**
+     * Reads consecutive blocks
+     * @param blockNum the first block to be read
+     * @param dst the array receiving the blocks
+     * @param numBlocks the number of blocks to be read
+     * @throws IOException for file operations
+     */
+    void readBlocks(long blockNum, byte[] dst, int numBlocks) throws IOException;
+}
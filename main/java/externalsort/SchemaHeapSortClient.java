@@ -0,0 +1,59 @@
+package externalsort;
+
+import java.io.IOException;
+
+/**
+ * The SchemaHeapSortClient class heapsorts a disk file of records of any
+ * fixed-size layout, as described by a RecordSchema. Like HeapSortClient
+ * the heap array is the file itself, reached through the buffer pool, but
+ * records are compared with the schema's comparator and swapped as byte
+ * ranges inside their buffers. Files in the default 4-byte format are
+ * faster through HeapSortClient, which works on packed shorts.
+ */
+public class SchemaHeapSortClient implements SortEngine{
+    private final BufferPoolService dataFileService;
+    private final RecordSchema schema;
+    private final int recordSize;
+
+    /**
+     * SchemaHeapSortClient defined by the service for the disk file and the
+     * layout of its records
+     * @param dataFileService the service for the disk file being sorted
+     * @param schema the record size and keys of the file
+     */
+    public SchemaHeapSortClient(BufferPoolService dataFileService, RecordSchema schema){
+        this.dataFileService = dataFileService;
+        this.schema = schema;
+        this.recordSize = schema.getRecordSize();
+    }
+
+    /**
+     * Builds a max-heap of the records, then repeatedly moves the largest
+     * to the end of the file
+     * @throws IOException for RandomAccessFile operations
+     */
+    @Override
+    public void sortFile() throws IOException{
+        long length = dataFileService.length() / recordSize;
+        for(long i = (length - 2) / 2; i >= 0; i--)
+            siftDown(length, i);
+        for(long lastIdx = length - 1; lastIdx > 0; lastIdx--){
+            dataFileService.swapRecords(0, lastIdx, recordSize);
+            siftDown(lastIdx, 0);
+        }
+        dataFileService.flush();
+    }
+    private void siftDown(long length, long idx) throws IOException{
+        while(true){
+            long child = 2 * idx + 1;
+            if(child >= length)
+                return;
+            if(child + 1 < length && dataFileService.compareRecords(child + 1, child, schema) > 0)
+                child++;
+            if(dataFileService.compareRecords(child, idx, schema) <= 0)
+                return;
+            dataFileService.swapRecords(idx, child, recordSize);
+            idx = child;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package externalsort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The SequentialWriter class writes a file front to back in large
+ * block-aligned writes with double buffering: the caller fills one direct
+ * buffer while a background thread writes the other through the
+ * FileChannel, and the two swap when the filling buffer is full. Blocks
+ * must be written in order starting from block 0. replace uses it to
+ * write a file out of place and rename it over the original.
+ */
+class SequentialWriter implements BlockWriter, Closeable {
+    private static final int BLOCKSIZE = 4096;
+    private final FileChannel channel;
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "sequential-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private ByteBuffer filling;
+    private ByteBuffer spare;
+    private Future<?> pending;
+    // File position of the first byte in the filling buffer
+    private long position = 0;
+    private long blocksWritten = 0;
+    private int writes = 0;
+
+    /**
+     * SequentialWriter defined by the channel it writes and the size of
+     * each of its two buffers
+     * @param channel the channel of the file being written, from position 0
+     * @param bufferBlocks the number of blocks in each buffer
+     */
+    SequentialWriter(FileChannel channel, int bufferBlocks){
+        this.channel = channel;
+        this.filling = alignedBuffer(Math.max(1, bufferBlocks));
+        this.spare = alignedBuffer(Math.max(1, bufferBlocks));
+    }
+    private static ByteBuffer alignedBuffer(int numBlocks){
+        return ByteBuffer.allocateDirect((numBlocks + 1) * BLOCKSIZE).alignedSlice(BLOCKSIZE)
+                .limit(numBlocks * BLOCKSIZE).slice();
+    }
+
+    /**
+     * Writes the blocks of a new file
+     */
+    interface Output {
+        void writeTo(SequentialWriter dst) throws IOException;
+    }
+
+    /**
+     * Writes a new file beside the target and, once it is on the device,
+     * renames it over the target, atomically where the file system allows
+     * @param target the file being replaced
+     * @param bufferBlocks the number of blocks in each buffer
+     * @param output writes the new file's blocks
+     * @return the number of blocks written
+     * @throws IOException for file operations
+     */
+    static long replace(File target, int bufferBlocks, Output output) throws IOException{
+        File dir = target.getAbsoluteFile().getParentFile();
+        File sorted = File.createTempFile(target.getName(), ".sorted", dir);
+        try{
+            long blocks;
+            try(FileChannel channel = FileChannel.open(sorted.toPath(), StandardOpenOption.WRITE);
+                SequentialWriter dst = new SequentialWriter(channel, bufferBlocks)){
+                output.writeTo(dst);
+                blocks = dst.getBlocksWritten();
+            }
+            try{
+                Files.move(sorted.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException e){
+                Files.move(sorted.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return blocks;
+        } finally{
+            sorted.delete();
+        }
+    }
+
+    /**
+     * Getter for the number of blocks handed to the writer
+     * @return the number of blocks written
+     */
+    long getBlocksWritten(){
+        return blocksWritten;
+    }
+
+    /**
+     * Getter for the number of writes issued to the channel, each a full
+     * buffer except perhaps the last
+     * @return the number of writes
+     */
+    int getWrites(){
+        return writes;
+    }
+
+    /**
+     * Appends blocks to the file
+     * @param blockNum the first block to be written, which must be the
+     *                 block after the last one written
+     * @param src the array holding the blocks
+     * @param numBlocks the number of blocks to be written
+     * @throws IOException if a background write failed
+     */
+    @Override
+    public void writeBlocks(long blockNum, byte[] src, int numBlocks) throws IOException{
+        if(blockNum * BLOCKSIZE != position + filling.position())
+            throw new IllegalArgumentException("Block " + blockNum + " is not the next block of the file");
+        int offset = 0;
+        int length = numBlocks * BLOCKSIZE;
+        while(offset < length){
+            int n = Math.min(length - offset, filling.remaining());
+            filling.put(src, offset, n);
+            offset += n;
+            if(!filling.hasRemaining())
+                swap();
+        }
+        blocksWritten += numBlocks;
+    }
+
+    /**
+     * Writes out the last buffer, waits for every write, forces the file
+     * to the device and stops the background thread
+     * @throws IOException if a write failed
+     */
+    @Override
+    public void close() throws IOException{
+        try{
+            if(filling.position() > 0)
+                swap();
+            await();
+            channel.force(false);
+        } finally{
+            flusher.shutdown();
+        }
+    }
+
+    // Hands the filling buffer to the flusher once the previous write is done
+    private void swap() throws IOException{
+        await();
+        ByteBuffer full = filling;
+        full.flip();
+        long start = position;
+        position += full.remaining();
+        writes++;
+        pending = flusher.submit(() -> {
+            while(full.hasRemaining())
+                channel.write(full, start + full.position());
+            return null;
+        });
+        filling = spare;
+        filling.clear();
+        spare = full;
+    }
+    private void await() throws IOException{
+        if(pending == null)
+            return;
+        try{
+            pending.get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer");
+        } catch(ExecutionException e){
+            throw new IOException("Sequential write failed", e.getCause());
+        } finally{
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package externalsort;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The SharedBufferPool class is a bounded, thread-safe cache of blocks that
+ * several ConcurrentBufferPoolServices, for one file or for several files,
+ * can share. Frames are split into lock stripes chosen by hashing the file
+ * and block number; each stripe has its own lock, BlockTable and LRU list,
+ * so threads working on different blocks rarely contend. A stripe is only
+ * an LRU cache of its own share of the buffers, so every stripe is given at
+ * least MINPERSTRIPE of them: smaller pools get fewer stripes, down to a
+ * single one, rather than degrading towards a direct-mapped cache. All disk
+ * access is positional FileChannel I/O, so there is no shared file cursor.
+ * Each stripe keeps its own Metrics, updated under its lock, and the pool
+ * adds them up for every file it serves.
+ */
+public class SharedBufferPool {
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private static final int FILESHIFT = 48;
+    private static final int MINPERSTRIPE = 8;
+    private final Stripe[] stripes;
+    private final List<FileState> files = new CopyOnWriteArrayList<>();
+    // Ids of released files, reused so a long-running pool never runs out
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private final int numBuffers;
+
+    /**
+     * SharedBufferPool defined by the total number of buffers and the
+     * number of lock stripes they are divided between
+     * @param numBuffers the total number of buffers in the pool
+     * @param numStripes the largest number of independently locked stripes,
+     *                   reduced so each stripe has at least 8 buffers
+     */
+    public SharedBufferPool(int numBuffers, int numStripes){
+        this.numBuffers = numBuffers;
+        int n = Math.max(1, Math.min(numStripes, numBuffers / MINPERSTRIPE));
+        stripes = new Stripe[n];
+        for(int i = 0; i < n; i++)
+            stripes[i] = new Stripe(i, numBuffers / n + (i < numBuffers % n ? 1 : 0));
+    }
+
+    /**
+     * Getter for the total number of buffers
+     * @return the number of buffers shared by every file
+     */
+    public int getNumBuffers(){
+        return numBuffers;
+    }
+
+    /**
+     * Getter for the number of lock stripes
+     * @return the number of stripes the buffers are divided between
+     */
+    public int getNumStripes(){
+        return stripes.length;
+    }
+
+    /**
+     * Getter for the metrics of the whole pool, added up from its stripes
+     * one stripe lock at a time
+     * @return a snapshot of the pool's metrics
+     */
+    public Metrics getMetrics(){
+        Metrics[] parts = new Metrics[stripes.length];
+        for(int i = 0; i < stripes.length; i++){
+            stripes[i].lock();
+            try{
+                parts[i] = Metrics.sum(stripes[i].metrics);
+            } finally{
+                stripes[i].unlock();
+            }
+        }
+        return Metrics.sum(parts);
+    }
+
+    /**
+     * Turns the heat map of every stripe on or off. Blocks of different
+     * files with the same block number share a cell
+     * @param enabled true to keep the heat map up to date
+     */
+    public void enableHeatMap(boolean enabled){
+        for(Stripe stripe : stripes){
+            stripe.lock();
+            try{
+                stripe.metrics.enableHeatMap(enabled);
+            } finally{
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Registers a live view of the pool's metrics with the platform MBean
+     * server, each attribute read from a fresh snapshot
+     * @param name the name distinguishing this pool from others
+     * @return the name to pass to Metrics.unregister
+     * @throws JMException if the name is malformed or already registered
+     */
+    public ObjectName registerMetrics(String name) throws JMException{
+        return Metrics.register(new PoolMetrics(), name);
+    }
+
+    /**
+     * Registers a file with the pool
+     * @param channel the channel used for the file's positional I/O
+     * @return the state tracking the file's channel and statistics
+     */
+    FileState register(FileChannel channel){
+        synchronized(files){
+            Integer fileId = freeIds.poll();
+            if(fileId == null){
+                FileState state = new FileState(files.size(), channel);
+                files.add(state);
+                return state;
+            }
+            FileState state = new FileState(fileId, channel);
+            files.set(fileId, state);
+            return state;
+        }
+    }
+
+    /**
+     * Unregisters a file so its id can be given to another. The file must
+     * have been flushed, so none of its blocks are left in the pool
+     * @param state the state returned by register
+     */
+    void release(FileState state){
+        synchronized(files){
+            files.set(state.fileId, null);
+            freeIds.push(state.fileId);
+        }
+    }
+
+    /**
+     * Combines a file and a block number into the key used by the stripes
+     * @param fileId the id of a registered file
+     * @param blockNum the block index in relation to that file
+     * @return the key of the block
+     */
+    static long key(int fileId, long blockNum){
+        return ((long)fileId << FILESHIFT) | blockNum;
+    }
+
+    /**
+     * Strips the file id from a key
+     * @param key the key of a block, or a plain block number
+     * @return the block index in relation to its file
+     */
+    static long blockOf(long key){
+        return key & ((1L << FILESHIFT) - 1);
+    }
+
+    /**
+     * Picks the stripe responsible for a block
+     * @param key the key of the block
+     * @return the stripe whose lock guards the block
+     */
+    Stripe stripe(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return stripes[(int)((h >>> 33) % stripes.length)];
+    }
+
+    /**
+     * Used to visit every stripe in lock order
+     * @param i the position of the stripe
+     * @return the stripe, or null once i is past the last stripe
+     */
+    Stripe stripeAt(int i){
+        return i < stripes.length ? stripes[i] : null;
+    }
+
+    /**
+     * The FileState class holds a registered file's channel and the
+     * statistics of its accesses through the pool
+     */
+    static class FileState {
+        final int fileId;
+        final FileChannel channel;
+        final LongAdder cacheHits = new LongAdder();
+        final LongAdder cacheMisses = new LongAdder();
+        final LongAdder diskWrites = new LongAdder();
+
+        FileState(int fileId, FileChannel channel){
+            this.fileId = fileId;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * The PoolMetrics class is the JMX view of the pool's metrics
+     */
+    private class PoolMetrics implements MetricsMXBean {
+        @Override
+        public long getCacheHits(){
+            return getMetrics().getCacheHits();
+        }
+        @Override
+        public long getCacheMisses(){
+            return getMetrics().getCacheMisses();
+        }
+        @Override
+        public long getDiskReads(){
+            return getMetrics().getDiskReads();
+        }
+        @Override
+        public long getDiskWrites(){
+            return getMetrics().getDiskWrites();
+        }
+        @Override
+        public long getEvictions(){
+            return getMetrics().getEvictions();
+        }
+        @Override
+        public long getDirtyEvictions(){
+            return getMetrics().getDirtyEvictions();
+        }
+        @Override
+        public long getBytesRead(){
+            return getMetrics().getBytesRead();
+        }
+        @Override
+        public long getBytesWritten(){
+            return getMetrics().getBytesWritten();
+        }
+        @Override
+        public Map<String, Long> getPhaseNanos(){
+            return getMetrics().getPhaseNanos();
+        }
+        @Override
+        public long[] getReadLatencyBuckets(){
+            return getMetrics().getReadLatencyBuckets();
+        }
+        @Override
+        public long[] getWriteLatencyBuckets(){
+            return getMetrics().getWriteLatencyBuckets();
+        }
+        @Override
+        public long[] getBlockHeat(){
+            return getMetrics().getBlockHeat();
+        }
+    }
+
+    /**
+     * The Stripe class is one independently locked part of the pool. Every
+     * method except lock and unlock must be called with the lock held
+     */
+    class Stripe {
+        final int index;
+        private final int capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final BlockTable blockTable;
+        private final FrameList lru = new FrameList();
+        private final Metrics metrics = new Metrics();
+        private BufferNode freeFrames;
+
+        Stripe(int index, int capacity){
+            this.index = index;
+            this.capacity = capacity;
+            this.blockTable = new BlockTable(capacity + 2);
+        }
+        void lock(){
+            lock.lock();
+        }
+        void unlock(){
+            lock.unlock();
+        }
+
+        /**
+         * Finds the frame holding a block, reading it from disk on a miss,
+         * and promotes it to most recently used. Does not evict, so frames
+         * handed out earlier under the same lock stay valid
+         * @param file the file the block belongs to
+         * @param blockNum the block index in relation to the file
+         * @return the frame holding the block
+         * @throws IOException for FileChannel operations
+         */
+        BufferNode frame(FileState file, long blockNum) throws IOException{
+            long key = key(file.fileId, blockNum);
+            BufferNode buffNode = blockTable.get(key);
+            if(buffNode != null){
+                file.cacheHits.increment();
+                metrics.hit(blockNum);
+                lru.moveToFront(buffNode);
+                return buffNode;
+            }
+            file.cacheMisses.increment();
+            metrics.miss(blockNum);
+            buffNode = freeFrames;
+            if(buffNode != null){
+                freeFrames = buffNode.next;
+                buffNode.rebind(key);
+            } else{
+                buffNode = new BufferNode(key, new byte[BLOCKSIZE]);
+            }
+            ByteBuffer bb = ByteBuffer.wrap(buffNode.getData());
+            long position = blockNum * BLOCKSIZE;
+            long startTime = System.nanoTime();
+            try{
+                while(bb.hasRemaining()){
+                    int n = file.channel.read(bb, position + bb.position());
+                    if(n < 0)
+                        throw new IOException("Block " + blockNum + " is past the end of the file");
+                }
+            } catch(IOException e){
+                // The frame never held the block, so it goes back unmapped
+                buffNode.rebind(-1);
+                buffNode.next = freeFrames;
+                freeFrames = buffNode;
+                throw e;
+            }
+            metrics.read(1, BLOCKSIZE, System.nanoTime() - startTime);
+            blockTable.put(key, buffNode);
+            lru.linkFront(buffNode);
+            return buffNode;
+        }
+
+        /**
+         * Evicts least recently used frames until the stripe is back
+         * within its capacity
+         * @throws IOException for FileChannel operations
+         */
+        void resize() throws IOException{
+            while(lru.size() > capacity){
+                BufferNode victim = lru.tail();
+                metrics.evict(victim.getMustWrite());
+                drop(victim);
+            }
+        }
+
+        /**
+         * Writes a block of a file straight to disk. A frame holding the
+         * same block takes the written data and is marked clean
+         * @param file the file the block belongs to
+         * @param blockNum the block index in relation to the file
+         * @param buffNode the block's data, possibly a frame of this stripe
+         * @throws IOException for FileChannel operations
+         */
+        void writeThrough(FileState file, long blockNum, BufferNode buffNode) throws IOException{
+            ByteBuffer bb = ByteBuffer.wrap(buffNode.getData());
+            long startTime = System.nanoTime();
+            while(bb.hasRemaining())
+                file.channel.write(bb, blockNum * BLOCKSIZE + bb.position());
+            metrics.write(1, BLOCKSIZE, System.nanoTime() - startTime);
+            file.diskWrites.increment();
+            BufferNode cached = blockTable.get(key(file.fileId, blockNum));
+            if(cached != null){
+                if(cached != buffNode)
+                    System.arraycopy(buffNode.getData(), 0, cached.getData(), 0, BLOCKSIZE);
+                cached.setMustWrite(false);
+            }
+        }
+
+        /**
+         * Writes back and drops every frame belonging to the given file
+         * @param fileId the id of the file being flushed
+         * @throws IOException for FileChannel operations
+         */
+        void flush(int fileId) throws IOException{
+            BufferNode buffNode = lru.tail();
+            while(buffNode != null){
+                BufferNode prev = buffNode.prev;
+                if((int)(buffNode.getBlockNum() >>> FILESHIFT) == fileId)
+                    drop(buffNode);
+                buffNode = prev;
+            }
+        }
+        // Writes the frame back if it is dirty and returns it to the free list
+        private void drop(BufferNode buffNode) throws IOException{
+            if(buffNode.getMustWrite()){
+                long key = buffNode.getBlockNum();
+                FileState file = files.get((int)(key >>> FILESHIFT));
+                long blockNum = blockOf(key);
+                ByteBuffer bb = ByteBuffer.wrap(buffNode.getData());
+                long startTime = System.nanoTime();
+                while(bb.hasRemaining())
+                    file.channel.write(bb, blockNum * BLOCKSIZE + bb.position());
+                metrics.write(1, BLOCKSIZE, System.nanoTime() - startTime);
+                file.diskWrites.increment();
+            }
+            lru.unlink(buffNode);
+            blockTable.remove(buffNode.getBlockNum());
+            buffNode.next = freeFrames;
+            freeFrames = buffNode;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package externalsort;
+
+import java.io.IOException;
+
+/**
+ * The SortEngine interface is implemented by every algorithm the Driver
+ * can use to sort the disk file, so they can be swapped at the command
+ * line and timed the same way.
+ */
+public interface SortEngine {
+    /**
+     * Sorts the whole disk file in ascending order of key and makes sure
+     * every change has reached the file before returning
+     * @throws IOException for RandomAccessFile operations
+     */
+    void sortFile() throws IOException;
+}
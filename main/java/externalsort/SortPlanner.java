@@ -0,0 +1,103 @@
+package externalsort;
+
+/**
+ * The SortPlanner class holds the cost model used to pick a SortEngine
+ * when the Driver is run with --engine=auto. Costs are estimated in block
+ * transfers (reads plus writes) for a given file size and buffer budget.
+ */
+public class SortPlanner {
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int BLOCKSIZE = RECORDSPERBLOCK * 4;
+    private static final int MAXKEYS = 30000;
+
+    /**
+     * The engines the planner can choose between
+     */
+    public enum Engine { HEAP, MERGE, COUNTING }
+
+    // Private constructor to prevent instantiation.
+    private SortPlanner() {}
+
+    /**
+     * Picks the engine with the lower estimated number of block transfers.
+     * Ties go to the Heapsort algorithm since it needs no spill space
+     * @param fileBytes the length of the disk file in bytes
+     * @param memoryBlocks the number of blocks that can be held in memory
+     * @return the engine to use
+     */
+    public static Engine choose(long fileBytes, int memoryBlocks){
+        return choose(fileBytes, memoryBlocks, false);
+    }
+
+    /**
+     * Picks the engine with the lowest estimated number of block transfers.
+     * The counting engine is only considered when the keys are known to
+     * lie in the bounded domain guaranteed for these files (1 to 30,000)
+     * @param fileBytes the length of the disk file in bytes
+     * @param memoryBlocks the number of blocks that can be held in memory
+     * @param boundedKeys true if the counting engine may be used
+     * @return the engine to use
+     */
+    public static Engine choose(long fileBytes, int memoryBlocks, boolean boundedKeys){
+        long numBlocks = fileBytes / BLOCKSIZE;
+        long heap = heapCost(numBlocks, memoryBlocks);
+        long merge = mergeCost(numBlocks, memoryBlocks);
+        if(boundedKeys && countingCost(numBlocks, memoryBlocks) < Math.min(heap, merge))
+            return Engine.COUNTING;
+        if(heap <= merge)
+            return Engine.HEAP;
+        return Engine.MERGE;
+    }
+
+    /**
+     * Estimates the Heapsort algorithm's block transfers. Only the top
+     * levels of the heap stay resident; every level below them lands in a
+     * different block, which is read and later written back dirty
+     * @param numBlocks the number of blocks in the file
+     * @param memoryBlocks the number of buffers
+     * @return the estimated number of block transfers
+     */
+    static long heapCost(long numBlocks, int memoryBlocks){
+        if(numBlocks <= memoryBlocks)
+            return 2 * numBlocks;
+        long numRecords = numBlocks * RECORDSPERBLOCK;
+        double depth = Math.log(numRecords) / Math.log(2);
+        double cachedDepth = Math.log((double)Math.max(1, memoryBlocks) * RECORDSPERBLOCK) / Math.log(2);
+        return (long)(2 * numRecords * Math.max(1, depth - cachedDepth));
+    }
+
+    /**
+     * Estimates the merge sort's block transfers: every pass reads and
+     * writes the whole file once, with one pass for run generation plus
+     * one per level of the merge tree
+     * @param numBlocks the number of blocks in the file
+     * @param memoryBlocks the number of blocks per run
+     * @return the estimated number of block transfers
+     */
+    static long mergeCost(long numBlocks, int memoryBlocks){
+        int runBlocks = Math.max(1, memoryBlocks);
+        long numRuns = (numBlocks + runBlocks - 1) / runBlocks;
+        int passes = 1;
+        if(numRuns > 1){
+            int fanIn = Math.max(2, runBlocks - 1);
+            passes += (int)Math.ceil(Math.log(numRuns) / Math.log(fanIn) - 1e-9);
+        }
+        return 2 * numBlocks * passes;
+    }
+
+    /**
+     * Estimates the counting sort's transfers: two reads of the file for
+     * the histogram and the scatter, the copy of the spill file back over
+     * the disk file, and one write per bucket buffer flush. Bucket buffers
+     * share the memory budget between up to 30,000 keys, so a small budget
+     * means many small writes
+     * @param numBlocks the number of blocks in the file
+     * @param memoryBlocks the number of blocks that can be held in memory
+     * @return the estimated number of transfers
+     */
+    static long countingCost(long numBlocks, int memoryBlocks){
+        long numRecords = numBlocks * RECORDSPERBLOCK;
+        long bucketRecords = Math.max(16, Math.min(RECORDSPERBLOCK, (long)memoryBlocks * RECORDSPERBLOCK / MAXKEYS));
+        return 4 * numBlocks + numRecords / bucketRecords + Math.min(numRecords, MAXKEYS);
+    }
+}
@@ -0,0 +1,250 @@
+package externalsort;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The SortService class sorts many files in one long-running JVM, so JVM
+ * startup and JIT warm-up are paid once instead of once per file. Jobs run
+ * on a fixed number of worker threads. Files larger than their share of
+ * the memory budget are heapsorted through one SharedBufferPool, so the
+ * buffer budget is global and split between running jobs by the pool's
+ * LRU stripes. Smaller files are sorted whole in memory by
+ * InMemorySortClient, holding permits for their blocks from the memory
+ * budget until they finish. Every job writes its report, block records
+ * and STATS, in the Driver's format. The shared pool's Metrics are
+ * registered as an MXBean named SortService while the service runs.
+ * Usage: SortService &lt;spool-dir|-&gt; &lt;num-buffers&gt; [--threads=n]
+ * [--memory=blocks]. With -, file paths are read from standard input one
+ * per line and each report is written next to its file with a .stats
+ * suffix. With a spool directory, the directory is polled for new .dat
+ * files, which should be renamed into it once complete; each one is
+ * moved to the done subdirectory with its report after it is sorted.
+ */
+public class SortService {
+    private static final int BLOCKSIZE = 4096;
+    private static final int STRIPES = 16;
+    private static final long SPOOLMILLIS = 1000;
+    private final SharedBufferPool pool;
+    private final ExecutorService workers;
+    private final Semaphore memory;
+    private final int fastPathBlocks;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completedJobs = new LongAdder();
+    private final LongAdder sortedRecords = new LongAdder();
+    private final long startTime = System.nanoTime();
+    // Set by main, which logs a line as each job finishes
+    private boolean logJobs = false;
+
+    /**
+     * SortService defined by its buffer budget, its memory budget and how
+     * many files it sorts at once
+     * @param numBuffers the number of buffers shared by every heapsorted file
+     * @param memoryBlocks the blocks of memory shared by in-memory sorts
+     * @param threads the number of files sorted at once
+     */
+    public SortService(int numBuffers, int memoryBlocks, int threads){
+        threads = Math.max(1, threads);
+        this.pool = new SharedBufferPool(numBuffers, STRIPES);
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.memory = new Semaphore(Math.max(1, memoryBlocks));
+        // Every worker can hold a fast-path file at the same time
+        this.fastPathBlocks = Math.max(1, memoryBlocks / threads);
+    }
+
+    /**
+     * Getter for the number of jobs submitted but not yet started
+     * @return the queue depth
+     */
+    public int getQueueDepth(){
+        return queued.get();
+    }
+
+    /**
+     * Getter for the number of jobs being sorted right now
+     * @return the number of active jobs
+     */
+    public int getActiveJobs(){
+        return active.get();
+    }
+
+    /**
+     * Getter for the number of jobs finished, successfully or not
+     * @return the number of completed jobs
+     */
+    public long getCompletedJobs(){
+        return completedJobs.sum();
+    }
+
+    /**
+     * Getter for the throughput since the service started
+     * @return the records sorted per second
+     */
+    public double getThroughput(){
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? sortedRecords.sum() / seconds : 0;
+    }
+
+    /**
+     * Getter for the metrics of the buffer pool shared by heapsorted files
+     * @return a snapshot of the pool's metrics
+     */
+    public Metrics getMetrics(){
+        return pool.getMetrics();
+    }
+
+    /**
+     * Registers a live view of the shared pool's metrics with the platform
+     * MBean server
+     * @param name the name distinguishing this service from others
+     * @return the name to pass to Metrics.unregister
+     * @throws JMException if the name is malformed or already registered
+     */
+    public ObjectName registerMetrics(String name) throws JMException{
+        return pool.registerMetrics(name);
+    }
+
+    /**
+     * Queues a file to be sorted in place
+     * @param file the file to be sorted
+     * @param report the file the block records and STATS are written to
+     * @return the statistics of the sort once it has finished
+     */
+    public Future<CacheStats> submit(File file, File report){
+        return submit(file, report, null);
+    }
+
+    // Sorts the file, then moves it into the done directory if there is one
+    private Future<CacheStats> submit(File file, File report, File done){
+        queued.incrementAndGet();
+        return workers.submit(() -> {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            try{
+                CacheStats stats = sort(file, report);
+                if(done != null)
+                    Files.move(file.toPath(), new File(done, file.getName()).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                return stats;
+            } catch(IOException | RuntimeException e){
+                System.err.println(file.getName() + " failed: " + e);
+                throw e;
+            } finally{
+                active.decrementAndGet();
+                completedJobs.increment();
+                if(logJobs)
+                    log(file.getName());
+            }
+        });
+    }
+
+    /**
+     * Stops taking jobs and waits for the queued ones to finish
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException{
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    private CacheStats sort(File file, File report) throws IOException, InterruptedException{
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            long numBlocks = (raf.length() + BLOCKSIZE - 1) / BLOCKSIZE;
+            CacheStats stats;
+            long sortStart = System.currentTimeMillis();
+            if(numBlocks <= fastPathBlocks){
+                memory.acquire((int)numBlocks);
+                try{
+                    InMemorySortClient imsc = new InMemorySortClient(raf);
+                    imsc.sortFile();
+                    stats = imsc;
+                } finally{
+                    memory.release((int)numBlocks);
+                }
+            } else{
+                try(ConcurrentBufferPoolService cbps = new ConcurrentBufferPoolService(pool, raf.getChannel())){
+                    new HeapSortClient(cbps).sortFile();
+                    stats = cbps;
+                }
+            }
+            long sortTime = System.currentTimeMillis() - sortStart;
+            sortedRecords.add(raf.length() / 4);
+            try(PrintStream out = new PrintStream(report)){
+                StatsReport.write(out, raf, file.getPath(), stats, sortTime, null);
+            }
+            return stats;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, JMException{
+        if(args.length < 2)
+            throw new IllegalArgumentException(
+                    "Expected a spool directory or - for standard input, and the number of buffers");
+        int numBuffers = Integer.parseInt(args[1]);
+        Map<String, String> options = Driver.parseOptions(args);
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int memoryBlocks = Integer.parseInt(options.getOrDefault("memory", String.valueOf(numBuffers)));
+        SortService service = new SortService(numBuffers, memoryBlocks, threads);
+        service.logJobs = true;
+        ObjectName jmxName = service.registerMetrics("SortService");
+        if(args[0].equals("-")){
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while((line = in.readLine()) != null){
+                if(!line.isBlank()){
+                    File file = new File(line.trim());
+                    service.submit(file, new File(file.getPath() + ".stats"));
+                }
+            }
+            service.shutdown();
+            Metrics.unregister(jmxName);
+        } else{
+            service.spool(new File(args[0]));
+        }
+    }
+
+    // Polls the spool directory until the process is stopped. A name is
+    // forgotten once its file has moved out, so a later file may reuse it
+    private void spool(File dir) throws InterruptedException, IOException{
+        File done = new File(dir, "done");
+        if(!done.isDirectory() && !done.mkdirs())
+            throw new IOException("Cannot create " + done);
+        Set<String> seen = new HashSet<>();
+        while(true){
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".dat"));
+            Set<String> present = new HashSet<>();
+            if(files != null){
+                for(File file : files){
+                    present.add(file.getName());
+                    if(seen.add(file.getName()))
+                        submit(file, new File(done, file.getName() + ".stats"), done);
+                }
+            }
+            seen.retainAll(present);
+            Thread.sleep(SPOOLMILLIS);
+        }
+    }
+    private void log(String name){
+        System.out.printf("%s: queue depth %d, active %d, completed %d, %.0f records/s%n", name,
+                getQueueDepth(), getActiveJobs(), getCompletedJobs(), getThroughput());
+    }
+}
@@ -0,0 +1,56 @@
+package externalsort;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+/**
+ * The StatsReport class prints the required output of a sort: the first
+ * record of every 4096-byte block of the sorted file, eight to a line,
+ * followed by the STATS block. The Driver prints it to standard output
+ * and the SortService writes one per job.
+ */
+class StatsReport {
+    private static final int BLOCKSIZE = 4096;
+
+    // Private constructor to prevent instantiation.
+    private StatsReport() {}
+
+    /**
+     * Prints the block records and the STATS block
+     * @param out the stream receiving the report
+     * @param raf the sorted file
+     * @param fileName the file name printed after the STATS line
+     * @param stats the statistics of the sort
+     * @param sortTime the time to sort in milliseconds
+     * @param firstRecords the first record of each block packed into an
+     *                     int, or null to read them from the file
+     * @throws IOException for RandomAccessFile operations
+     */
+    static void write(PrintStream out, RandomAccessFile raf, String fileName, CacheStats stats, long sortTime,
+                      int[] firstRecords) throws IOException {
+        int recsPrinted = 0;
+        for(long i = 0; i < raf.length(); i += BLOCKSIZE) {
+            if(recsPrinted % 8 != 0)
+                out.print("    ");
+            if (firstRecords != null) {
+                int record = firstRecords[(int) (i / BLOCKSIZE)];
+                out.print((short) (record >> 16) + " " + (short) record);
+            } else {
+                raf.seek(i);
+                out.print(raf.readShort() + " " + raf.readShort());
+            }
+            recsPrinted++;
+            if(recsPrinted % 8 == 0)
+                out.println();
+        }
+        out.println();
+        out.println("STATS");
+        out.println("File name: " + fileName);
+        out.println("Cache hits: " + stats.getCacheHits());
+        out.println("Cache misses: " + stats.getCacheMisses());
+        out.println("Disk reads: " + stats.getDiskReads());
+        out.println("Disk writes: " + stats.getDiskWrites());
+        out.println("Time to sort: " + sortTime);
+    }
+}
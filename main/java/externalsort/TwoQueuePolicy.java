@@ -0,0 +1,76 @@
+package externalsort;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The TwoQueuePolicy class is the 2Q replacement scheme. A block loaded for
+ * the first time goes on the A1in FIFO queue and hits there do not promote
+ * it, so a one-off block is evicted quickly. When A1in outgrows its quarter
+ * of the pool its oldest frame is evicted and its block number remembered on
+ * the A1out ghost queue. A block that misses again while it is remembered
+ * has proven it is reused and is loaded straight into Am, an LRU list that
+ * holds the hot blocks such as the top levels of the heap. The queue each
+ * frame is on is kept by frame slot.
+ */
+class TwoQueuePolicy implements ReplacementPolicy {
+    private static final byte A1IN = 1;
+    private static final byte AM = 2;
+    private final int maxIn;
+    private final int maxOut;
+    private final FrameList a1in = new FrameList();
+    private final FrameList am = new FrameList();
+    private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+    private final FrameSlots slots = new FrameSlots();
+    private byte[] queue = new byte[16];
+
+    /**
+     * TwoQueuePolicy is defined by the number of buffers, which sizes
+     * A1in to a quarter and A1out to half of the pool
+     * @param numBuffers the number of buffers in the pool
+     */
+    TwoQueuePolicy(int numBuffers){
+        this.maxIn = Math.max(1, numBuffers / 4);
+        this.maxOut = Math.max(1, numBuffers / 2);
+    }
+    @Override
+    public void admit(BufferNode buffNode){
+        int slot = slots.of(buffNode);
+        if(slot >= queue.length)
+            queue = Arrays.copyOf(queue, Math.max(slot + 1, queue.length * 2));
+        if(a1out.remove(buffNode.getBlockNum())){
+            queue[slot] = AM;
+            am.linkFront(buffNode);
+        } else{
+            queue[slot] = A1IN;
+            a1in.linkFront(buffNode);
+        }
+    }
+    @Override
+    public void access(BufferNode buffNode){
+        if(queue[buffNode.slot] == AM)
+            am.moveToFront(buffNode);
+    }
+    @Override
+    public BufferNode victim(){
+        BufferNode buffNode;
+        if(a1in.size() > 0 && (a1in.size() > maxIn || am.size() == 0)){
+            buffNode = a1in.tail();
+            a1in.unlink(buffNode);
+            a1out.add(buffNode.getBlockNum());
+            if(a1out.size() > maxOut){
+                Iterator<Long> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        } else{
+            buffNode = am.tail();
+            if(buffNode != null)
+                am.unlink(buffNode);
+        }
+        if(buffNode != null)
+            queue[buffNode.slot] = 0;
+        return buffNode;
+    }
+}
@@ -10,6 +10,7 @@ import java.util.Random;
 public class Utils {
 
     private static final Random RANDOM = new Random();
+    private static final int MAXKEY = 30000;
 
 
     // Private constructor to prevent instantiation.
@@ -81,4 +82,96 @@ public class Utils {
             }
         }
     }
+
+    /**
+     * Generates a binary file of nearly sorted data for testing. Keys
+     * ascend from 1 to 30000 through the file, then the given fraction of
+     * records is swapped with a random record elsewhere in the file.
+     *
+     * @param numRecords The number of records that should be in the file.
+     *                   This must be a multiple of 1024. Each record is 4 bytes long.
+     * @param fileName The name of the file to which data should be written.
+     *                 This method will OVERWRITE the file if a file with the same
+     *                 name already exists.
+     * @param disorder The fraction of records moved out of place, from 0 to 1.
+     * @throws IllegalArgumentException if numRecords is not a multiple of 1024
+     * @throws IOException if the file is not writable or there are other issues with the file
+     */
+    public static void generatePartiallySortedFile(int numRecords, String fileName, double disorder)
+            throws IOException {
+        if (numRecords % 1024 != 0) {
+            throw new IllegalArgumentException("numRecords must be a multiple of 1024");
+        }
+        short[] keys = new short[numRecords];
+        for (int i = 0; i < numRecords; i++) {
+            keys[i] = (short) (1 + (long) i * MAXKEY / numRecords);
+        }
+        int swaps = (int) (numRecords * disorder);
+        for (int s = 0; s < swaps; s++) {
+            int i = RANDOM.nextInt(numRecords);
+            int j = RANDOM.nextInt(numRecords);
+            short temp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = temp;
+        }
+        File file = new File(fileName);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)))) {
+            for (int i = 0; i < numRecords; i++) {
+                out.writeShort(keys[i]);
+                out.writeShort(RANDOM.nextInt(Short.MAX_VALUE));
+            }
+        }
+    }
+
+    /**
+     * This method checks a file of records in any fixed-size layout to see
+     * if it is properly sorted by the keys of its schema.
+     *
+     * @param filename a string containing the name of the file to check
+     * @param schema the record size and keys of the file
+     * @return true if the file is sorted, false otherwise
+     * @throws IOException if the file is not found or there are other issues
+     *  with reading the file.
+     */
+    public static boolean checkFile(String filename, RecordSchema schema) throws IOException {
+        int size = schema.getRecordSize();
+        byte[] records = new byte[2 * size];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            in.readFully(records, size, size);
+            try {
+                while (true) {
+                    System.arraycopy(records, size, records, 0, size);
+                    in.readFully(records, size, size);
+                    if (schema.compare(records, 0, records, size) > 0) {
+                        return false;
+                    }
+                }
+            } catch (EOFException e) {
+                // Reached the end of the file, no action needed.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates a binary file of random records of any size for testing.
+     *
+     * @param numRecords The number of records that should be in the file.
+     * @param recordSize The size of each record in bytes, a power of two
+     *                   from 4 to 4096 so the file is whole blocks when
+     *                   numRecords * recordSize is a multiple of 4096.
+     * @param fileName The name of the file to which data should be written.
+     *                 This method will OVERWRITE the file if a file with the same
+     *                 name already exists.
+     * @throws IOException if the file is not writable or there are other issues with the file
+     */
+    public static void generateRecordFile(int numRecords, int recordSize, String fileName) throws IOException {
+        byte[] record = new byte[recordSize];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName, false))) {
+            for (int i = 0; i < numRecords; i++) {
+                RANDOM.nextBytes(record);
+                out.write(record);
+            }
+        }
+    }
 }
@@ -0,0 +1,230 @@
+package externalsort;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The WriteBehindQueue class takes dirty frames evicted from a
+ * BufferPoolService and writes them back on a background thread, so the
+ * sorting thread does not stall on disk writes. The queue is bounded; an
+ * eviction waits only once it is full. The writer sleeps until half the
+ * queue is filled, then takes every queued frame at once and writes each
+ * run of adjacent blocks with a single positional write, so the sorting
+ * thread's own file pointer is never moved. A block that is needed again
+ * before it reaches the disk is handed back from the queue instead of
+ * being read. A frame that ends past the end of the file is written only
+ * up to the end, so a partial last frame never grows the file.
+ */
+class WriteBehindQueue {
+    // The most bytes of adjacent frames coalesced into one write
+    private static final int MAXRUNBYTES = 16 * 4096;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final int maxRun;
+    private final int capacity;
+    private final int batchSize;
+    private final TreeMap<Long, BufferNode> queued = new TreeMap<>();
+    private final Map<Long, BufferNode> inFlight = new HashMap<>();
+    private final ArrayDeque<BufferNode> written = new ArrayDeque<>();
+    private final ByteBuffer staging;
+    private Thread writer;
+    private boolean draining = false;
+    private IOException failure;
+    private int coalescedWrites = 0;
+
+    /**
+     * WriteBehindQueue defined by the channel of the file being sorted and
+     * the number of dirty frames that may wait to be written
+     * @param channel the channel used for positional writes
+     * @param capacity the most frames queued or in flight at once
+     * @param blockSize the size of a frame in bytes
+     */
+    WriteBehindQueue(FileChannel channel, int capacity, int blockSize){
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.maxRun = Math.max(1, MAXRUNBYTES / blockSize);
+        this.staging = ByteBuffer.allocateDirect(maxRun * blockSize);
+        this.capacity = Math.max(1, capacity);
+        this.batchSize = Math.max(1, this.capacity / 2);
+    }
+
+    /**
+     * Queues a dirty frame to be written, waiting while the queue is full.
+     * The frame must no longer be in the buffer pool
+     * @param buffNode the evicted frame
+     * @throws IOException if an earlier background write failed
+     */
+    synchronized void enqueue(BufferNode buffNode) throws IOException{
+        while(failure == null && queued.size() + inFlight.size() >= capacity)
+            await();
+        check();
+        queued.put(buffNode.getBlockNum(), buffNode);
+        if(writer == null){
+            writer = new Thread(this::drainLoop, "write-behind");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        if(queued.size() >= batchSize)
+            notifyAll();
+    }
+
+    /**
+     * Hands back a frame that is still waiting to be written so it can
+     * return to the pool without a disk read. The frame stays dirty
+     * @param blockNum the block being read
+     * @return the queued frame, or null if the block is not queued
+     */
+    synchronized BufferNode takeBack(long blockNum){
+        return queued.remove(blockNum);
+    }
+
+    /**
+     * Used to tell whether the disk copy of a block is stale
+     * @param blockNum the block being checked
+     * @return true if the block is queued or being written
+     */
+    synchronized boolean contains(long blockNum){
+        return queued.containsKey(blockNum) || inFlight.containsKey(blockNum);
+    }
+
+    /**
+     * Copies the contents of a block whose write is in progress. The copy
+     * matches what is about to land on the disk, so it is clean
+     * @param blockNum the block being read
+     * @param dst the array receiving the block
+     * @return true if the block was in flight and has been copied
+     */
+    synchronized boolean copyInFlight(long blockNum, byte[] dst){
+        BufferNode buffNode = inFlight.get(blockNum);
+        if(buffNode == null)
+            return false;
+        System.arraycopy(buffNode.getData(), 0, dst, 0, blockSize);
+        return true;
+    }
+
+    /**
+     * Takes a frame that has been written so its byte array can be reused
+     * @return a written frame, or null if there is none
+     */
+    synchronized BufferNode reclaim(){
+        return written.poll();
+    }
+
+    /**
+     * Getter for the number of writes issued, each covering a run of one
+     * or more adjacent blocks
+     * @return the number of coalesced writes
+     */
+    synchronized int getCoalescedWrites(){
+        return coalescedWrites;
+    }
+
+    /**
+     * Waits until every queued frame is on the disk and stops the writer
+     * thread. A later enqueue starts a new one
+     * @throws IOException if a background write failed
+     */
+    void drain() throws IOException{
+        Thread t;
+        synchronized(this){
+            draining = true;
+            notifyAll();
+            while(failure == null && (!queued.isEmpty() || !inFlight.isEmpty()))
+                await();
+            t = writer;
+            writer = null;
+        }
+        if(t != null){
+            try{
+                t.join();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while draining writes");
+            }
+        }
+        synchronized(this){
+            draining = false;
+            check();
+        }
+    }
+    private void drainLoop(){
+        List<BufferNode> batch = new ArrayList<>();
+        while(true){
+            synchronized(this){
+                while(!draining && queued.size() < batchSize){
+                    try{
+                        wait();
+                    } catch(InterruptedException e){
+                        failure = new InterruptedIOException("Writer interrupted");
+                        notifyAll();
+                        return;
+                    }
+                }
+                if(queued.isEmpty())
+                    return;
+                batch.addAll(queued.values());
+                for(BufferNode buffNode : batch)
+                    inFlight.put(buffNode.getBlockNum(), buffNode);
+                queued.clear();
+            }
+            int writes = 0;
+            IOException error = null;
+            try{
+                int start = 0;
+                while(start < batch.size()){
+                    int end = start + 1;
+                    while(end < batch.size() && end - start < maxRun
+                            && batch.get(end).getBlockNum() == batch.get(end - 1).getBlockNum() + 1)
+                        end++;
+                    writeRun(batch, start, end);
+                    writes++;
+                    start = end;
+                }
+            } catch(IOException e){
+                error = e;
+            }
+            synchronized(this){
+                for(BufferNode buffNode : batch){
+                    inFlight.remove(buffNode.getBlockNum());
+                    buffNode.setMustWrite(false);
+                    written.push(buffNode);
+                }
+                coalescedWrites += writes;
+                if(error != null && failure == null)
+                    failure = error;
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+    private void writeRun(List<BufferNode> batch, int start, int end) throws IOException{
+        staging.clear();
+        for(int i = start; i < end; i++)
+            staging.put(batch.get(i).getData());
+        staging.flip();
+        long position = batch.get(start).getBlockNum() * blockSize;
+        staging.limit((int)Math.max(0, Math.min(staging.limit(), channel.size() - position)));
+        while(staging.hasRemaining())
+            channel.write(staging, position + staging.position());
+    }
+    private void await() throws IOException{
+        try{
+            wait();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer");
+        }
+    }
+    private void check() throws IOException{
+        if(failure != null)
+            throw new IOException("Background write failed", failure);
+    }
+}
@@ -0,0 +1,189 @@
+package test;
+
+import externalsort.*;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TestConcurrentBufferPool {
+    private String fileName = "testConcurrentFile.txt";
+    private static final int NUMRECORDS = 64 * 1024;
+    private static final int THREADS = 8;
+    private static final int SWAPS = 20000;
+
+    private RandomAccessFile numberedFile() throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        raf.setLength(0);
+        for(int i = 0; i < NUMRECORDS; i++){
+            raf.writeShort(i);
+            raf.writeShort(i);
+        }
+        return raf;
+    }
+    @Test
+    public void testConcurrentSwapsAreNotLost() throws Exception{
+        RandomAccessFile raf = numberedFile();
+        SharedBufferPool pool = new SharedBufferPool(16, 2);
+        assertEquals(pool.getNumStripes(), 2);
+        ConcurrentBufferPoolService service = new ConcurrentBufferPoolService(pool, raf.getChannel());
+        // Thread t owns every index i with i % THREADS == t, so the threads
+        // share every block but never the same record
+        short[][] expected = new short[THREADS][];
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++){
+            int owner = t;
+            futures.add(executor.submit(() -> {
+                int n = NUMRECORDS / THREADS;
+                short[] local = new short[n];
+                for(int i = 0; i < n; i++)
+                    local[i] = (short)(i * THREADS + owner);
+                Random random = new Random(owner);
+                for(int s = 0; s < SWAPS; s++){
+                    int a = random.nextInt(n);
+                    int b = random.nextInt(n);
+                    service.swap((long)a * THREADS + owner, (long)b * THREADS + owner);
+                    short temp = local[a];
+                    local[a] = local[b];
+                    local[b] = temp;
+                }
+                expected[owner] = local;
+                return null;
+            }));
+        }
+        for(Future<?> f : futures)
+            f.get();
+        executor.shutdown();
+        service.flush();
+        raf.seek(0);
+        for(int i = 0; i < NUMRECORDS; i++){
+            short key = raf.readShort();
+            raf.readShort();
+            assertEquals(key, expected[i % THREADS][i / THREADS]);
+        }
+        assertEquals(service.getCacheHits() + service.getCacheMisses(), 2L * THREADS * SWAPS);
+    }
+    @Test
+    public void testSharedPoolServesTwoFiles() throws IOException{
+        Utils.generateByteFile(4096, fileName);
+        Utils.generateByteFile(4096, "testConcurrentFile2.txt");
+        RandomAccessFile raf1 = new RandomAccessFile(fileName, "rw");
+        RandomAccessFile raf2 = new RandomAccessFile("testConcurrentFile2.txt", "rw");
+        SharedBufferPool pool = new SharedBufferPool(3, 2);
+        FileChannel channel1 = raf1.getChannel();
+        FileChannel channel2 = raf2.getChannel();
+        HeapSortClient hsc1 = new HeapSortClient(new ConcurrentBufferPoolService(pool, channel1));
+        HeapSortClient hsc2 = new HeapSortClient(new ConcurrentBufferPoolService(pool, channel2));
+        hsc1.buildMaxHeap();
+        hsc2.buildMaxHeap();
+        hsc1.sort();
+        hsc2.sort();
+        assertTrue(Utils.checkFile(fileName));
+        assertTrue(Utils.checkFile("testConcurrentFile2.txt"));
+    }
+    @Test
+    public void testStripesKeepEightBuffers() throws IOException{
+        assertEquals(new SharedBufferPool(4, 16).getNumStripes(), 1);
+        assertEquals(new SharedBufferPool(20, 16).getNumStripes(), 2);
+        assertEquals(new SharedBufferPool(1024, 16).getNumStripes(), 16);
+        RandomAccessFile raf = numberedFile();
+        SharedBufferPool pool = new SharedBufferPool(2, 1);
+        ConcurrentBufferPoolService service = new ConcurrentBufferPoolService(pool, raf.getChannel());
+        try{
+            service.keyAt(NUMRECORDS);
+            fail("Read past the end of the file");
+        } catch(IOException e){
+            // The frame is returned to the pool
+        }
+        service.swap(0, NUMRECORDS - 1);
+        service.flush();
+        raf.seek(0);
+        assertEquals(raf.readShort(), (short)(NUMRECORDS - 1));
+    }
+    @Test
+    public void testWriteThroughSecondFile() throws Exception{
+        SharedBufferPool pool = new SharedBufferPool(8, 1);
+        RandomAccessFile first = numberedFile();
+        ConcurrentBufferPoolService firstService = new ConcurrentBufferPoolService(pool, first.getChannel());
+        Utils.generateByteFile(4 * 1024, "testConcurrentFile2.txt");
+        RandomAccessFile second = new RandomAccessFile("testConcurrentFile2.txt", "rw");
+        ConcurrentBufferPoolService service = new ConcurrentBufferPoolService(pool, second.getChannel());
+        // A dirty frame of block 1, then the block written around the pool
+        service.set(1024, (short)1, (short)1);
+        Constructor<BufferNode> constructor = BufferNode.class.getDeclaredConstructor(long.class, byte[].class);
+        constructor.setAccessible(true);
+        BufferNode block = constructor.newInstance(1L, new byte[4096]);
+        block.set(0, (short)7, (short)8);
+        service.write(block);
+        assertEquals(service.keyAt(1024), (short)7);
+        service.close();
+        assertEquals(second.length(), 4 * 1024 * 4);
+        second.seek(4096);
+        assertEquals(second.readShort(), (short)7);
+        assertEquals(second.readShort(), (short)8);
+        second.close();
+        firstService.close();
+        first.close();
+    }
+    @Test
+    public void testSortServiceSortsManyFiles() throws Exception{
+        SortService service = new SortService(8, 8, 2);
+        ObjectName jmxName = service.registerMetrics("testSortService");
+        List<Future<CacheStats>> jobs = new ArrayList<>();
+        String[] names = new String[6];
+        for(int i = 0; i < names.length; i++){
+            names[i] = "testServiceFile" + i + ".txt";
+            // Alternate 2-block files for the in-memory path with 16-block
+            // files for the shared pool
+            Utils.generateByteFile((i % 2 == 0 ? 2 : 16) * 1024, names[i]);
+            jobs.add(service.submit(new File(names[i]), new File(names[i] + ".stats")));
+        }
+        service.shutdown();
+        long hits = 0;
+        long misses = 0;
+        long writes = 0;
+        for(int i = 0; i < names.length; i++){
+            CacheStats stats = jobs.get(i).get();
+            if(i % 2 == 1){
+                hits += stats.getCacheHits();
+                misses += stats.getCacheMisses();
+                writes += stats.getDiskWrites();
+            }
+            assertTrue(Utils.checkFile(names[i]));
+            assertEquals(stats.getCacheHits() == 0, i % 2 == 0);
+            List<String> report = Files.readAllLines(Paths.get(names[i] + ".stats"));
+            assertTrue(report.contains("STATS"));
+            assertTrue(report.contains("File name: " + names[i]));
+            new File(names[i]).delete();
+            new File(names[i] + ".stats").delete();
+        }
+        assertEquals(service.getQueueDepth(), 0);
+        assertEquals(service.getCompletedJobs(), names.length);
+        // The pool's metrics add up the heapsorted files, live over JMX
+        Metrics metrics = service.getMetrics();
+        assertEquals(metrics.getCacheHits(), hits);
+        assertEquals(metrics.getCacheMisses(), misses);
+        assertEquals(metrics.getDiskReads(), misses);
+        assertEquals(metrics.getDiskWrites(), writes);
+        assertEquals(metrics.getBlockHeat().length, 0);
+        assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(jmxName, "CacheMisses"), misses);
+        Metrics.unregister(jmxName);
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(jmxName));
+    }
+}
@@ -4,8 +4,15 @@ import externalsort.*;
 import externalsort.Record;
 import org.junit.Test;
 
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -63,6 +70,39 @@ public class TestHeap {
         assertEquals(bsp.getCacheHits(), 2);
     }
     @Test
+    public void testMetrics() throws Exception{
+        Utils.generateByteFile(4096, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 1);
+        Record r1 = new Record(0, (short)1, (short)2);
+        Record r2 = new Record(2048 * 4, (short)3, (short)4);
+        Metrics metrics = bsp.getMetrics();
+        bsp.read(1024);
+        assertEquals(metrics.getBlockHeat().length, 0);
+        metrics.enableHeatMap(true);
+        // Both blocks miss, and each miss is counted once
+        bsp.swap(r1, r2);
+        assertEquals(metrics.getCacheMisses(), 3);
+        assertEquals(metrics.getDiskReads(), 3);
+        assertEquals(metrics.getEvictions(), 2);
+        assertEquals(metrics.getDirtyEvictions(), 1);
+        assertEquals(metrics.getBytesWritten(), 4096);
+        bsp.flush();
+        raf.close();
+        assertEquals(metrics.getDiskWrites(), 2);
+        long[] heat = metrics.getBlockHeat();
+        assertEquals(heat.length, 3);
+        assertEquals(heat[0] + heat[1] + heat[2], 2);
+        long writes = 0;
+        for(long bucket : metrics.getWriteLatencyBuckets())
+            writes += bucket;
+        assertEquals(writes, 2);
+        assertTrue(metrics.toJson().startsWith("{\"cacheHits\":0,\"cacheMisses\":3,\"diskReads\":3,"));
+        ObjectName jmxName = metrics.register("testMetrics");
+        assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(jmxName, "DiskReads"), 3L);
+        Metrics.unregister(jmxName);
+    }
+    @Test
     public void testFlush() throws IOException{
         Utils.generateByteFile(4096, fileName);
         RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
@@ -93,6 +133,607 @@ public class TestHeap {
         assertTrue(Utils.checkFile(fileName));
     }
     @Test
+    public void testBufferNodeInPlace() throws IOException{
+        Utils.generateByteFile(2048, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 1);
+        Record r1 = bsp.read(5);
+        Record r2 = bsp.read(1024 + 7);
+        bsp.swap(r1, r2);
+        bsp.read(0);
+        bsp.flush();
+        raf.seek(5 * 4);
+        assertEquals(raf.readShort(), r2.getKey());
+        assertEquals(raf.readShort(), r2.getValue());
+        raf.seek((1024 + 7) * 4);
+        assertEquals(raf.readShort(), r1.getKey());
+        assertEquals(raf.readShort(), r1.getValue());
+    }
+    @Test
+    public void testIndexedSwap() throws IOException{
+        Utils.generateByteFile(2048, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 1);
+        short key1 = bsp.keyAt(3);
+        short value1 = bsp.valueAt(3);
+        short key2 = bsp.keyAt(2000);
+        short value2 = bsp.valueAt(2000);
+        bsp.swap(3, 2000);
+        assertEquals(bsp.keyAt(3), key2);
+        assertEquals(bsp.valueAt(2000), value1);
+        bsp.flush();
+        raf.seek(3 * 4);
+        assertEquals(raf.readShort(), key2);
+        assertEquals(raf.readShort(), value2);
+        raf.seek(2000 * 4);
+        assertEquals(raf.readShort(), key1);
+        assertEquals(raf.readShort(), value1);
+    }
+    @Test
+    public void testCompareAndSwapIfGreater() throws IOException{
+        Utils.generateByteFile(2048, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 2);
+        long small = bsp.keyAt(10) <= bsp.keyAt(1500) ? 10 : 1500;
+        long large = small == 10 ? 1500 : 10;
+        short smallKey = bsp.keyAt(small);
+        short largeKey = bsp.keyAt(large);
+        assertFalse(bsp.compareAndSwapIfGreater(large, small));
+        assertEquals(bsp.keyAt(large), largeKey);
+        if(smallKey != largeKey){
+            assertTrue(bsp.compareAndSwapIfGreater(small, large));
+            assertEquals(bsp.keyAt(small), largeKey);
+            assertEquals(bsp.keyAt(large), smallKey);
+        }
+    }
+    @Test
+    public void testMappedHeapSort() throws IOException{
+        Utils.generateByteFile(4096, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        MappedFileService mfs = new MappedFileService(raf);
+        HeapSortClient hsc = new HeapSortClient(mfs);
+        hsc.buildMaxHeap();
+        hsc.sort();
+        assertTrue(Utils.checkFile(fileName));
+        assertEquals(mfs.getCacheMisses(), 4);
+        assertEquals(mfs.getDiskWrites(), 4);
+    }
+    @Test
+    public void testMappedStatsModelPool() throws IOException{
+        Utils.generateByteFile(16 * 1024, fileName);
+        byte[] original = Files.readAllBytes(new File(fileName).toPath());
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 3);
+        new HeapSortClient(bsp).sortFile();
+        raf.close();
+        Files.write(new File(fileName).toPath(), original);
+        raf = new RandomAccessFile(fileName, "rw");
+        MappedFileService mfs = new MappedFileService(raf, 3);
+        new HeapSortClient(mfs).sortFile();
+        raf.close();
+        assertTrue(Utils.checkFile(fileName));
+        assertTrue(mfs.getCacheMisses() > 16);
+        assertEquals(mfs.getCacheHits(), bsp.getCacheHits());
+        assertEquals(mfs.getCacheMisses(), bsp.getCacheMisses());
+        assertEquals(mfs.getDiskWrites(), bsp.getDiskWrites());
+    }
+    @Test
+    public void testReplacementPolicies() throws IOException{
+        for(String name : new String[]{"lru", "clock", "2q", "lru-k", "lru-3"}){
+            Utils.generateByteFile(16 * 1024, fileName);
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            BufferPoolService bsp = new BufferPoolService(raf, 5, ReplacementPolicy.create(name, 5), 2);
+            HeapSortClient hsc = new HeapSortClient(bsp);
+            hsc.buildMaxHeap();
+            hsc.sort();
+            raf.close();
+            assertTrue(name, Utils.checkFile(fileName));
+        }
+    }
+    @Test
+    public void testPinnedBlocksStayBuffered() throws IOException{
+        Utils.generateByteFile(4 * 1024, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 2, ReplacementPolicy.create("lru", 2), 1);
+        for(int i = 0; i < 3; i++){
+            for(long b = 0; b < 4; b++)
+                bsp.keyAt(b * 1024);
+        }
+        // Block 0 misses once; the other three share the one unpinned buffer
+        assertEquals(bsp.getCacheMisses(), 1 + 3 * 3);
+        assertEquals(bsp.getCacheHits(), 2);
+        bsp.flush();
+        raf.close();
+    }
+    @Test
+    public void testWriteBehind() throws IOException{
+        Utils.generateByteFile(16 * 1024, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 3, ReplacementPolicy.create("lru", 3), 0, 4);
+        HeapSortClient hsc = new HeapSortClient(bsp);
+        hsc.buildMaxHeap();
+        hsc.sort();
+        raf.close();
+        assertTrue(Utils.checkFile(fileName));
+        assertTrue(bsp.getWriteBehindHits() > 0);
+        assertTrue(bsp.getCoalescedWrites() <= bsp.getDiskWrites());
+    }
+    @Test
+    public void testPrefetch() throws IOException{
+        Utils.generateByteFile(16 * 1024, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 3, ReplacementPolicy.create("lru", 3), 0, 4);
+        bsp.enablePrefetch(4);
+        HeapSortClient hsc = new HeapSortClient(bsp);
+        hsc.buildMaxHeap();
+        hsc.sort();
+        bsp.close();
+        raf.close();
+        assertTrue(Utils.checkFile(fileName));
+        assertTrue(bsp.getPrefetchIssued() > 0);
+        assertTrue(bsp.getPrefetchHits() + bsp.getPrefetchWasted() <= bsp.getPrefetchIssued());
+        // Background reads are in the Metrics, so they agree with STATS
+        Metrics metrics = bsp.getMetrics();
+        assertEquals(metrics.getDiskReads(), bsp.getDiskReads());
+        assertTrue(metrics.getDiskReads() >= bsp.getPrefetchHits() + bsp.getPrefetchWasted());
+        assertEquals(metrics.getBytesRead(), metrics.getDiskReads() * 4096);
+        long reads = 0;
+        for(long bucket : metrics.getReadLatencyBuckets())
+            reads += bucket;
+        assertEquals(reads, metrics.getDiskReads());
+    }
+    @Test
+    public void testBlockSizes() throws IOException{
+        long smallMisses = 0;
+        // 64 KB blocks split the 192 KB file evenly, 1 MB blocks leave a
+        // partial last block; write-behind and prefetch are on for 64 KB
+        for(int blockSize : new int[]{4096, 64 * 1024, 1024 * 1024}){
+            for(boolean direct : new boolean[]{false, true}){
+                Utils.generateByteFile(48 * 1024, fileName);
+                long fingerprint = recordFingerprint(4);
+                RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+                int extraFrames = blockSize == 64 * 1024 ? 2 : 0;
+                BufferPoolService bsp = new BufferPoolService(raf, 2, ReplacementPolicy.create("lru", 2), 0,
+                        extraFrames, blockSize);
+                bsp.enablePrefetch(extraFrames);
+                if(direct)
+                    bsp.enableDirectIO(new File(fileName).toPath());
+                new HeapSortClient(bsp).sortFile();
+                bsp.close();
+                raf.close();
+                assertTrue(Utils.checkFile(fileName));
+                assertEquals(recordFingerprint(4), fingerprint);
+                if(blockSize == 4096)
+                    smallMisses = bsp.getCacheMisses();
+                else
+                    assertTrue(bsp.getCacheMisses() < smallMisses);
+            }
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(fileName, "rw")){
+            new BufferPoolService(raf, 2, ReplacementPolicy.create("lru", 2), 0, 0, 6000);
+            fail("6000 is not a power of two");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+    @Test
+    public void testCheckpointResume() throws IOException{
+        // The first crash comes while the heap is being built, the second
+        // while it is being sorted
+        CheckpointJournal.Phase[] phases = {CheckpointJournal.Phase.BUILD, CheckpointJournal.Phase.SORT};
+        int[] crashAfter = {3000, 60000};
+        for(int i = 0; i < phases.length; i++){
+            Utils.generateByteFile(16 * 1024, fileName);
+            long fingerprint = recordFingerprint(4);
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            BufferPoolService bsp = new BufferPoolService(raf, 3);
+            HeapSortClient crashing = new HeapSortClient(crashAfter(bsp, crashAfter[i]));
+            crashing.enableCheckpoints(CheckpointJournal.open(new File(fileName), bsp), 500);
+            try{
+                crashing.sortFile();
+                fail("The sort should have crashed");
+            } catch(IllegalStateException e){
+                // The pool's dirty buffers are lost, as if the process had died
+            }
+            raf.close();
+            raf = new RandomAccessFile(fileName, "rw");
+            bsp = new BufferPoolService(raf, 3);
+            CheckpointJournal journal = CheckpointJournal.open(new File(fileName), bsp);
+            assertTrue(journal.isResumed());
+            assertEquals(journal.getPhase(), phases[i]);
+            HeapSortClient hsc = new HeapSortClient(bsp);
+            hsc.enableCheckpoints(journal, 500);
+            hsc.sortFile();
+            raf.close();
+            assertTrue(Utils.checkFile(fileName));
+            assertEquals(recordFingerprint(4), fingerprint);
+            assertFalse(new File(fileName + ".ckpt").exists());
+            assertFalse(new File(fileName + ".journal").exists());
+        }
+    }
+
+    // A service that fails after the given number of record swaps
+    private static IndexedDiskFileService crashAfter(BufferPoolService bsp, int swaps){
+        int[] calls = {0};
+        return (IndexedDiskFileService)Proxy.newProxyInstance(IndexedDiskFileService.class.getClassLoader(),
+                new Class<?>[]{IndexedDiskFileService.class}, (proxy, method, args) -> {
+                    if(method.getName().startsWith("compareAndSwap") || method.getName().equals("swap")){
+                        if(++calls[0] > swaps)
+                            throw new IllegalStateException("Crashed after " + swaps + " swaps");
+                    }
+                    try{
+                        return method.invoke(bsp, args);
+                    } catch(InvocationTargetException e){
+                        throw e.getCause();
+                    }
+                });
+    }
+    @Test
+    public void testDaryHeapSort() throws IOException{
+        long binaryMisses = 0;
+        for(int arity : new int[]{2, 3, 16, 64}){
+            Utils.generateByteFile(16 * 1024, fileName);
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            BufferPoolService bsp = new BufferPoolService(raf, 4);
+            HeapSortClient hsc = new HeapSortClient(bsp, arity);
+            hsc.sortFile();
+            raf.close();
+            assertTrue("arity " + arity, Utils.checkFile(fileName));
+            if(arity == 2)
+                binaryMisses = bsp.getCacheMisses();
+            else if(arity >= 16)
+                assertTrue("arity " + arity, bsp.getCacheMisses() < binaryMisses);
+        }
+    }
+    @Test
+    public void testBottomUpSift() throws IOException{
+        long[] classic = new long[2];
+        for(boolean bottomUp : new boolean[]{false, true}){
+            for(int arity : new int[]{2, 16}){
+                Utils.generateByteFile(16 * 1024, fileName);
+                RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+                HeapSortClient hsc = new HeapSortClient(new BufferPoolService(raf, 4), arity, bottomUp);
+                hsc.sortFile();
+                raf.close();
+                assertTrue(Utils.checkFile(fileName));
+                if(arity == 2 && !bottomUp){
+                    classic[0] = hsc.getComparisons();
+                    classic[1] = hsc.getMoves();
+                } else if(arity == 2){
+                    assertTrue(hsc.getComparisons() < classic[0] * 2 / 3);
+                    assertTrue(hsc.getMoves() < classic[1] * 2 / 3);
+                }
+            }
+        }
+        Utils.generateByteFile(4096, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        new HeapSortClient(new MappedFileService(raf), 2, true).sortFile();
+        raf.close();
+        assertTrue(Utils.checkFile(fileName));
+    }
+    @Test
+    public void testMergeSort() throws IOException{
+        Utils.generateByteFile(16 * 1024, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        BufferPoolService bsp = new BufferPoolService(raf, 3);
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        MergeSortClient msc = new MergeSortClient(bsp, spillDir, 3);
+        msc.sortFile();
+        assertTrue(Utils.checkFile(fileName));
+        assertEquals(msc.getNumRuns(), 6);
+        assertEquals(msc.getMergePasses(), 3);
+        // A single block of memory is raised to the two a merge needs
+        Utils.generateByteFile(4 * 1024, fileName);
+        msc = new MergeSortClient(bsp, spillDir, 1);
+        msc.sortFile();
+        assertTrue(Utils.checkFile(fileName));
+        assertEquals(msc.getNumRuns(), 2);
+    }
+    @Test
+    public void testReplacementSelection() throws IOException{
+        Utils.generateByteFile(64 * 1024, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        MergeSortClient msc = new MergeSortClient(new BufferPoolService(raf, 1), spillDir, 6, true);
+        msc.sortFile();
+        raf.close();
+        assertTrue(Utils.checkFile(fileName));
+        // Runs of about twice the 4 blocks held in the heap
+        assertTrue(msc.getNumRuns() < 64 / 6);
+        assertTrue(msc.getAverageRunLength() > 6 * 1024);
+        Utils.generatePartiallySortedFile(64 * 1024, fileName, 0);
+        raf = new RandomAccessFile(fileName, "rw");
+        msc = new MergeSortClient(new BufferPoolService(raf, 1), spillDir, 6, true);
+        msc.sortFile();
+        raf.close();
+        assertTrue(Utils.checkFile(fileName));
+        assertEquals(msc.getNumRuns(), 1);
+    }
+    @Test
+    public void testDriverRejectsOptions() throws Exception{
+        Utils.generateByteFile(4 * 1024, fileName);
+        String[][] rejected = {
+                {"--bogus=1"},
+                {"--store=mmap", "--policy=clock"},
+                {"--store=concurrent", "--prefetch=4"},
+                {"--stripes=4"},
+                {"--engine=heap", "--out-of-place=true"},
+        };
+        for(String[] options : rejected){
+            String[] args = new String[options.length + 2];
+            args[0] = fileName;
+            args[1] = "4";
+            System.arraycopy(options, 0, args, 2, options.length);
+            try{
+                Driver.main(args);
+                fail("Accepted " + Arrays.toString(options));
+            } catch(IllegalArgumentException e){
+                // Rejected before sorting
+            }
+        }
+    }
+    @Test
+    public void testMergeResume() throws IOException{
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        File manifest = new File(spillDir, new File(fileName).getName() + ".runs");
+        Utils.generateByteFile(16 * 1024, fileName);
+        long fingerprint = recordFingerprint(4);
+        // A read-only file fails on the final merge, after the merge passes
+        RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+        MergeSortClient msc = new MergeSortClient(new BufferPoolService(raf, 1), spillDir, 3);
+        msc.enableResume(new File(fileName));
+        try{
+            msc.sortFile();
+            fail("The final merge should not write a read-only file");
+        } catch(IOException e){
+            // Interrupted with the runs kept
+        }
+        raf.close();
+        assertTrue(manifest.exists());
+        raf = new RandomAccessFile(fileName, "rw");
+        msc = new MergeSortClient(new BufferPoolService(raf, 1), spillDir, 3);
+        msc.enableResume(new File(fileName));
+        msc.sortFile();
+        raf.close();
+        assertTrue(msc.isResumed());
+        assertEquals(msc.getMergePasses(), 1);
+        assertTrue(Utils.checkFile(fileName));
+        assertEquals(recordFingerprint(4), fingerprint);
+        assertFalse(manifest.exists());
+        assertFalse(new File(spillDir, new File(fileName).getName() + ".run1").exists());
+    }
+    @Test
+    public void testOutOfPlaceMerge() throws IOException{
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        // 64 blocks in memory (a single in-memory run) and 4 (merge passes)
+        for(int memoryBlocks : new int[]{64, 4}){
+            Utils.generateByteFile(32 * 1024, fileName);
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            short firstKey = raf.readShort();
+            MergeSortClient msc = new MergeSortClient(new BufferPoolService(raf, 1), spillDir, memoryBlocks,
+                    MergeSortClient.RunGeneration.SORTED, new File(fileName));
+            msc.sortFile();
+            // raf still reads the original, which the sorted file replaced
+            raf.seek(0);
+            assertEquals(raf.readShort(), firstKey);
+            raf.close();
+            assertTrue(Utils.checkFile(fileName));
+            assertEquals(new File(fileName).length(), 32 * 1024 * 4);
+        }
+    }
+    @Test
+    public void testCompressedRuns() throws IOException{
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        for(MergeSortClient.RunGeneration runGeneration : new MergeSortClient.RunGeneration[]{
+                MergeSortClient.RunGeneration.SORTED, MergeSortClient.RunGeneration.REPLACEMENT}){
+            Utils.generateByteFile(16 * 1024, fileName);
+            long fingerprint = recordFingerprint(4);
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            MergeSortClient msc = new MergeSortClient(new BufferPoolService(raf, 1), spillDir, 3, runGeneration);
+            msc.enableRunCompression(true);
+            msc.sortFile();
+            raf.close();
+            assertTrue(Utils.checkFile(fileName));
+            assertEquals(recordFingerprint(4), fingerprint);
+            assertTrue(msc.getMergePasses() > 1);
+            // Sorted runs of random keys pack into fewer than 32 bits a record
+            assertTrue(msc.getCompressionRatio() > 1);
+            assertTrue(msc.getSpilledBytes() < msc.getRunBytes());
+        }
+    }
+    @Test
+    public void testAdaptiveSort() throws IOException{
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        Utils.generatePartiallySortedFile(16 * 1024, fileName, 0);
+        // Keys ascend from 1 and stay within 30000
+        RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+        assertEquals(raf.readShort(), 1);
+        raf.seek(raf.length() - 4);
+        assertTrue(raf.readShort() <= 30000);
+        raf.close();
+        assertEquals(adaptiveSort(spillDir), AdaptiveSortClient.Path.NONE);
+        raf = new RandomAccessFile(fileName, "rw");
+        for(int i = 0; i < 16 * 1024; i++){
+            raf.writeShort(16 * 1024 - i);
+            raf.writeShort(i);
+        }
+        raf.close();
+        assertEquals(adaptiveSort(spillDir), AdaptiveSortClient.Path.REVERSE);
+        Utils.generatePartiallySortedFile(16 * 1024, fileName, 0.01);
+        assertEquals(adaptiveSort(spillDir), AdaptiveSortClient.Path.NATURAL_MERGE);
+        Utils.generateByteFile(16 * 1024, fileName);
+        assertEquals(adaptiveSort(spillDir), AdaptiveSortClient.Path.HEAP);
+    }
+    private AdaptiveSortClient.Path adaptiveSort(File spillDir) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        AdaptiveSortClient asc = new AdaptiveSortClient(new BufferPoolService(raf, 3), spillDir, 4);
+        asc.sortFile();
+        raf.close();
+        assertTrue(Utils.checkFile(fileName));
+        return asc.getPath();
+    }
+    @Test
+    public void testRecordSchemas() throws IOException{
+        RecordSchema[] schemas = {
+            RecordSchema.parse(8, "0:long"),
+            RecordSchema.parse(16, "4:int:desc,8:bytes:8"),
+            RecordSchema.parse(64, "0:bytes:16"),
+            RecordSchema.parse(4, "0:short")
+        };
+        for(RecordSchema schema : schemas){
+            int numRecords = 8 * schema.getRecordsPerBlock();
+            Utils.generateRecordFile(numRecords, schema.getRecordSize(), fileName);
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            new SchemaHeapSortClient(new BufferPoolService(raf, 3), schema).sortFile();
+            raf.close();
+            assertTrue(Utils.checkFile(fileName, schema));
+        }
+        assertTrue(schemas[3].isDefault());
+        // Bytes compare unsigned, so 0x80 sorts after 0x7F
+        RecordSchema bytes = RecordSchema.parse(4, "0:bytes:1");
+        assertTrue(bytes.compare(new byte[]{(byte)0x80, 0, 0, 0}, 0, new byte[]{0x7F, 0, 0, 0}, 0) > 0);
+        RecordSchema shorts = RecordSchema.DEFAULT;
+        assertTrue(shorts.compare(new byte[]{(byte)0x80, 0, 0, 0}, 0, new byte[]{0x7F, 0, 0, 0}, 0) < 0);
+    }
+    @Test
+    public void testKeyPointerSort() throws IOException{
+        RecordSchema[] schemas = {
+            RecordSchema.parse(16, "4:int:desc"),
+            RecordSchema.parse(64, "0:long,8:bytes:8:desc"),
+            RecordSchema.parse(128, "16:bytes:24")
+        };
+        // 16 memory blocks hold every entry, 1 block forces the key file
+        for(RecordSchema schema : schemas){
+            for(int memoryBlocks : new int[]{16, 1}){
+                int numRecords = 8 * schema.getRecordsPerBlock();
+                Utils.generateRecordFile(numRecords, schema.getRecordSize(), fileName);
+                long fingerprint = recordFingerprint(schema.getRecordSize());
+                RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+                KeyPointerSortClient kpsc = new KeyPointerSortClient(new BufferPoolService(raf, 3), schema,
+                        new File(fileName), new File(fileName).getAbsoluteFile().getParentFile(), memoryBlocks);
+                kpsc.sortFile();
+                raf.close();
+                assertEquals(kpsc.isSpilled(), memoryBlocks == 1);
+                assertTrue(Utils.checkFile(fileName, schema));
+                assertEquals(recordFingerprint(schema.getRecordSize()), fingerprint);
+            }
+        }
+    }
+
+    // Order-independent sum of record hashes, which a permutation keeps
+    private long recordFingerprint(int recordSize) throws IOException{
+        byte[] data = Files.readAllBytes(new File(fileName).toPath());
+        long sum = 0;
+        for(int i = 0; i < data.length; i += recordSize)
+            sum += Arrays.hashCode(Arrays.copyOfRange(data, i, i + recordSize));
+        return sum + data.length;
+    }
+    @Test
+    public void testPartialSort() throws IOException{
+        Utils.generateByteFile(16 * 1024, fileName);
+        int[] before = readRecords();
+        Arrays.sort(before);
+        // 1500 fits in the 4 memory blocks, 10000 is selected then sorted
+        for(long k : new long[]{1500, 10000}){
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            PartialSortClient.topK(new BufferPoolService(raf, 3), 4, k).sortFile();
+            raf.close();
+            int[] after = readRecords();
+            for(int i = 0; i < k; i++)
+                assertEquals(after[i] >> 16, before[i] >> 16);
+            Arrays.sort(after);
+            assertTrue(Arrays.equals(after, before));
+        }
+    }
+    @Test
+    public void testQuantiles() throws IOException{
+        Utils.generateByteFile(16 * 1024, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        PartialSortClient psc = PartialSortClient.quantiles(new BufferPoolService(raf, 3), 4);
+        psc.sortFile();
+        assertEquals(psc.getDiskWrites(), 0);
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        new CountingSortClient(new BufferPoolService(raf, 3), spillDir, 4).sortFile();
+        raf.close();
+        int[] sorted = readRecords();
+        int[] quantiles = psc.getQuantiles();
+        assertEquals(quantiles.length, 16);
+        for(int i = 0; i < quantiles.length; i++)
+            assertEquals(quantiles[i], sorted[i * 1024]);
+    }
+    private int[] readRecords() throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+        int[] records = new int[(int)(raf.length() / 4)];
+        for(int i = 0; i < records.length; i++)
+            records[i] = raf.readInt();
+        raf.close();
+        return records;
+    }
+    @Test
+    public void testSortPlanner(){
+        assertEquals(SortPlanner.choose(4 * 4096, 20), SortPlanner.Engine.HEAP);
+        assertEquals(SortPlanner.choose(4096L * 4096, 20), SortPlanner.Engine.MERGE);
+    }
+    @Test
+    public void testParallelSort() throws IOException{
+        Utils.generateByteFile(32 * 1024, fileName);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        ParallelSortClient psc = new ParallelSortClient(raf, spillDir, 3, 4);
+        psc.sortFile();
+        assertTrue(Utils.checkFile(fileName));
+        assertEquals(psc.getNumRuns(), 11);
+        assertEquals(raf.length(), 32 * 1024 * 4);
+    }
+    @Test
+    public void testCountingSortIsStable() throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        raf.setLength(0);
+        Random random = new Random(7);
+        for(int i = 0; i < 8192; i++){
+            raf.writeShort(1 + random.nextInt(50));
+            raf.writeShort(i);
+        }
+        BufferPoolService bsp = new BufferPoolService(raf, 2);
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        CountingSortClient csc = new CountingSortClient(bsp, spillDir, 2);
+        csc.sortFile();
+        assertTrue(Utils.checkFile(fileName));
+        assertEquals(csc.getDistinctKeys(), 50);
+        raf.seek(0);
+        short lastKey = raf.readShort();
+        short lastValue = raf.readShort();
+        for(int i = 1; i < 8192; i++){
+            short key = raf.readShort();
+            short value = raf.readShort();
+            if(key == lastKey)
+                assertTrue(value > lastValue);
+            lastKey = key;
+            lastValue = value;
+        }
+    }
+    @Test
+    public void testCountingSortRanges() throws IOException{
+        File spillDir = new File(fileName).getAbsoluteFile().getParentFile();
+        // Ranges that fit the 8-block arena, then ranges scattered again
+        int[] memoryBlocks = {8, 1};
+        int[] scatterPasses = {1, 2};
+        for(int i = 0; i < memoryBlocks.length; i++){
+            Utils.generateByteFile(64 * 1024, fileName);
+            long fingerprint = recordFingerprint(4);
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            CountingSortClient csc = new CountingSortClient(new BufferPoolService(raf, 1), spillDir,
+                    memoryBlocks[i]);
+            csc.sortFile();
+            raf.close();
+            assertTrue(Utils.checkFile(fileName));
+            assertEquals(recordFingerprint(4), fingerprint);
+            assertTrue(csc.getScatterPasses() >= scatterPasses[i]);
+            // A write buffer per distinct key costs a write per key or more
+            assertTrue(csc.getDiskWrites() < csc.getDistinctKeys() / 4);
+        }
+    }
+    @Test
     public void testRecord(){
         short key = 4;
         short value = 5;
@@ -0,0 +1,112 @@
+package benchmark.jmh;
+
+import externalsort.BufferPoolService;
+import externalsort.Record;
+import externalsort.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH microbenchmarks of BufferPoolService. read and swap pick random
+ * records of a file that fits in the pool, so every access is a hit and
+ * the score is the cost of lookup and LRU promotion. cacheMissRead reads
+ * the first record of a new block each time through a one-buffer pool, so
+ * every read goes through the pool's miss path. Each operation touches one
+ * record, so ops/s is records/s.
+ * Build with mvn -Pjmh package in main/, then run
+ * java -jar target/benchmarks.jar BufferPoolOpsBenchmark -prof gc
+ * for throughput and the allocation rate (gc.alloc.rate.norm is bytes
+ * allocated per record).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolOpsBenchmark {
+    private static final int RECORDSPERBLOCK = 1024;
+    private static final int MISSBLOCKS = 64;
+    // Random indexes are drawn ahead of time so the score leaves out Random
+    private static final int INDEXES = 4096;
+
+    @Param({"1", "20", "100"})
+    public int numBuffers;
+
+    private File file;
+    private File missFile;
+    private RandomAccessFile raf;
+    private RandomAccessFile missRaf;
+    private BufferPoolService bps;
+    private BufferPoolService missBps;
+    private final long[] indexes = new long[INDEXES];
+    private int next = 0;
+    private long missBlock = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("bpops", ".dat");
+        missFile = File.createTempFile("bpmiss", ".dat");
+        Utils.generateByteFile(numBuffers * RECORDSPERBLOCK, file.getPath());
+        Utils.generateByteFile(MISSBLOCKS * RECORDSPERBLOCK, missFile.getPath());
+        raf = new RandomAccessFile(file, "rw");
+        missRaf = new RandomAccessFile(missFile, "r");
+        bps = new BufferPoolService(raf, numBuffers);
+        missBps = new BufferPoolService(missRaf, 1);
+        Random random = new Random(42);
+        for (int i = 0; i < INDEXES; i++) {
+            indexes[i] = random.nextInt(numBuffers * RECORDSPERBLOCK);
+        }
+        // Load every block so the measured reads and swaps all hit
+        for (long block = 0; block < numBuffers; block++) {
+            bps.read(block * RECORDSPERBLOCK);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bps.close();
+        raf.close();
+        missRaf.close();
+        file.delete();
+        missFile.delete();
+    }
+
+    @Benchmark
+    public Record read() throws IOException {
+        return bps.read(nextIndex());
+    }
+
+    @Benchmark
+    public void swap() throws IOException {
+        bps.swap(nextIndex(), nextIndex());
+    }
+
+    @Benchmark
+    public Record cacheMissRead() throws IOException {
+        missBlock = (missBlock + 1) % MISSBLOCKS;
+        return missBps.read(missBlock * RECORDSPERBLOCK);
+    }
+
+    private long nextIndex() {
+        next = (next + 1) & (INDEXES - 1);
+        return indexes[next];
+    }
+}
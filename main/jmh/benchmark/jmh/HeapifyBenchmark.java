@@ -0,0 +1,83 @@
+package benchmark.jmh;
+
+import externalsort.BufferPoolService;
+import externalsort.HeapSortClient;
+import externalsort.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of HeapSortClient.buildMaxHeap, the heapify loop, on a
+ * fresh copy of a 1 MB file of random records for every invocation. The
+ * copy is made outside the measurement, and the score is records/s.
+ * Build with mvn -Pjmh package in main/, then run
+ * java -jar target/benchmarks.jar HeapifyBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeapifyBenchmark {
+    private static final int RECORDS = 256 * 1024;
+
+    @Param({"1", "20", "100"})
+    public int numBuffers;
+
+    private File input;
+    private File work;
+    private RandomAccessFile raf;
+    private BufferPoolService bps;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        input = File.createTempFile("heapify", ".dat");
+        work = File.createTempFile("heapify", ".dat");
+        Utils.generateByteFile(RECORDS, input.getPath());
+    }
+
+    @Setup(Level.Invocation)
+    public void copyInput() throws IOException {
+        Files.copy(input.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        raf = new RandomAccessFile(work, "rw");
+        bps = new BufferPoolService(raf, numBuffers);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeCopy() throws IOException {
+        bps.close();
+        raf.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+        work.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void buildMaxHeap() throws IOException {
+        new HeapSortClient(bps).buildMaxHeap();
+    }
+}
@@ -0,0 +1,120 @@
+package benchmark.jmh;
+
+import externalsort.BufferPoolService;
+import externalsort.CountingSortClient;
+import externalsort.HeapSortClient;
+import externalsort.MergeSortClient;
+import externalsort.SortEngine;
+import externalsort.Utils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH macrobenchmark of a full sort. Each trial generates a file of random
+ * records with Utils.generateByteFile, and every invocation sorts a fresh
+ * copy of it, made outside the measurement, with the given engine and
+ * number of buffers (also the merge and counting engines' memory, as in
+ * Driver). The records counter reports records/s next to the sorts/s
+ * score.
+ * Build with mvn -Pjmh package in main/, then run
+ * java -jar target/benchmarks.jar SortBenchmark -prof gc
+ * The defaults cover 1 MB to 4 GB; the large files need twice their size
+ * of free space in java.io.tmpdir, and the heap engine with few buffers
+ * takes hours on them, so narrow the run with -p, for example
+ * java -jar target/benchmarks.jar SortBenchmark -prof gc -p engine=merge -p megabytes=1,16,256
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class SortBenchmark {
+    private static final long RECORDSPERMB = 256 * 1024;
+
+    @Param({"heap", "merge", "counting"})
+    public String engine;
+
+    @Param({"1", "5", "10", "20", "40"})
+    public int numBuffers;
+
+    @Param({"1", "16", "256", "4096"})
+    public int megabytes;
+
+    private File input;
+    private File work;
+    private RandomAccessFile raf;
+    private BufferPoolService bps;
+
+    /**
+     * Records sorted, reported by JMH as records/s
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Records {
+        public long records;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            records = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        input = File.createTempFile("sortbench", ".dat");
+        work = File.createTempFile("sortbench", ".dat");
+        Utils.generateByteFile((int) (megabytes * RECORDSPERMB), input.getPath());
+    }
+
+    @Setup(Level.Invocation)
+    public void copyInput() throws IOException {
+        Files.copy(input.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        raf = new RandomAccessFile(work, "rw");
+        bps = new BufferPoolService(raf, numBuffers);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeCopy() throws IOException {
+        bps.close();
+        raf.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+        work.delete();
+    }
+
+    @Benchmark
+    public void sort(Records counter) throws IOException {
+        File spillDir = work.getAbsoluteFile().getParentFile();
+        SortEngine sortEngine = switch (engine) {
+            case "heap" -> new HeapSortClient(bps);
+            case "merge" -> new MergeSortClient(bps, spillDir, numBuffers);
+            case "counting" -> new CountingSortClient(bps, spillDir, numBuffers);
+            default -> throw new IllegalArgumentException("Unknown engine: " + engine);
+        };
+        sortEngine.sortFile();
+        counter.records += megabytes * RECORDSPERMB;
+    }
+}